@@ -0,0 +1,128 @@
+package ShefRobot;
+
+import lejos.hardware.Key;
+import lejos.hardware.Keys;
+import lejos.robotics.SampleProvider;
+import java.rmi.RemoteException;
+
+/**
+ * The connection used by a {@link Robot} to talk to the motors, sensors, speaker and buttons of an EV3.
+ *
+ * Normally this is a connection to a real EV3, made by the {@link Robot#Robot()} and {@link Robot#Robot(String)} constructors.
+ * Other backends can be given to {@link Robot#Robot(Backend)}, e.g. a {@link SimulatedEV3} to run programs without a robot.
+ * @see SimulatedEV3
+**/
+public interface Backend
+{
+    /**
+     * A regulated motor attached to the EV3.
+     * The methods match those of the LeJOS {@code RMIRegulatedMotor} that a real EV3 provides.
+    **/
+    public interface RegulatedMotor
+    {
+        public void forward() throws RemoteException;
+        public void backward() throws RemoteException;
+        public void stop(boolean immediateReturn) throws RemoteException;
+        public void setSpeed(int speed) throws RemoteException;
+        public void rotate(int angle, boolean immediateReturn) throws RemoteException;
+        public void rotateTo(int limitAngle, boolean immediateReturn) throws RemoteException;
+        public void resetTachoCount() throws RemoteException;
+        public int getSpeed() throws RemoteException;
+        public float getMaxSpeed() throws RemoteException;
+        public int getTachoCount() throws RemoteException;
+        public boolean isMoving() throws RemoteException;
+        public boolean isStalled() throws RemoteException;
+        public void close() throws RemoteException;
+    }
+
+    /**
+     * A sensor attached to the EV3.
+     * Fetching a sample from the device itself reads it in its current mode.
+     * The methods for controlling particular kinds of sensor throw {@link UnsupportedOperationException} on devices that don't have them.
+    **/
+    public interface SensorDevice extends SampleProvider
+    {
+        /**
+         * @param modeName The LeJOS name of the mode, e.g. {@code "Red"} for a color sensor
+         * @return A provider that reads the sensor in the given mode
+         * @throws IllegalArgumentException When the sensor has no such mode
+        **/
+        public SampleProvider getMode(String modeName);
+        public void setCurrentMode(int mode);
+        public void close();
+
+        /** Sets the floodlight of a color sensor, see {@link ColorSensor.FloodlightState} */
+        default public void setFloodlight(int color) {
+            throw new UnsupportedOperationException("This sensor has no floodlight");
+        }
+        /** Gets the floodlight of a color sensor, see {@link ColorSensor.FloodlightState} */
+        default public int getFloodlight() {
+            throw new UnsupportedOperationException("This sensor has no floodlight");
+        }
+        /** Resets a gyro sensor */
+        default public void reset() {
+            throw new UnsupportedOperationException("This sensor can't be reset");
+        }
+        /** Turns on an ultrasonic sensor */
+        default public void enable() {
+            throw new UnsupportedOperationException("This sensor can't be enabled");
+        }
+        /** Turns off an ultrasonic sensor */
+        default public void disable() {
+            throw new UnsupportedOperationException("This sensor can't be disabled");
+        }
+        /** Whether an ultrasonic sensor is turned on */
+        default public boolean isEnabled() {
+            throw new UnsupportedOperationException("This sensor can't be enabled");
+        }
+    }
+
+    /**
+     * The speaker of the EV3
+    **/
+    public interface AudioDevice
+    {
+        public int getVolume();
+        public void setVolume(int volume);
+        /**
+         * Plays a tone, returning once it has finished
+        **/
+        public void playTone(int freq, int duration);
+        /**
+         * Plays a tone at the given volume, returning once it has finished.
+         * By default the volume is ignored.
+        **/
+        public default void playTone(int freq, int duration, int volume)
+        {
+            playTone(freq, duration);
+        }
+    }
+
+    /**
+     * Opens a regulated motor.
+     * @param port The name of the port, e.g. {@code "A"}
+     * @param type {@code 'L'} for a large motor or {@code 'M'} for a medium motor
+     * @return The motor
+    **/
+    public RegulatedMotor createRegulatedMotor(String port, char type);
+    /**
+     * Opens a sensor.
+     * @param port The name of the port, e.g. {@code "S1"}
+     * @param sensorClass The LeJOS class of the sensor, e.g. {@code "lejos.hardware.sensor.EV3ColorSensor"}
+     * @return The sensor
+    **/
+    public SensorDevice createSensor(String port, String sensorClass);
+    /**
+     * @return The speaker
+    **/
+    public AudioDevice getAudio();
+    /**
+     * @return The buttons, or {@code null} if the backend has none
+    **/
+    public Keys getKeys();
+    /**
+     * @param name The LeJOS name of the button, e.g. {@code "Enter"}
+     * @return The button, or {@code null} if the backend has none
+    **/
+    public Key getKey(String name);
+}
@@ -0,0 +1,74 @@
+package ShefRobot;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Something that happened to the buttons of a {@link Robot}, passed to {@link ButtonListener#buttonEvent(ButtonEvent)}.
+ * @see Buttons#addButtonListener(ButtonListener)
+**/
+public final class ButtonEvent
+{
+    public enum Type {
+        /**
+         * A button was pressed
+        **/
+        PRESSED,
+        /**
+         * A button was released
+        **/
+        RELEASED,
+        /**
+         * A button has been held down for the {@link Buttons#setLongPressTime long press time}
+        **/
+        LONG_PRESSED,
+        /**
+         * A button was pressed while others were held down, see {@link #getButtons()}
+        **/
+        CHORD
+    }
+
+    private final Type type;
+    private final Buttons.Button button;
+    private final Set<Buttons.Button> buttons;
+    private final long time;
+
+    ButtonEvent(Type type, Buttons.Button button, Set<Buttons.Button> buttons, long time)
+    {
+        this.type = type;
+        this.button = button;
+        this.buttons = Collections.unmodifiableSet(buttons);
+        this.time = time;
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+    /**
+     * @return The button the event is about, for a chord this is the button that was pressed last
+    **/
+    public Buttons.Button getButton()
+    {
+        return button;
+    }
+    /**
+     * @return The buttons held down when the event happened (not including a button that was just released)
+    **/
+    public Set<Buttons.Button> getButtons()
+    {
+        return buttons;
+    }
+    /**
+     * @return When the event happened, from {@link System#nanoTime()}
+    **/
+    public long getTime()
+    {
+        return time;
+    }
+    @Override
+    public String toString()
+    {
+        return type == Type.CHORD ? type+" "+buttons : type+" "+button;
+    }
+}
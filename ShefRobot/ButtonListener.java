@@ -1,8 +1,11 @@
 package ShefRobot;
+
+import java.util.Set;
+
 /**
  * Listener interface for catching Button press and release events.
- * The methods for connecting ButtonListener's have been disabled due to inconsistent behaviour
- // * @see Buttons#addListener(Buttons.Button)
+ * Listeners are called one at a time, in the order the events happened, on a thread used only for button events.
+ * @see Buttons#addButtonListener(Buttons.Button, ButtonListener)
 **/
 public abstract interface ButtonListener
 {
@@ -16,4 +19,36 @@ public abstract interface ButtonListener
      * @param button {@link Buttons.Button} that has been released
     **/
     public abstract void buttonReleased(Buttons.Button button); 
-}
\ No newline at end of file
+    /**
+     * Invoked when the listened button has been held down for the {@link Buttons#setLongPressTime long press time}
+     * @param button {@link Buttons.Button} that has been held down
+    **/
+    public default void buttonLongPressed(Buttons.Button button) {}
+    /**
+     * Invoked when several buttons, including the listened button, are held down together
+     * @param buttons The buttons held down
+    **/
+    public default void buttonsChorded(Set<Buttons.Button> buttons) {}
+    /**
+     * Invoked for every event, this calls the method matching the type of event.
+     * Override this to see when each event happened.
+     * @param event The event
+    **/
+    public default void buttonEvent(ButtonEvent event)
+    {
+        switch(event.getType()) {
+            case PRESSED:
+                buttonPressed(event.getButton());
+                break;
+            case RELEASED:
+                buttonReleased(event.getButton());
+                break;
+            case LONG_PRESSED:
+                buttonLongPressed(event.getButton());
+                break;
+            case CHORD:
+                buttonsChorded(event.getButtons());
+                break;
+        }
+    }
+}
@@ -5,71 +5,157 @@ import lejos.hardware.*;
 import lejos.robotics.*;
 import java.rmi.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Internal class used for wrapping KeyListener to manage ButtonListeners
+ *
+ * The KeyListener callbacks only timestamp each key change and put it in a bounded queue, so they never block or wait for listeners.
+ * A thread of its own takes the changes from the queue, filters out switch bounce, works out long presses and chords,
+ * and calls the listeners. The listeners are kept in copy-on-write lists, so they can be added and removed at any time.
 **/
 class ButtonListenerMgr implements KeyListener
 {
     /**
-     * Stores a hashset for each button
-     * Each hashset contains the listeners for that button
+     * The most key changes that can wait to be handled, after which the oldest are dropped
     **/
-    private ArrayList<HashSet<ButtonListener>> blTracker;// = initTracker();
+    static final int QUEUE_CAPACITY = 64;
+    private static final long DEFAULT_DEBOUNCE_MS = 20;
+    private static final long DEFAULT_LONG_PRESS_MS = 800;
+    private static final Buttons.Button[] BUTTONS = Buttons.Button.values();
+
     /**
-     * @param ev3 The ev3 of which button listening is to be managed for
+     * A key change, as received from the robot
     **/
-    protected ButtonListenerMgr(RemoteEV3 ev3)
+    private static class KeyChange
     {
-        //Init blTracker
-        blTracker = new ArrayList<HashSet<ButtonListener>>(Buttons.Button.values().length);
-        for(int i=0; i<Buttons.Button.values().length;i++)
+        final Buttons.Button button;
+        final boolean pressed;
+        final long time;
+        KeyChange(Buttons.Button button, boolean pressed, long time)
         {
-            blTracker.add(i, new HashSet<ButtonListener>());
+            this.button = button;
+            this.pressed = pressed;
+            this.time = time;
         }
+    }
+
+    private final Backend backend;
+    private final ArrayBlockingQueue<KeyChange> queue = new ArrayBlockingQueue<KeyChange>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * Listeners for each button, and listeners for all of them
+    **/
+    private final List<CopyOnWriteArrayList<ButtonListener>> blTracker;
+    private final CopyOnWriteArrayList<ButtonListener> anyButton = new CopyOnWriteArrayList<ButtonListener>();
+    private volatile long debounceNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_DEBOUNCE_MS);
+    private volatile long longPressNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LONG_PRESS_MS);
+    private Thread dispatcher;
+    /**
+     * Set by {@link #close()}, after which key changes are ignored and the dispatch thread isn't started again
+    **/
+    private volatile boolean closed;
+    /**
+     * Latches that threads in {@link Buttons#waitForButton} are waiting on, released by {@link #close()} (guarded by this)
+    **/
+    private final Set<CountDownLatch> waiters = new HashSet<CountDownLatch>();
+
+    /*
+     * State of the buttons, only used by the dispatch thread
+    **/
+    private final boolean[] down = new boolean[BUTTONS.length];
+    private final boolean[] longFired = new boolean[BUTTONS.length];
+    private final long[] lastChange = new long[BUTTONS.length];
+    /**
+     * A change that came too soon after the last one, which is accepted if it isn't undone within the debounce time
+    **/
+    private final KeyChange[] pending = new KeyChange[BUTTONS.length];
+    private final EnumSet<Buttons.Button> held = EnumSet.noneOf(Buttons.Button.class);
+
+    /**
+     * @param backend The backend of the ev3 of which button listening is to be managed for
+    **/
+    protected ButtonListenerMgr(Backend backend)
+    {
+        this.backend = backend;
+        blTracker = new ArrayList<CopyOnWriteArrayList<ButtonListener>>(BUTTONS.length);
+        for(int i=0; i<BUTTONS.length;i++)
+        {
+            blTracker.add(i, new CopyOnWriteArrayList<ButtonListener>());
+        }
+        //Long enough ago that the first change is never taken for a bounce
+        long start = System.nanoTime() - TimeUnit.HOURS.toNanos(1);
+        Arrays.fill(lastChange, start);
+    }
+    /**
+     * Starts listening to the robot's keys, and the thread that handles them, the first time it is needed
+    **/
+    synchronized void start()
+    {
+        if(dispatcher != null || closed)
+            return;
+        dispatcher = new PortScheduler.DaemonThreadFactory("ShefRobot buttons").newThread(this::dispatch);
+        dispatcher.setPriority(Thread.MAX_PRIORITY);
+        dispatcher.start();
         //Set this class to listen to all key presses
-        for(Buttons.Button b:Buttons.Button.values())
+        for(Buttons.Button b:BUTTONS)
         {
-            ev3.getKey(b.getString()).addKeyListener(this);
+            backend.getKey(b.getString()).addKeyListener(this);
         }
     }
     /**
-     * Catch key press events and forward them to any matching ButtonListener's
+     * Catch key press events and queue them for the dispatch thread
      * @param k The lejos Key that has been pressed
     **/
     public void keyPressed(Key k)
     {
-      Buttons.Button pressed = Buttons.Button.getButton(k);
-      for(ButtonListener bl:blTracker.get(pressed.getId()))
-          bl.buttonPressed(pressed);
+        enqueue(k, true);
     }
     /**
-     * Catch key release events and forward them to any matching ButtonListener's
+     * Catch key release events and queue them for the dispatch thread
      * @param k The lejos Key that has been release
     **/
     public void keyReleased(Key k)
     {
-      Buttons.Button released = Buttons.Button.getButton(k);
-      for(ButtonListener bl:blTracker.get(released.getId()))
-          bl.buttonReleased(released);      
+        enqueue(k, false);
+    }
+    private void enqueue(Key k, boolean pressed)
+    {
+        if(closed)
+            return;
+        long now = System.nanoTime();
+        Buttons.Button b = Buttons.Button.getButton(k);
+        if(b == null)
+            return;
+        KeyChange change = new KeyChange(b, pressed, now);
+        //Never wait here, this is the robot's callback thread
+        while(!queue.offer(change))
+        {
+            if(queue.poll() != null)
+                dropped.incrementAndGet();
+        }
     }
     /**
      * Add a new ButtonListener to be tracked
-     * @param b The button to be listened
+     * @param b The button to be listened, or {@code null} for all of them
      * @param bl The button listener to listen with
     **/
     public void addButtonListener(Buttons.Button b, ButtonListener bl)
     {
-        blTracker.get(b.id).add(bl);
+        if(bl == null)
+            throw new IllegalArgumentException("Invalid listener argument: null");
+        (b == null ? anyButton : blTracker.get(b.id)).addIfAbsent(bl);
+        start();
     }
     /**
      * Removes tracking of an existing ButtonListener from the specified Button
-     * @param b The button that is being listened
+     * @param b The button that is being listened, or {@code null} for a listener added for all of them
      * @param bl The button listener to remove
     **/
     public void removeButtonListener(Buttons.Button b, ButtonListener bl)
     {
-        blTracker.get(b.id).remove(bl);      
+        (b == null ? anyButton : blTracker.get(b.id)).remove(bl);
     }
     /**
      * Removes tracking of an existing ButtonListener from all Buttons
@@ -81,7 +167,196 @@ class ButtonListenerMgr implements KeyListener
         {
             blTracker.get(i).remove(bl);    
         }
+        anyButton.remove(bl);
+    }
+    void setDebounce(long nanos)
+    {
+        debounceNanos = nanos;
+    }
+    void setLongPress(long nanos)
+    {
+        longPressNanos = nanos;
+    }
+    /**
+     * Stops the dispatch thread and forgets the listeners, called when the Robot is closed.
+     * LeJOS has no way to remove a KeyListener from a key, so this stays registered with the keys but ignores them from now on.
+    **/
+    synchronized void close()
+    {
+        closed = true;
+        for(CountDownLatch latch:waiters)
+            latch.countDown();
+        waiters.clear();
+        if(dispatcher != null)
+        {
+            dispatcher.interrupt();
+            dispatcher = null;
+        }
+        queue.clear();
+        for(List<ButtonListener> listeners:blTracker)
+            listeners.clear();
+        anyButton.clear();
+    }
+    /**
+     * Registers a latch a thread is about to wait on for a button, so {@link #close()} can release it
+     * @throws IllegalStateException When the manager has been closed
+    **/
+    synchronized void addWaiter(CountDownLatch latch)
+    {
+        if(closed)
+            throw new IllegalStateException("The robot has been closed.");
+        waiters.add(latch);
+    }
+    synchronized void removeWaiter(CountDownLatch latch)
+    {
+        waiters.remove(latch);
+    }
+    boolean isClosed()
+    {
+        return closed;
+    }
+    /**
+     * @return The number of key changes dropped because the queue was full
+    **/
+    long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * The dispatch thread: waits for key changes, or for a long press or pending change to fall due
+    **/
+    private void dispatch()
+    {
+        while(true)
+        {
+            try
+            {
+                long deadline = nextDeadline();
+                KeyChange change = deadline == Long.MAX_VALUE ? queue.take()
+                    : queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                long now = System.nanoTime();
+                //Anything that fell due before this change arrived happened first
+                handleDue(change == null ? now : change.time);
+                if(change != null)
+                    handle(change);
+            }
+            catch(InterruptedException e)
+            {
+                //Daemon thread, nothing to clean up
+                return;
+            }
+            catch(RuntimeException e)
+            {
+                System.err.println("Button event failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * @return The time the next long press or pending change falls due, or {@code Long.MAX_VALUE} if there are none
+    **/
+    private long nextDeadline()
+    {
+        long next = Long.MAX_VALUE;
+        for(int i=0;i<BUTTONS.length;i++)
+        {
+            if(pending[i] != null)
+                next = Math.min(next, lastChange[i] + debounceNanos);
+            if(down[i] && !longFired[i])
+                next = Math.min(next, lastChange[i] + longPressNanos);
+        }
+        return next;
+    }
+
+    private void handleDue(long now)
+    {
+        for(int i=0;i<BUTTONS.length;i++)
+        {
+            KeyChange p = pending[i];
+            if(p != null && now - (lastChange[i] + debounceNanos) >= 0)
+            {
+                pending[i] = null;
+                accept(p);
+            }
+            if(down[i] && !longFired[i] && now - (lastChange[i] + longPressNanos) >= 0)
+            {
+                longFired[i] = true;
+                fire(new ButtonEvent(ButtonEvent.Type.LONG_PRESSED, BUTTONS[i], EnumSet.copyOf(held), lastChange[i] + longPressNanos));
+            }
+        }
+    }
+
+    private void handle(KeyChange change)
+    {
+        int i = change.button.ordinal();
+        if(pending[i] != null)
+        {
+            if(pending[i].pressed != change.pressed)
+            {//The change bounced back, so neither happened
+                pending[i] = null;
+            }
+            return;
+        }
+        if(change.pressed == down[i])
+            return;
+        if(change.time - lastChange[i] < debounceNanos)
+        {//Too soon after the last change, wait to see if it bounces back
+            pending[i] = change;
+            return;
+        }
+        accept(change);
+    }
+
+    private void accept(KeyChange change)
+    {
+        int i = change.button.ordinal();
+        down[i] = change.pressed;
+        lastChange[i] = change.time;
+        if(change.pressed)
+        {
+            longFired[i] = false;
+            held.add(change.button);
+            fire(new ButtonEvent(ButtonEvent.Type.PRESSED, change.button, EnumSet.copyOf(held), change.time));
+            if(held.size() > 1)
+                fire(new ButtonEvent(ButtonEvent.Type.CHORD, change.button, EnumSet.copyOf(held), change.time));
+        }
+        else
+        {
+            held.remove(change.button);
+            fire(new ButtonEvent(ButtonEvent.Type.RELEASED, change.button, held.isEmpty() ? EnumSet.noneOf(Buttons.Button.class) : EnumSet.copyOf(held), change.time));
+        }
+    }
+
+    /**
+     * Calls every listener interested in the event once, a chord going to the listeners of all the buttons in it
+    **/
+    private void fire(ButtonEvent event)
+    {
+        List<ButtonListener> targets = new ArrayList<ButtonListener>(anyButton);
+        if(event.getType() == ButtonEvent.Type.CHORD)
+        {
+            for(Buttons.Button b:event.getButtons())
+                for(ButtonListener bl:blTracker.get(b.id))
+                    if(!targets.contains(bl))
+                        targets.add(bl);
+        }
+        else
+        {
+            for(ButtonListener bl:blTracker.get(event.getButton().id))
+                if(!targets.contains(bl))
+                    targets.add(bl);
+        }
+        for(ButtonListener bl:targets)
+        {
+            try
+            {
+                bl.buttonEvent(event);
+            }
+            catch(RuntimeException e)
+            {
+                System.err.println("Button listener failed: " + e);
+            }
+        }
     }
-    
-    
-}
\ No newline at end of file
+}
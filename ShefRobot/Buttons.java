@@ -5,6 +5,8 @@ import lejos.hardware.*;
 import lejos.robotics.*;
 import java.rmi.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Objects of this class represent the Button interface to the {@link Robot} which it was created from
@@ -56,54 +58,174 @@ public class Buttons
     };
     private Keys keys;
     private ButtonListenerMgr blMgr;
-    private RemoteEV3 ev3;
+    private Backend backend;
     /**
      * This object should not be constructed directly, it should be created using {@link Robot#getButtons() Robot.getButtons}
      * method present in {@link Robot Robot}
-     * @param ev3 The ev3 object with which the buttons belongs to.
+     * @param backend The backend of the robot with which the buttons belongs to.
      * @see Robot#getButtons()
     **/
-    protected Buttons(RemoteEV3 ev3)
+    protected Buttons(Backend backend)
     {
-        this.ev3 = ev3;
-        keys = ev3.getKeys();
-        keys.discardEvents();
-        blMgr = new ButtonListenerMgr(ev3);
+        this.backend = backend;
+        keys = backend.getKeys();
+        if(keys != null)
+        {
+            keys.discardEvents();
+        }
+        blMgr = new ButtonListenerMgr(backend);
     }
-    public void waitForButton(Button button)
+    /**
+     * Waits for the specified button to be pressed and released
+     * @param button The button to wait for
+     * @throws UnsupportedOperationException When the robot has no buttons (e.g. it is simulated)
+     * @throws IllegalStateException When the robot is closed, or is closed while waiting
+    **/
+    public void waitForButton(final Button button)
     {
-        ev3.getKey(button.getString()).waitForPressAndRelease();
+        checkKeys();
+        final CountDownLatch released = new CountDownLatch(1);
+        ButtonListener bl = new ButtonListener() {
+            private boolean pressed;
+            public void buttonPressed(Button b) {
+                pressed = true;
+            }
+            public void buttonReleased(Button b) {
+                if(pressed)
+                    released.countDown();
+            }
+        };
+        await(button, bl, released);
     }
+    /**
+     * Waits for any button to be pressed
+     * @throws UnsupportedOperationException When the robot has no buttons (e.g. it is simulated)
+     * @throws IllegalStateException When the robot is closed, or is closed while waiting
+    **/
     public void waitForAnyButton()
     {
-        keys.waitForAnyPress();
+        checkKeys();
+        final CountDownLatch pressed = new CountDownLatch(1);
+        ButtonListener bl = new ButtonListener() {
+            public void buttonPressed(Button b) {
+                pressed.countDown();
+            }
+            public void buttonReleased(Button b) {}
+        };
+        await(null, bl, pressed);
     }
-    //Button listeners disabled due to inconsistent behaviour
-    // /**
-     // * Add a new ButtonListener to be tracked
-     // * @param b The button to be listened
-     // * @param bl The button listener to listen with
-    // **/
-    // public void addButtonListener(Button b, ButtonListener bl)
-    // {
-        // blMgr.addButtonListener(b, bl);
-    // }
-    // /**
-     // * Removes tracking of an existing ButtonListener from the specified Button
-     // * @param b The button that is being listened
-     // * @param bl The button listener to remove
-    // **/
-    // public void removeButtonListener(Button b, ButtonListener bl)
-    // {
-        // blMgr.removeButtonListener(b, bl);
-    // }
-    // /**
-     // * Removes tracking of an existing ButtonListener from all Buttons
-     // * @param bl The button listener to remove
-    // **/
-    // public void removeButtonListener(ButtonListener bl)
-    // {
-        // removeButtonListener(bl);
-    // }
-
-}
\ No newline at end of file
+    private void await(Button button, ButtonListener bl, CountDownLatch latch)
+    {
+        blMgr.addWaiter(latch);
+        blMgr.addButtonListener(button, bl);
+        try
+        {
+            latch.await();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            blMgr.removeButtonListener(button, bl);
+            blMgr.removeWaiter(latch);
+        }
+        if(blMgr.isClosed())
+            throw new IllegalStateException("The robot was closed while waiting for a button.");
+    }
+    private void checkKeys()
+    {
+        if(keys == null)
+            throw new UnsupportedOperationException("This robot has no buttons.");
+    }
+    /**
+     * Add a new ButtonListener to be tracked
+     * Listeners are called one at a time, in the order the events happened, on a thread used only for button events,
+     * so a listener that takes a long time delays the events after it. A listener can be added to several buttons,
+     * but is only called once for each event.
+     * If the robot has no buttons (e.g. it is simulated) the listener is never called.
+     * @param b The button to be listened
+     * @param bl The button listener to listen with
+    **/
+    public void addButtonListener(Button b, ButtonListener bl)
+    {
+        if(b == null)
+            throw new IllegalArgumentException("Invalid button argument: null");
+        listen(b, bl);
+    }
+    /**
+     * Add a new ButtonListener to be tracked for every button
+     * @param bl The button listener to listen with
+     * @see #addButtonListener(Button, ButtonListener)
+    **/
+    public void addButtonListener(ButtonListener bl)
+    {
+        listen(null, bl);
+    }
+    private void listen(Button b, ButtonListener bl)
+    {
+        if(keys == null)
+        {
+            if(bl == null)
+                throw new IllegalArgumentException("Invalid listener argument: null");
+            return;
+        }
+        blMgr.addButtonListener(b, bl);
+    }
+    /**
+     * Removes tracking of an existing ButtonListener from the specified Button
+     * @param b The button that is being listened
+     * @param bl The button listener to remove
+    **/
+    public void removeButtonListener(Button b, ButtonListener bl)
+    {
+        blMgr.removeButtonListener(b, bl);
+    }
+    /**
+     * Removes tracking of an existing ButtonListener from all Buttons
+     * @param bl The button listener to remove
+    **/
+    public void removeButtonListener(ButtonListener bl)
+    {
+        blMgr.removeButtonListener(bl);
+    }
+    /**
+     * Sets how long a button must stay pressed or released for the change to count.
+     * Changes that are undone sooner than this are switch bounce, and are ignored.
+     * @param debounceMs The time in milliseconds, 20 by default
+     * @throws IllegalArgumentException When debounceMs is negative
+    **/
+    public void setDebounce(int debounceMs)
+    {
+        if(debounceMs<0)
+            throw new IllegalArgumentException("Invalid debounce argument: "+debounceMs+"\n Debounce times should not be negative.");
+        blMgr.setDebounce(TimeUnit.MILLISECONDS.toNanos(debounceMs));
+    }
+    /**
+     * Sets how long a button must be held down for {@link ButtonListener#buttonLongPressed} to be called.
+     * @param longPressMs The time in milliseconds, 800 by default
+     * @throws IllegalArgumentException When longPressMs is less than 1
+    **/
+    public void setLongPressTime(int longPressMs)
+    {
+        if(longPressMs<1)
+            throw new IllegalArgumentException("Invalid long press argument: "+longPressMs+"\n Long press times below 1ms are invalid.");
+        blMgr.setLongPress(TimeUnit.MILLISECONDS.toNanos(longPressMs));
+    }
+    /**
+     * Button changes are queued to be handled, and if they come in faster than the listeners handle them the oldest are dropped.
+     * @return The number of button changes dropped
+    **/
+    public long getDroppedEvents()
+    {
+        return blMgr.getDropped();
+    }
+    /**
+     * Stops handling button events, called when the Robot is closed
+    **/
+    void close()
+    {
+        blMgr.close();
+    }
+}
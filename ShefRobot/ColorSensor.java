@@ -4,18 +4,19 @@ import lejos.remote.ev3.*;
 import ShefRobot.*;
 import ShefRobot.util.*;
 import java.rmi.RemoteException;
+import lejos.robotics.SampleProvider;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 //import java.awt.Color;
-import lejos.hardware.sensor.EV3ColorSensor;
 
-enum ColorSensorAction{
-    GET_VALUE, GET_COLOR, GET_AMBIENT, GET_RED, GET_RGB, GET_FLOODLIGHT_STATE, SET_FLOODLIGHT_STATE;
-}
 /**
  * This class represents an EV3 ColorSensor which has four modes of operation {@link ColorSensor.Mode#COLOR}, {@link ColorSensor.Mode#RED}, {@link ColorSensor.Mode#RGB} and {@link ColorSensor.Mode#AMBIENT}
  * By default the sensor starts in {@link ColorSensor.Mode#RED} mode.
  * Each EV3 should contain 1 color sensor
  * If the sensor seems insensitive, please check that the EV3s battery is charged.
- * If you are switching between sensor modes without a delay, you may receive incorrect or out of range values (e.g. Calling {@link ColorSensor.Mode#getAmbient()} directly after {@link ColorSensor.Mode#getColor()} is likely to cause {@link ColorSensor.Mode#getAmbient()} to return a bad value. This can be fixed by waiting for around 300ms after the first call to {@link ColorSensor.Mode#getAmbient()} so the sensor has time to adjust.)
+ * Each reading is taken in one of the modes (e.g. {@link ColorSensor#getAmbient()} reads in {@link ColorSensor.Mode#AMBIENT}), and the sensor gives bad values for a short time after it switches mode.
+ * The sensor keeps track of the mode it is in, and only waits for it to settle when the mode actually changes (see {@link ColorSensor#setSettleTime(Mode, int)}),
+ * so reading in the same mode again and again is fast. Readings that are waiting at the same time are grouped by mode, so the sensor switches as few times as possible.
  * @see Sensor
 **/
 public class ColorSensor extends Sensor<ColorSensorAction>
@@ -42,47 +43,105 @@ public class ColorSensor extends Sensor<ColorSensorAction>
         /**
          * Measures the color ID of a surface.
         **/
-        COLOR("ColorID", 0, FloodlightState.WHITE),
+        COLOR("ColorID", 0, FloodlightState.WHITE, 250),
         /**
          * Measures the level of reflected light from the sensors RED LED.
         **/
-        RED("Red", 1, FloodlightState.RED),
+        RED("Red", 1, FloodlightState.RED, 150),
         /**
          * Measures the level of red, green and blue light when illuminated by a white light source.
         **/
-        RGB("RGB", 2, FloodlightState.WHITE),
+        RGB("RGB", 2, FloodlightState.WHITE, 250),
         /**
          * Measures the level of ambient light while the sensors light is blue.
         **/
-        AMBIENT("Ambient", 3, FloodlightState.OFF);
+        AMBIENT("Ambient", 3, FloodlightState.OFF, 300);
         protected final String internalString;
         protected final int internalId;
         protected final FloodlightState lightState;
-        Mode(String internalString, int internalId, FloodlightState lightState)
+        /**
+         * How long the sensor takes to give good values after switching into this mode, in milliseconds.
+         * Switching the light off (for ambient readings) takes longest, as the sensor sees the light fading.
+        **/
+        protected final int settleMs;
+        Mode(String internalString, int internalId, FloodlightState lightState, int settleMs)
         {
             this.internalString=internalString;
             this.internalId=internalId;
             this.lightState=lightState;
+            this.settleMs=settleMs;
+        }
+        protected static Mode fromString(String internalString)
+        {
+            for(Mode m:Mode.values())
+                if(m.internalString.equals(internalString))
+                    return m;
+            return null;
         }
     }
+    /**
+     * Settle time for each mode in nanoseconds, indexed by ordinal. Replaced rather than changed, so the port always sees a complete table.
+    **/
+    private volatile long[] settleNanos;
     protected ColorSensor(Robot robot, Port port)
     {
         super(robot, port, Sensor.Type.COLOR);
+        long[] table = new long[Mode.values().length];
+        for(Mode m:Mode.values())
+            table[m.ordinal()] = TimeUnit.MILLISECONDS.toNanos(m.settleMs);
+        this.settleNanos = table;
     }
     /**
-     * Switches the sensor between modes
+     * Switches the sensor between modes, which sets the mode used by {@link Sensor#getRawSample()}.
+     * This returns immediately, readings taken afterwards wait until the sensor has settled in the new mode.
      * @param newMode The desired mode to switch to
     **/
     public void setMode(Mode newMode)
     {
-        this.sensor.setCurrentMode(newMode.internalId);
-        //Switching mode doesn't do this automatically until a sample is requested.
-        setFloodlightState(newMode.lightState);
-        try
-        {
-            Thread.sleep(300);
+        this.addAction(new PortAction<ColorSensorAction,float[]>(ColorSensorAction.SET_MODE, new float[]{(float)newMode.internalId}));
+    }
+    /**
+     * Sets how long readings wait for the sensor to settle after it switches into a mode.
+     * The defaults suit most sensors, but can be lowered if the sensor is fast enough, or raised if readings straight after a switch are wrong.
+     * @param mode The mode
+     * @param settleMs The time in milliseconds
+     * @throws IllegalArgumentException When settleMs is negative
+    **/
+    public void setSettleTime(Mode mode, int settleMs)
+    {
+        if(settleMs<0)
+            throw new IllegalArgumentException("Invalid settle time argument: "+settleMs+"\n Settle times should not be negative.");
+        long[] table = this.settleNanos.clone();
+        table[mode.ordinal()] = TimeUnit.MILLISECONDS.toNanos(settleMs);
+        this.settleNanos = table;
+    }
+    /**
+     * Starts sampling the sensor in the background in the given mode.
+     * While sampling, the matching getter (e.g. {@link ColorSensor#getRed()} for {@link ColorSensor.Mode#RED})
+     * returns the latest sample immediately instead of asking the robot.
+     * @param mode The mode to sample in
+     * @param periodMs How often to read the sensor, in milliseconds
+     * @see Sensor#startSampling(int)
+    **/
+    public void startSampling(Mode mode, int periodMs)
+    {
+        startSampling(getAction(mode), periodMs);
+    }
+    /**
+     * Returns the action used to read the sensor in the given mode
+    **/
+    private static ColorSensorAction getAction(Mode mode)
+    {
+        switch(mode) {
+            case COLOR:
+                return ColorSensorAction.GET_COLOR;
+            case RGB:
+                return ColorSensorAction.GET_RGB;
+            case AMBIENT:
+                return ColorSensorAction.GET_AMBIENT;
+            default:
+                return ColorSensorAction.GET_RED;
         }
-        catch(Exception e){}
     }
     /**
      * Changes the state of the floodlight to a colour or off
@@ -91,13 +150,7 @@ public class ColorSensor extends Sensor<ColorSensorAction>
     **/
     public void setFloodlightState(FloodlightState newState)
     {
-        Pair<ColorSensorAction,float[]> action = new Pair<ColorSensorAction,float[]>(ColorSensorAction.SET_FLOODLIGHT_STATE, new float[]{(float)newState.internalId});
-        this.addAction(action);       
-        while (action.getValue() != null) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {}
-        }
+        this.await(sendActionAsync(ColorSensorAction.SET_FLOODLIGHT_STATE, new float[]{(float)newState.internalId}));
     }
     /**
      * Reads the current state of the floodlight
@@ -105,14 +158,7 @@ public class ColorSensor extends Sensor<ColorSensorAction>
     **/
     public FloodlightState getFloodlightState()
     {
-        Pair<ColorSensorAction,float[]> action = new Pair<ColorSensorAction,float[]>(ColorSensorAction.GET_FLOODLIGHT_STATE, null);
-        this.addAction(action);
-        while (action.getValue() == null) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {}
-        }
-        return FloodlightState.getFromID((int)action.getValue()[0]);
+        return FloodlightState.getFromID((int)sendAction(ColorSensorAction.GET_FLOODLIGHT_STATE)[0]);
     }
     
     /**
@@ -147,8 +193,36 @@ public class ColorSensor extends Sensor<ColorSensorAction>
     **/
     public Color getColor()
     {
-        int result = (int)(sendAction(ColorSensorAction.GET_COLOR)[0]);
-        //Parse returned int into the correct color;
+        return toColor(sendAction(ColorSensorAction.GET_COLOR));
+    }
+    /**
+     * Asynchronous version of {@link ColorSensor#getColor()}, which returns immediately.
+     * @return A future that completes with a {@link ColorSensor.Color} enum
+    **/
+    public CompletableFuture<Color> getColorAsync()
+    {
+        return sendActionAsync(ColorSensorAction.GET_COLOR, null).thenApply(ColorSensor::toColor);
+    }
+    /**
+     * Runs a task whenever the sensor starts seeing the given colour, including straight away if it already does.
+     * It isn't run again until the sensor has seen a different colour. See {@link Sensor#onChange} for how listeners are called,
+     * and {@link Sensor#setDebounce(int)} to ignore colours only seen for a moment (e.g. crossing the edge between two others).
+     * @param color The colour
+     * @param task The task
+     * @return The subscription, used to remove the listener
+     * @throws IllegalStateException When the sensor is being sampled, or listened to, in a mode other than {@link ColorSensor.Mode#COLOR}
+    **/
+    public Subscription onColor(Color color, Runnable task)
+    {
+        final int id = color.internalId;
+        return watch(edgeWatcher(value -> (int)value == id, value -> (int)value != id, true, value -> task.run()), false, ColorSensorAction.GET_COLOR);
+    }
+    /**
+     * Parses a sample taken in color mode into the correct color
+    **/
+    private static Color toColor(float[] sample)
+    {
+        int result = (int)sample[0];
         for(Color c:Color.values())
             if(c.internalId == result)
                 return c;
@@ -165,6 +239,14 @@ public class ColorSensor extends Sensor<ColorSensorAction>
         //Parse returned ambient level
         return result[0];
     }
+    /**
+     * Asynchronous version of {@link ColorSensor#getAmbient()}, which returns immediately.
+     * @return A future that completes with a value in the range 0.0-1.0
+    **/
+    public CompletableFuture<Float> getAmbientAsync()
+    {
+        return sendActionAsync(ColorSensorAction.GET_AMBIENT, null).thenApply(result -> result[0]);
+    }
     /**
      * Returns the level of red reflected into the sensor
      * If not already in red mode, this will switch the sensor into red mode (enabling the red light).
@@ -176,9 +258,19 @@ public class ColorSensor extends Sensor<ColorSensorAction>
         //Parse returned red level
         return result[0];
     }
+    /**
+     * Asynchronous version of {@link ColorSensor#getRed()}, which returns immediately.
+     * @return A future that completes with a value in the range 0.0-1.0
+    **/
+    public CompletableFuture<Float> getRedAsync()
+    {
+        return sendActionAsync(ColorSensorAction.GET_RED, null).thenApply(result -> result[0]);
+    }
     /**
      * Returns the colour detected by the sensor
      * ~untested~
+     * To read the colour without allocating a new Color object each time, use {@link ColorSensor#startSampling(Mode, int)} with {@link ColorSensor.Mode#RGB}
+     * and {@link Sensor#fetchSample(float[], int)}.
      * @return The RGB value detected by the sensor as a java Color object.
     **/
     public java.awt.Color getRGB()
@@ -188,61 +280,79 @@ public class ColorSensor extends Sensor<ColorSensorAction>
         return new java.awt.Color(result[0],result[1],result[2]);
     }
     /**
-     * Convenience method  for sending an action and waiting for a response
-     * @param act The action to be sent
-     * @return The response received from the sensor
-    **/ 
-    private float[] sendAction(ColorSensorAction act)
+     * Called by the superclass to find the sensor mode used by actions that read the sensor
+    **/
+    protected SampleProvider getSampleProvider(ColorSensorAction act)
     {
-        Pair<ColorSensorAction,float[]> action = new Pair<ColorSensorAction,float[]>(act, null);
-        this.addAction(action);
-        while (action.getValue() == null) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {}
+        switch (act) {
+            case GET_VALUE:
+                return this.sensor;
+            case GET_COLOR:
+                return this.sensor.getMode(Mode.COLOR.internalString);
+            case GET_AMBIENT:
+                return this.sensor.getMode(Mode.AMBIENT.internalString);
+            case GET_RED:
+                return this.sensor.getMode(Mode.RED.internalString);
+            case GET_RGB:
+                return this.sensor.getMode(Mode.RGB.internalString);
+            default:
+                return null;
         }
-        return action.getValue();
+    }
+    /**
+     * Called by the superclass to find the mode an action reads in
+    **/
+    @Override
+    protected String getModeName(ColorSensorAction act)
+    {
+        switch (act) {
+            case GET_COLOR:
+                return Mode.COLOR.internalString;
+            case GET_AMBIENT:
+                return Mode.AMBIENT.internalString;
+            case GET_RED:
+                return Mode.RED.internalString;
+            case GET_RGB:
+                return Mode.RGB.internalString;
+            default:
+                return null;
+        }
+    }
+    /**
+     * Called by the superclass to find how long the sensor takes to settle in a mode
+    **/
+    @Override
+    protected long getSettleNanos(String mode)
+    {
+        Mode m = Mode.fromString(mode);
+        return m == null ? 0 : this.settleNanos[m.ordinal()];
     }
     /**
      * Called by the superclass to forward subclass specific actions
     **/
-    protected void subAction(Pair<ColorSensorAction,float[]> act) throws RemoteException
+    protected void subAction(PortAction<ColorSensorAction,float[]> act) throws RemoteException
     {
         float[] samples;
         switch (act.key) {
-            case GET_VALUE:
-                samples = new float[this.sensor.sampleSize()];
-                this.sensor.fetchSample(samples, 0);
-                act.setValue(samples);
-                break;
             case SET_FLOODLIGHT_STATE:
-                ((EV3ColorSensor)this.sensor).setFloodlight((int)act.getValue()[0]);
-                act.setValue(null);
+                this.sensor.setFloodlight((int)act.getArgument()[0]);
+                break;
+            case SET_MODE:
+                for(Mode m:Mode.values())
+                {
+                    if(m.internalId == (int)act.getArgument()[0])
+                    {
+                        this.sensor.setCurrentMode(m.internalId);
+                        //Switching mode doesn't do this automatically until a sample is requested.
+                        this.sensor.setFloodlight(m.lightState.internalId);
+                        modeChanged(m.internalString);
+                    }
+                }
                 break;
             case GET_FLOODLIGHT_STATE:
                 samples = new float[1];
-                samples[0] = (int)((EV3ColorSensor)this.sensor).getFloodlight();
-                act.setValue(samples);
-                break;
-            case GET_COLOR:
-                samples = new float[((EV3ColorSensor)this.sensor).getColorIDMode().sampleSize()];
-                ((EV3ColorSensor)this.sensor).getColorIDMode().fetchSample(samples,0);
-                act.setValue(samples);
-                break;
-            case GET_AMBIENT:
-                samples = new float[((EV3ColorSensor)this.sensor).getAmbientMode().sampleSize()];
-                ((EV3ColorSensor)this.sensor).getAmbientMode().fetchSample(samples,0);
-                act.setValue(samples);
-                break;
-            case GET_RED:
-                samples = new float[((EV3ColorSensor)this.sensor).getRedMode().sampleSize()];
-                ((EV3ColorSensor)this.sensor).getRedMode().fetchSample(samples,0);
-                act.setValue(samples);
-                break;
-            case GET_RGB:
-                samples = new float[((EV3ColorSensor)this.sensor).getRGBMode().sampleSize()];
-                ((EV3ColorSensor)this.sensor).getRGBMode().fetchSample(samples,0);
-                act.setValue(samples);
+                samples[0] = this.sensor.getFloodlight();
+                act.complete(samples);
                 break;
             default: 
                 System.err.println("[" + this.port.name() + "] Asked for Action: " + act.key + " on a ColorSensor...");  
@@ -0,0 +1,5 @@
+package ShefRobot;
+
+enum ColorSensorAction{
+    GET_VALUE, GET_COLOR, GET_AMBIENT, GET_RED, GET_RGB, GET_FLOODLIGHT_STATE, SET_FLOODLIGHT_STATE, SET_MODE;
+}
@@ -0,0 +1,334 @@
+package ShefRobot;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a control loop, such as following a line or a wall, at a fixed rate on a thread of its own.
+ *
+ * Every period the loop reads its {@link Input}, asks its {@link Controller} (e.g. a {@link PIDController}) what to do,
+ * and passes the answer to its {@link Output}, which usually sets the speed of one or two {@link Motor Motors}.
+ * When the input is a {@link Sensor}, the loop keeps it {@link Sensor#startSampling(int) sampled} in the background,
+ * so reading it doesn't have to wait for the robot. Motor speeds are only sent when they change, and are merged with any
+ * still waiting to be sent, so a slow connection never builds up a backlog of old speeds.
+ *
+ * The loop measures how late each iteration starts (jitter) and how long it takes, and counts the iterations that took longer
+ * than the period (overruns). Periods missed because of an overrun are skipped, rather than run back to back to catch up.
+ * <pre>
+ * ColorSensor light = robot.getColorSensor(Sensor.Port.S1);
+ * light.setMode(ColorSensor.Mode.RED);
+ * ControlLoop loop = new ControlLoop(light, new PIDController(600, 0, 20),
+ *     ControlLoop.steer(robot.getLargeMotor(Motor.Port.B), robot.getLargeMotor(Motor.Port.C), 200));
+ * loop.setSetpoint(0.4f);
+ * loop.start(10);
+ * </pre>
+**/
+public class ControlLoop
+{
+    /**
+     * Where the loop gets its measurement from
+    **/
+    public interface Input
+    {
+        float read();
+    }
+
+    /**
+     * Works out what to do from the setpoint and the measurement, e.g. {@link PIDController}
+    **/
+    public interface Controller
+    {
+        /**
+         * @param setpoint The value the loop is trying to reach
+         * @param measurement The value read from the input
+         * @param dt The time since the last update in seconds
+         * @return The value to pass to the output
+        **/
+        float update(float setpoint, float measurement, float dt);
+        /**
+         * Forgets anything remembered from earlier updates, called when the loop starts
+        **/
+        default void reset() {}
+    }
+
+    /**
+     * What the loop controls
+    **/
+    public interface Output
+    {
+        void apply(float value);
+        /**
+         * Called when the loop stops, e.g. to stop the motors
+        **/
+        default void stop() {}
+    }
+
+    private final Input input;
+    private final Sensor<?> sensor;
+    private final Controller controller;
+    private final Output output;
+
+    private volatile float setpoint;
+    private volatile float lastMeasurement;
+    private volatile float lastOutput;
+    private boolean startedSampling;
+
+    private final FixedRateRunner runner = new FixedRateRunner("ShefRobot control loop", this::iterate);
+
+    /**
+     * Creates a loop that reads the first value of each sample from a sensor, in whatever mode it is in
+     * @param sensor The sensor to read
+     * @param controller The controller
+     * @param output What the loop controls
+    **/
+    public ControlLoop(final Sensor<?> sensor, Controller controller, Output output)
+    {
+        this(sensor, new Input() {
+            private final float[] sample = new float[Math.max(1, sensor.sampleSize())];
+            public float read() {
+                sensor.fetchSample(sample, 0);
+                return sample[0];
+            }
+        }, controller, output);
+    }
+    /**
+     * Creates a loop with any input
+     * @param input Where the loop gets its measurement from
+     * @param controller The controller
+     * @param output What the loop controls
+    **/
+    public ControlLoop(Input input, Controller controller, Output output)
+    {
+        this(null, input, controller, output);
+    }
+    private ControlLoop(Sensor<?> sensor, Input input, Controller controller, Output output)
+    {
+        if(input == null || controller == null || output == null)
+            throw new IllegalArgumentException("Invalid ControlLoop arguments: the input, controller and output are all needed.");
+        this.sensor = sensor;
+        this.input = input;
+        this.controller = controller;
+        this.output = output;
+    }
+
+    /**
+     * Sets the value the loop is trying to reach, this can be changed while the loop is running
+     * @param setpoint The value
+    **/
+    public void setSetpoint(float setpoint)
+    {
+        this.setpoint = setpoint;
+    }
+    public float getSetpoint()
+    {
+        return setpoint;
+    }
+    /**
+     * @return The value read from the input in the latest iteration
+    **/
+    public float getLastMeasurement()
+    {
+        return lastMeasurement;
+    }
+    /**
+     * @return The value passed to the output in the latest iteration
+    **/
+    public float getLastOutput()
+    {
+        return lastOutput;
+    }
+
+    /**
+     * Starts running the loop
+     * @param periodMs How often to run the loop, in milliseconds
+     * @throws IllegalArgumentException When periodMs is less than 1
+     * @throws IllegalStateException When the loop is already running
+    **/
+    public synchronized void start(int periodMs)
+    {
+        if(periodMs < 1)
+            throw new IllegalArgumentException("Invalid period argument: "+periodMs+"\n Periods below 1ms are invalid.");
+        if(runner.isRunning())
+            throw new IllegalStateException("The ControlLoop is already running.");
+        if(sensor != null && !sensor.isSampling())
+        {//Keep the sensor sampled at the loop's rate, so reads don't wait for the robot
+            sensor.startSampling(periodMs);
+            startedSampling = true;
+        }
+        controller.reset();
+        runner.start(TimeUnit.MILLISECONDS.toNanos(periodMs));
+    }
+
+    /**
+     * Stops the loop, and waits for the current iteration to finish.
+     * The output is then {@link Output#stop() stopped}.
+    **/
+    public void stop()
+    {
+        if(!runner.stop())
+            return;
+        synchronized(this)
+        {
+            if(startedSampling)
+            {
+                sensor.stopSampling();
+                startedSampling = false;
+            }
+        }
+        output.stop();
+    }
+
+    /**
+     * @return True if the loop is running
+    **/
+    public boolean isRunning()
+    {
+        return runner.isRunning();
+    }
+
+    /**
+     * @return The number of iterations run
+    **/
+    public long getIterations()
+    {
+        return runner.getIterations();
+    }
+    /**
+     * @return The number of iterations that took longer than the period
+    **/
+    public long getOverruns()
+    {
+        return runner.getOverruns();
+    }
+    /**
+     * @return The number of periods skipped because an iteration overran
+    **/
+    public long getMissedPeriods()
+    {
+        return runner.getMissedPeriods();
+    }
+    /**
+     * @return How late each iteration started, in nanoseconds
+    **/
+    public PortMetrics.Latency getJitter()
+    {
+        return runner.getJitter();
+    }
+    /**
+     * @return How long each iteration took, in nanoseconds
+    **/
+    public PortMetrics.Latency getExecution()
+    {
+        return runner.getExecution();
+    }
+    /**
+     * Clears the counts and times
+    **/
+    public void resetMetrics()
+    {
+        runner.resetMetrics();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ControlLoop: "+getIterations()+" iterations, "+runner.describe("execution");
+    }
+
+    /**
+     * Runs one iteration of the loop, on the runner's thread
+    **/
+    private boolean iterate(long start, long sinceLast)
+    {
+        try
+        {
+            float measurement = input.read();
+            float value = controller.update(setpoint, measurement, sinceLast / 1e9f);
+            output.apply(value);
+            lastMeasurement = measurement;
+            lastOutput = value;
+            return true;
+        }
+        catch(RuntimeException e)
+        {
+            System.err.println("Control loop failed, stopping: " + e);
+            output.stop();
+            return false;
+        }
+    }
+
+    /**
+     * Creates an output that sets the speed of a motor, going backward for negative values and stopping at 0.
+     * Commands are only sent when the speed or direction changes.
+     * @param motor The motor
+     * @return The output
+    **/
+    public static Output speed(final Motor motor)
+    {
+        return new MotorOutput(motor);
+    }
+
+    /**
+     * Creates an output that steers a robot with two driven wheels: the left motor is set to {@code baseSpeed + value}
+     * and the right to {@code baseSpeed - value}, so positive values turn right.
+     * @param left The left motor
+     * @param right The right motor
+     * @param baseSpeed The speed of both motors when the value is 0
+     * @return The output
+    **/
+    public static Output steer(Motor left, Motor right, final int baseSpeed)
+    {
+        final MotorOutput l = new MotorOutput(left);
+        final MotorOutput r = new MotorOutput(right);
+        return new Output() {
+            public void apply(float value) {
+                l.apply(baseSpeed + value);
+                r.apply(baseSpeed - value);
+            }
+            public void stop() {
+                l.stop();
+                r.stop();
+            }
+        };
+    }
+
+    /**
+     * Sends a signed speed to a motor, skipping commands that wouldn't change anything.
+     * Only used from the loop's thread (and by stop() after it has finished).
+    **/
+    private static class MotorOutput implements Output
+    {
+        private final Motor motor;
+        private int lastSpeed = -1;
+        private int lastDirection = 2;
+
+        MotorOutput(Motor motor)
+        {
+            this.motor = motor;
+        }
+        public void apply(float value)
+        {
+            int speed = Math.round(Math.abs(value));
+            int direction = speed == 0 ? 0 : (value > 0 ? 1 : -1);
+            if(speed != lastSpeed && speed != 0)
+            {
+                motor.setSpeed(speed);
+                lastSpeed = speed;
+            }
+            if(direction != lastDirection)
+            {
+                if(direction > 0)
+                    motor.forward();
+                else if(direction < 0)
+                    motor.backward();
+                else
+                    motor.stop();
+                lastDirection = direction;
+            }
+        }
+        public void stop()
+        {
+            motor.stop();
+            lastDirection = 0;
+        }
+    }
+}
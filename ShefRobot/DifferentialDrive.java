@@ -0,0 +1,585 @@
+package ShefRobot;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a robot with two driven wheels along {@link Path Paths} made of straight lines, arcs and turns on the spot,
+ * rather than turning the motors on, sleeping and turning them off again.
+ *
+ * Each path is planned when it is given to {@link #follow}: every segment gets a trapezoidal speed profile
+ * (speeding up at the {@link #setAcceleration acceleration}, cruising at the {@link #setSpeed speed}, then slowing down),
+ * and segments in which both wheels keep turning the same way are blended together, so the robot carries straight on
+ * into the next segment rather than stopping between them. The robot only stops where a wheel has to change direction,
+ * e.g. before a turn on the spot.
+ *
+ * The whole of each blended stretch is sent to the wheels as one stream of commands: both wheels are started rotating to
+ * the tacho counts at the end of the stretch together, then their speeds are updated every 10ms to follow the profile.
+ * Updates are skipped while the previous one is still being sent, so a slow connection never builds up a backlog.
+ * As the wheels rotate to their targets the robot always finishes each stretch in the right place, even if the timing of the
+ * updates in between wasn't perfect.
+ *
+ * Paths are followed one after the other in the order they were given, on a thread of the drive's own.
+ * The motors shouldn't be given other commands while a path is being followed.
+ * <pre>
+ * DifferentialDrive drive = new DifferentialDrive(robot.getLargeMotor(Motor.Port.B), robot.getLargeMotor(Motor.Port.C), 5.6, 12);
+ * DifferentialDrive.Path square = new DifferentialDrive.Path();
+ * for(int i=0;i&lt;4;i++)
+ *     square.straight(30).turn(-90);
+ * drive.follow(square).join();
+ * </pre>
+**/
+public class DifferentialDrive
+{
+    /**
+     * How often the speeds of the wheels are updated while following a path
+    **/
+    private static final long PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(10);
+    /**
+     * The slowest a wheel is driven while it still has somewhere to go, so it can't stall short of its target
+    **/
+    private static final int MIN_SPEED = 20;
+    /**
+     * Segments in which neither wheel turns more than this many degrees are left out
+    **/
+    private static final double MIN_SEGMENT = 0.5;
+    /**
+     * The fraction of the cruising speed the wheels finish at, once the profile of a stretch is over
+    **/
+    private static final double FINISH_FRACTION = 0.125;
+
+    private final Motor left;
+    private final Motor right;
+    private final MotorGroup wheels;
+    private final double degreesPerUnit;
+    private final double halfTrack;
+    private volatile int speed = 360;
+    private volatile int acceleration = 720;
+
+    private final ThreadPoolExecutor driver;
+    private final Set<CompletableFuture<Void>> queued = ConcurrentHashMap.newKeySet();
+    /**
+     * The tacho counts the wheels were last sent to, and whether they can be trusted (only used by the driver thread)
+    **/
+    private final int[] position = new int[2];
+    private boolean positionKnown;
+
+    private final LongAdder segments = new LongAdder();
+    private final LongAdder stops = new LongAdder();
+    private final LongAdder commands = new LongAdder();
+
+    /**
+     * Creates a drive for the two wheels of a robot.
+     * The sizes can be in any unit (e.g. centimetres), as long as both are in the same one, which is then used for the distances in {@link Path Paths}.
+     * @param left The motor driving the left wheel
+     * @param right The motor driving the right wheel
+     * @param wheelDiameter The diameter of the wheels
+     * @param trackWidth The distance between the middles of the two wheels
+     * @throws IllegalArgumentException When the motors are the same or belong to different robots, or a size is not positive
+    **/
+    public DifferentialDrive(Motor left, Motor right, double wheelDiameter, double trackWidth)
+    {
+        if(!(wheelDiameter > 0) || Double.isInfinite(wheelDiameter))
+            throw new IllegalArgumentException("Invalid wheelDiameter argument: "+wheelDiameter+"\n The wheel diameter should be greater than 0.");
+        if(!(trackWidth > 0) || Double.isInfinite(trackWidth))
+            throw new IllegalArgumentException("Invalid trackWidth argument: "+trackWidth+"\n The track width should be greater than 0.");
+        this.wheels = left.parentRobot.getMotorGroup(left, right);
+        this.left = left;
+        this.right = right;
+        this.degreesPerUnit = 360 / (Math.PI * wheelDiameter);
+        this.halfTrack = trackWidth / 2;
+        this.driver = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new PortScheduler.DaemonThreadFactory("ShefRobot drive"));
+        this.driver.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the cruising speed of paths given to {@link #follow} after this is called.
+     * This is the speed of the faster wheel, so on an arc the inner wheel goes slower.
+     * @param degreesPerSecond The speed in degrees per second, the same as {@link Motor#setSpeed}
+     * @throws IllegalArgumentException When the speed is below 1
+    **/
+    public void setSpeed(int degreesPerSecond)
+    {
+        if(degreesPerSecond < 1)
+            throw new IllegalArgumentException("Invalid speed argument: "+degreesPerSecond+"\n Speeds should be at least 1.");
+        this.speed = degreesPerSecond;
+    }
+    public int getSpeed()
+    {
+        return speed;
+    }
+    /**
+     * Sets how quickly paths given to {@link #follow} after this is called speed up and slow down.
+     * @param degreesPerSecondSquared The acceleration of the faster wheel, in degrees per second per second
+     * @throws IllegalArgumentException When the acceleration is below 1
+    **/
+    public void setAcceleration(int degreesPerSecondSquared)
+    {
+        if(degreesPerSecondSquared < 1)
+            throw new IllegalArgumentException("Invalid acceleration argument: "+degreesPerSecondSquared+"\n Accelerations should be at least 1.");
+        this.acceleration = degreesPerSecondSquared;
+    }
+    public int getAcceleration()
+    {
+        return acceleration;
+    }
+
+    /**
+     * Plans a path and queues it to be followed once any paths already given have finished.
+     * The path is copied, so it can be changed or reused straight away.
+     * @param path The path
+     * @return A future that completes when the robot has reached the end of the path, or is cancelled by {@link #stop()}
+    **/
+    public CompletableFuture<Void> follow(Path path)
+    {
+        final Plan plan = new Plan(path, degreesPerUnit, halfTrack, speed, acceleration);
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+        queued.add(done);
+        done.whenComplete((v, e) -> queued.remove(done));
+        driver.execute(() -> run(plan, done));
+        return done;
+    }
+    /**
+     * Drives in a straight line, and waits until the robot has got there
+     * @param distance The distance to travel, negative distances go backwards
+    **/
+    public void travel(double distance)
+    {
+        await(follow(new Path().straight(distance)));
+    }
+    /**
+     * Drives along an arc, and waits until the robot has got there
+     * @param radius The radius of the arc, positive when the centre is to the left of the robot and negative when it is to the right
+     * @param angle The angle turned in degrees, negative angles go backwards
+     * @see Path#arc
+    **/
+    public void arc(double radius, double angle)
+    {
+        await(follow(new Path().arc(radius, angle)));
+    }
+    /**
+     * Turns on the spot, and waits until the robot has finished turning
+     * @param angle The angle to turn in degrees, positive angles turn left (anticlockwise)
+    **/
+    public void rotate(double angle)
+    {
+        await(follow(new Path().turn(angle)));
+    }
+
+    /**
+     * Cancels every path that is queued or being followed, and stops the wheels.
+     * Any methods waiting for those paths return.
+    **/
+    public void stop()
+    {
+        for(CompletableFuture<Void> f:queued)
+            f.cancel(false);
+        //Stopped on the driver thread, so it can't be overtaken by a command for the cancelled path
+        Future<?> stopped = driver.submit(() -> {
+            positionKnown = false;
+            wheels.stop();
+        });
+        try
+        {
+            stopped.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch(ExecutionException e)
+        {
+            System.err.println("Failed to stop the drive: " + e.getCause());
+        }
+    }
+    /**
+     * @return True while there are paths queued or being followed
+    **/
+    public boolean isMoving()
+    {
+        return !queued.isEmpty();
+    }
+
+    /**
+     * @return The number of segments finished, counting the ones that were blended together
+    **/
+    public long getSegmentsCompleted()
+    {
+        return segments.sum();
+    }
+    /**
+     * @return The number of times the wheels were brought to rest while following paths, including at the end of each path
+    **/
+    public long getStops()
+    {
+        return stops.sum();
+    }
+    /**
+     * @return The number of batches of commands sent to the wheels
+    **/
+    public long getCommandsSent()
+    {
+        return commands.sum();
+    }
+    /**
+     * Clears the counts
+    **/
+    public void resetMetrics()
+    {
+        segments.reset();
+        stops.reset();
+        commands.reset();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DifferentialDrive: "+getSegmentsCompleted()+" segments, "+getStops()+" stops, "+getCommandsSent()+" commands";
+    }
+
+    private static void await(CompletableFuture<Void> f)
+    {
+        try
+        {
+            f.join();
+        }
+        catch(CancellationException e)
+        {
+            //Stopped
+        }
+        catch(CompletionException e)
+        {
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Follows a planned path, called on the driver thread
+    **/
+    private void run(Plan plan, CompletableFuture<Void> done)
+    {
+        if(done.isDone())
+            return;
+        try
+        {
+            if(!positionKnown)
+            {
+                CompletableFuture<Integer> l = left.getTachoCountAsync();
+                CompletableFuture<Integer> r = right.getTachoCountAsync();
+                position[0] = l.join();
+                position[1] = r.join();
+                positionKnown = true;
+            }
+            for(int run=0;run<plan.runs();run++)
+            {
+                if(!drive(plan, run, done))
+                {//Cancelled part way, the wheels are stopped by stop()
+                    positionKnown = false;
+                    return;
+                }
+            }
+            position[0] += (int)Math.round(plan.leftTotal());
+            position[1] += (int)Math.round(plan.rightTotal());
+            done.complete(null);
+        }
+        catch(RuntimeException e)
+        {
+            System.err.println("Drive failed: " + e);
+            positionKnown = false;
+            done.completeExceptionally(e);
+            wheels.stop();
+        }
+    }
+
+    /**
+     * Drives one blended stretch of a plan, and waits for the wheels to come to rest at the end of it
+     * @return False if the path was cancelled first
+    **/
+    private boolean drive(Plan plan, int run, CompletableFuture<Void> done)
+    {
+        final int first = plan.runStart[run];
+        final int last = plan.runStart[run + 1] - 1;
+        final int[] targets = {
+            position[0] + (int)Math.round(plan.leftEnd[last]),
+            position[1] + (int)Math.round(plan.rightEnd[last])
+        };
+        final double length = plan.end[last];
+        final long start = System.nanoTime();
+        int[] sent = null;
+        CompletableFuture<Integer> inFlight = null;
+        boolean finishing = false;
+        int seg = first;
+        for(long tick = start; ; tick += PERIOD_NS)
+        {
+            if(done.isDone())
+                return false;
+            //Aim for the middle of the coming period
+            double t = (System.nanoTime() - start + PERIOD_NS / 2) / 1e9;
+            if(t < length || inFlight == null)
+            {
+                while(seg < last && t >= plan.end[seg])
+                    seg++;
+                double v = plan.velocity(seg, t - (seg == first ? 0 : plan.end[seg - 1]));
+                int[] speeds = {wheelSpeed(v, plan.leftRatio[seg]), wheelSpeed(v, plan.rightRatio[seg])};
+                if(inFlight == null || (inFlight.isDone() && !Arrays.equals(speeds, sent)))
+                {
+                    if(inFlight != null)
+                        inFlight.join();
+                    inFlight = wheels.steer(speeds, sent == null ? targets : null);
+                    sent = speeds;
+                    commands.increment();
+                }
+            }
+            else if(inFlight.isDone() && !finishing)
+            {//Whatever is left once the profile is over (e.g. from the wheels starting a little late) is made up at a steady speed
+                inFlight.join();
+                inFlight = wheels.steer(new int[]{wheelSpeed(plan.finishSpeed, plan.leftRatio[last]), wheelSpeed(plan.finishSpeed, plan.rightRatio[last])}, null);
+                finishing = true;
+                commands.increment();
+            }
+            else if(inFlight.isDone())
+            {
+                inFlight.join();
+                CompletableFuture<Boolean> l = left.isMovingAsync();
+                CompletableFuture<Boolean> r = right.isMovingAsync();
+                if(!l.join() && !r.join())
+                    break;
+            }
+            for(long wait = tick + PERIOD_NS - System.nanoTime(); wait > 0 && !done.isDone(); wait = tick + PERIOD_NS - System.nanoTime())
+                LockSupport.parkNanos(wait);
+        }
+        segments.add(last - first + 1);
+        stops.increment();
+        return true;
+    }
+
+    private static int wheelSpeed(double velocity, double ratio)
+    {
+        return Math.max(MIN_SPEED, (int)Math.round(velocity * Math.abs(ratio)));
+    }
+
+    /**
+     * A path for a {@link DifferentialDrive} to follow, made of segments added one after the other.
+     * Distances are in the unit the sizes of the drive were given in, and angles are in degrees.
+    **/
+    public static final class Path
+    {
+        private double[] distances = new double[8];
+        private double[] headings = new double[8];
+        private int length;
+
+        /**
+         * Adds a straight line
+         * @param distance The distance to travel, negative distances go backwards
+         * @return This path
+         * @throws IllegalArgumentException When the distance is not a finite number
+        **/
+        public Path straight(double distance)
+        {
+            checkFinite("distance", distance);
+            return add(distance, 0);
+        }
+        /**
+         * Adds an arc, which turns the robot as it drives
+         * @param radius The radius of the arc, positive when the centre is to the left of the robot and negative when it is to the right,
+         * a radius of 0 turns on the spot
+         * @param angle The angle turned in degrees, negative angles go backwards
+         * @return This path
+         * @throws IllegalArgumentException When the radius or angle is not a finite number
+        **/
+        public Path arc(double radius, double angle)
+        {
+            checkFinite("radius", radius);
+            checkFinite("angle", angle);
+            return add(Math.abs(radius) * Math.toRadians(angle), radius < 0 ? -angle : angle);
+        }
+        /**
+         * Adds a turn on the spot
+         * @param angle The angle to turn in degrees, positive angles turn left (anticlockwise)
+         * @return This path
+         * @throws IllegalArgumentException When the angle is not a finite number
+        **/
+        public Path turn(double angle)
+        {
+            checkFinite("angle", angle);
+            return add(0, angle);
+        }
+        /**
+         * @return The number of segments in the path
+        **/
+        public int size()
+        {
+            return length;
+        }
+        private Path add(double distance, double heading)
+        {
+            if(length == distances.length)
+            {
+                distances = Arrays.copyOf(distances, length * 2);
+                headings = Arrays.copyOf(headings, length * 2);
+            }
+            distances[length] = distance;
+            headings[length] = heading;
+            length++;
+            return this;
+        }
+        private static void checkFinite(String name, double value)
+        {
+            if(Double.isNaN(value) || Double.isInfinite(value))
+                throw new IllegalArgumentException("Invalid "+name+" argument: "+value+"\n The "+name+" should be a finite number.");
+        }
+    }
+
+    /**
+     * A path turned into wheel rotations, split into stretches (runs) in which neither wheel changes direction,
+     * with a trapezoidal speed profile for each segment. Speeds are those of the faster wheel of each segment, in degrees per second.
+    **/
+    private static final class Plan
+    {
+        final double accel;
+        final double finishSpeed;
+        /**
+         * The first segment of each run, followed by the number of segments
+        **/
+        final int[] runStart;
+        /**
+         * How far each wheel has turned by the end of each segment, since the start of the path
+        **/
+        final double[] leftEnd;
+        final double[] rightEnd;
+        /**
+         * How fast each wheel turns compared with the faster one, negative when it turns backwards
+        **/
+        final double[] leftRatio;
+        final double[] rightRatio;
+        /**
+         * The speed at the start of each segment, the top speed reached and the speed at the end
+        **/
+        final double[] startSpeed;
+        final double[] peakSpeed;
+        final double[] endSpeed;
+        /**
+         * The time spent speeding up and cruising in each segment, and when it ends (in seconds since the start of its run)
+        **/
+        final double[] rampTime;
+        final double[] cruiseTime;
+        final double[] end;
+
+        Plan(Path path, double degreesPerUnit, double halfTrack, int speed, int acceleration)
+        {
+            this.accel = acceleration;
+            this.finishSpeed = speed * FINISH_FRACTION;
+            int n = 0;
+            double[] dl = new double[path.length];
+            double[] dr = new double[path.length];
+            for(int i=0;i<path.length;i++)
+            {
+                double turn = Math.toRadians(path.headings[i]) * halfTrack;
+                double l = (path.distances[i] - turn) * degreesPerUnit;
+                double r = (path.distances[i] + turn) * degreesPerUnit;
+                if(Math.abs(l) > MIN_SEGMENT || Math.abs(r) > MIN_SEGMENT)
+                {
+                    dl[n] = l;
+                    dr[n] = r;
+                    n++;
+                }
+            }
+            leftEnd = new double[n];
+            rightEnd = new double[n];
+            leftRatio = new double[n];
+            rightRatio = new double[n];
+            startSpeed = new double[n];
+            peakSpeed = new double[n];
+            endSpeed = new double[n];
+            rampTime = new double[n];
+            cruiseTime = new double[n];
+            end = new double[n];
+            double[] lengths = new double[n];
+            int[] starts = new int[n + 1];
+            int runs = 0;
+            for(int i=0;i<n;i++)
+            {
+                lengths[i] = Math.max(Math.abs(dl[i]), Math.abs(dr[i]));
+                leftRatio[i] = dl[i] / lengths[i];
+                rightRatio[i] = dr[i] / lengths[i];
+                leftEnd[i] = (i == 0 ? 0 : leftEnd[i - 1]) + dl[i];
+                rightEnd[i] = (i == 0 ? 0 : rightEnd[i - 1]) + dr[i];
+                //A new run starts whenever a wheel starts, stops or changes direction
+                if(i == 0 || Math.signum(dl[i]) != Math.signum(dl[i - 1]) || Math.signum(dr[i]) != Math.signum(dr[i - 1]))
+                    starts[runs++] = i;
+            }
+            starts[runs] = n;
+            runStart = Arrays.copyOf(starts, runs + 1);
+            for(int run=0;run<runs;run++)
+                profile(runStart[run], runStart[run + 1], lengths, speed);
+        }
+
+        /**
+         * Works out the speeds where the segments of a run meet, as fast as the segments on both sides allow
+         * while still being able to speed up from the start and slow down for the end, then profiles each segment
+        **/
+        private void profile(int first, int stop, double[] lengths, int speed)
+        {
+            int m = stop - first;
+            double[] junction = new double[m + 1];
+            for(int j=1;j<m;j++)
+                junction[j] = Math.min(speed, Math.sqrt(junction[j - 1] * junction[j - 1] + 2 * accel * lengths[first + j - 1]));
+            for(int j=m-1;j>0;j--)
+                junction[j] = Math.min(junction[j], Math.sqrt(junction[j + 1] * junction[j + 1] + 2 * accel * lengths[first + j]));
+            double time = 0;
+            for(int j=0;j<m;j++)
+            {
+                int i = first + j;
+                double vs = junction[j];
+                double ve = junction[j + 1];
+                double vp = Math.min(speed, Math.sqrt(accel * lengths[i] + (vs * vs + ve * ve) / 2));
+                //Rounding can leave the top speed just below an end speed
+                vp = Math.max(vp, Math.max(vs, ve));
+                double up = (vp - vs) / accel;
+                double down = (vp - ve) / accel;
+                double ramps = (vp * vp - vs * vs + vp * vp - ve * ve) / (2 * accel);
+                double cruise = Math.max(0, lengths[i] - ramps) / vp;
+                startSpeed[i] = vs;
+                peakSpeed[i] = vp;
+                endSpeed[i] = ve;
+                rampTime[i] = up;
+                cruiseTime[i] = cruise;
+                time += up + cruise + down;
+                end[i] = time;
+            }
+        }
+
+        int runs()
+        {
+            return runStart.length - 1;
+        }
+        double leftTotal()
+        {
+            return leftEnd.length == 0 ? 0 : leftEnd[leftEnd.length - 1];
+        }
+        double rightTotal()
+        {
+            return rightEnd.length == 0 ? 0 : rightEnd[rightEnd.length - 1];
+        }
+        /**
+         * @param i The segment
+         * @param t The time since the start of the segment, in seconds
+         * @return The speed of the faster wheel
+        **/
+        double velocity(int i, double t)
+        {
+            if(t < rampTime[i])
+                return startSpeed[i] + accel * t;
+            t -= rampTime[i];
+            if(t < cruiseTime[i])
+                return peakSpeed[i];
+            t -= cruiseTime[i];
+            return Math.max(endSpeed[i], peakSpeed[i] - accel * t);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package ShefRobot;
+
+import lejos.remote.ev3.*;
+import lejos.hardware.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Internal class that finds EV3s and opens connections to them.
+ *
+ * Discovered addresses are remembered for a while, so creating several Robots doesn't search the network each time.
+ * Connections are shared by every Robot using the same address, and addresses are connected to in parallel.
+ * A connection is forgotten when the last Robot using it is closed, or when a call on it fails, so the next Robot opens a new one.
+ * Failed attempts are retried after a delay that doubles each time, so a brick that is slow to answer is found quickly
+ * without flooding the network.
+**/
+final class Discovery
+{
+    /**
+     * How long discovered addresses are remembered
+    **/
+    private static final long CACHE_TTL_NS = TimeUnit.SECONDS.toNanos(30);
+    private static final int ATTEMPTS = 5;
+    private static final long FIRST_BACKOFF_MS = 250;
+    private static final long MAX_BACKOFF_MS = 4000;
+
+    private static final ExecutorService PROBES = Executors.newCachedThreadPool(new PortScheduler.DaemonThreadFactory("ShefRobot discovery"));
+    /**
+     * Open (or opening) connections, by address
+    **/
+    private static final ConcurrentHashMap<String, Connection> CONNECTIONS = new ConcurrentHashMap<String, Connection>();
+
+    private static List<String> cachedAddresses = Collections.emptyList();
+    private static long cachedAt;
+
+    private Discovery() {}
+
+    /**
+     * Returns the addresses of the EV3s on the local network or Bluetooth, searching again if the last search is too old or found nothing.
+     * @param refresh When true, always searches again
+    **/
+    static synchronized List<String> discover(boolean refresh)
+    {
+        if(refresh || cachedAddresses.isEmpty() || System.nanoTime() - cachedAt > CACHE_TTL_NS)
+        {
+            List<String> found = new ArrayList<String>();
+            BrickInfo[] bricks = BrickFinder.discover();
+            if(bricks != null)
+            {
+                for(BrickInfo info:bricks)
+                    found.add(info.getIPAddress());
+            }
+            cachedAddresses = Collections.unmodifiableList(found);
+            cachedAt = System.nanoTime();
+        }
+        return cachedAddresses;
+    }
+
+    /**
+     * A connection to an EV3, shared by the Robots using its address
+    **/
+    static final class Connection
+    {
+        private final String ip;
+        private final CompletableFuture<RemoteEV3> ev3 = new CompletableFuture<RemoteEV3>();
+        /**
+         * The number of Robots using the connection, guarded by CONNECTIONS
+        **/
+        private int users;
+
+        private Connection(String ip)
+        {
+            this.ip = ip;
+        }
+
+        /**
+         * @return The EV3, once the connection is open
+        **/
+        RemoteEV3 get()
+        {
+            return ev3.join();
+        }
+
+        /**
+         * Counts another Robot as using the connection
+         * @return False when the connection has already been forgotten, so a new one should be opened
+        **/
+        private boolean acquire()
+        {
+            synchronized(CONNECTIONS)
+            {
+                if(CONNECTIONS.get(ip) != this)
+                    return false;
+                users++;
+                return true;
+            }
+        }
+
+        /**
+         * Called when a Robot using the connection is closed. The connection is forgotten once no Robot is using it.
+        **/
+        void release()
+        {
+            synchronized(CONNECTIONS)
+            {
+                if(users > 0 && --users == 0)
+                    CONNECTIONS.remove(ip, this);
+            }
+        }
+
+        /**
+         * Called when a call on the connection fails, so later Robots open a new connection instead of sharing this one.
+         * Robots already using it carry on doing so.
+        **/
+        void evict()
+        {
+            CONNECTIONS.remove(ip, this);
+        }
+    }
+
+    /**
+     * Returns the connection to the EV3 at the given address, opening it if there isn't one already.
+     * Robots connecting to the same address at the same time wait for the same connection.
+     * The connection must be {@link Connection#release() released} when the Robot is closed.
+     * @throws RuntimeException When the connection can't be opened
+    **/
+    static Connection connect(String ip)
+    {
+        for(;;)
+        {
+            Connection connection = connectAsync(ip);
+            try
+            {
+                connection.ev3.join();
+            }
+            catch(CompletionException e)
+            {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException)e.getCause() : new RuntimeException(e.getCause());
+            }
+            //Forgotten while opening, e.g. a call on it has already failed, so open another
+            if(connection.acquire())
+                return connection;
+        }
+    }
+
+    private static Connection connectAsync(final String ip)
+    {
+        Connection connection = CONNECTIONS.get(ip);
+        if(connection == null)
+        {
+            final Connection opening = new Connection(ip);
+            connection = CONNECTIONS.putIfAbsent(ip, opening);
+            if(connection == null)
+            {
+                connection = opening;
+                PROBES.execute(new Runnable() {
+                    public void run() {
+                        try
+                        {
+                            opening.ev3.complete(new RemoteEV3(ip));
+                        }
+                        catch(Exception e)
+                        {
+                            //Forget the failure, so the next attempt tries again
+                            CONNECTIONS.remove(ip, opening);
+                            opening.ev3.completeExceptionally(e);
+                        }
+                    }
+                });
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Connects to the EV3 at the given address, retrying with exponential backoff
+     * @throws RuntimeException When every attempt fails
+    **/
+    static Connection connectWithRetry(String ip)
+    {
+        long backoff = FIRST_BACKOFF_MS;
+        for(int attempt=1;;attempt++)
+        {
+            try
+            {
+                return connect(ip);
+            }
+            catch(RuntimeException e)
+            {
+                if(attempt >= ATTEMPTS)
+                {
+                    System.err.println("Failed to connect to EV3 at "+ip+" after "+ATTEMPTS+" attempts.");
+                    throw e;
+                }
+                System.err.println("Failed to connect to EV3 at "+ip+": "+attempt+"/"+ATTEMPTS+" attempts.");
+                backoff = pause(backoff);
+            }
+        }
+    }
+
+    /**
+     * Finds the EV3s on the network and connects to whichever answers first, retrying with exponential backoff.
+     * @throws RuntimeException When no EV3 can be found or connected to
+    **/
+    static Connection connectFirst()
+    {
+        long backoff = FIRST_BACKOFF_MS;
+        for(int attempt=1;;attempt++)
+        {
+            Exception failure;
+            try
+            {
+                //Search again after a failure, in case the cached addresses are out of date
+                List<String> ips = discover(attempt > 1);
+                if(ips.isEmpty())
+                {
+                    System.out.println("No EV3s found - check your network/bluetooth connections!");
+                    failure = new RuntimeException("No EV3 found.");
+                }
+                else
+                {
+                    for(String ip:ips)
+                        System.out.println("EV3 found on ip: " + ip);
+                    return first(ips);
+                }
+            }
+            catch(Exception e)
+            {
+                failure = e;
+            }
+            if(attempt >= ATTEMPTS)
+            {
+                System.err.println("Failed to connect to EV3 after "+ATTEMPTS+" attempts.");
+                System.err.println("Please check the machines bluetooth is enabled and connected to the EV3.");
+                throw new RuntimeException(failure);
+            }
+            System.err.println("Failed to connect to EV3: "+attempt+"/"+ATTEMPTS+" attempts.");
+            backoff = pause(backoff);
+        }
+    }
+
+    /**
+     * Connects to every address at once, and returns the first connection to open
+    **/
+    private static Connection first(List<String> ips) throws Exception
+    {
+        final CompletableFuture<Connection> first = new CompletableFuture<Connection>();
+        final CountDownLatch failures = new CountDownLatch(ips.size());
+        for(final String ip:ips)
+        {
+            final Connection connection = connectAsync(ip);
+            connection.ev3.whenComplete((ev3, e) -> {
+                if(e == null && connection.acquire())
+                {
+                    //Connections that lose are forgotten again unless another Robot is using them
+                    if(!first.complete(connection))
+                        connection.release();
+                }
+                else
+                {
+                    if(e == null)
+                        e = new RuntimeException("The connection to "+ip+" was closed.");
+                    failures.countDown();
+                    if(failures.getCount() == 0)
+                        first.completeExceptionally(e);
+                }
+            });
+        }
+        try
+        {
+            return first.get();
+        }
+        catch(ExecutionException e)
+        {
+            throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+        }
+    }
+
+    /**
+     * Runs a task for each address in parallel, and returns the results in the same order.
+     * Addresses whose task fails are reported and left out.
+    **/
+    static <R> List<R> forEach(List<String> ips, final ConnectTask<R> task)
+    {
+        List<Future<R>> futures = new ArrayList<Future<R>>();
+        for(final String ip:ips)
+        {
+            futures.add(PROBES.submit(new Callable<R>() {
+                public R call() throws Exception {
+                    return task.connect(ip);
+                }
+            }));
+        }
+        List<R> results = new ArrayList<R>();
+        for(int i=0;i<futures.size();i++)
+        {
+            try
+            {
+                results.add(futures.get(i).get());
+            }
+            catch(ExecutionException e)
+            {
+                System.err.println("Failed to connect to EV3 at "+ips.get(i)+": "+e.getCause());
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return results;
+    }
+
+    interface ConnectTask<R>
+    {
+        R connect(String ip) throws Exception;
+    }
+
+    /**
+     * Waits before the next attempt
+     * @return The wait before the attempt after that
+    **/
+    private static long pause(long backoff)
+    {
+        System.err.println("Retrying in "+backoff+"ms.");
+        try
+        {
+            Thread.sleep(backoff);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return Math.min(backoff * 2, MAX_BACKOFF_MS);
+    }
+}
@@ -0,0 +1,170 @@
+package ShefRobot;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Internal class that runs an iteration at a fixed rate on a thread of its own, for {@link ControlLoop} and {@link Odometry}.
+ *
+ * It measures how late each iteration starts (jitter) and how long it takes, and counts the iterations that took longer
+ * than the period (overruns). Periods missed because of an overrun are skipped, rather than run back to back to catch up.
+**/
+final class FixedRateRunner
+{
+    /**
+     * The work done every period
+    **/
+    interface Iteration
+    {
+        /**
+         * @param start When the iteration started, as a {@link System#nanoTime()}
+         * @param sinceLast The time since the last iteration started (the period, for the first one), in nanoseconds
+         * @return False to stop running, e.g. after a failure
+        **/
+        boolean run(long start, long sinceLast);
+    }
+
+    private final String name;
+    private final Iteration iteration;
+    private volatile boolean running;
+    private Thread thread;
+
+    private final MetricsRecorder.Histogram jitter = new MetricsRecorder.Histogram();
+    private final MetricsRecorder.Histogram execution = new MetricsRecorder.Histogram();
+    private final LongAdder iterations = new LongAdder();
+    private final LongAdder overruns = new LongAdder();
+    private final LongAdder missed = new LongAdder();
+
+    /**
+     * @param name The name of the thread
+     * @param iteration The work done every period
+    **/
+    FixedRateRunner(String name, Iteration iteration)
+    {
+        this.name = name;
+        this.iteration = iteration;
+    }
+
+    /**
+     * Starts running the iteration, which the caller has checked isn't {@link #isRunning() running} already
+     * @param period How often to run the iteration, in nanoseconds
+    **/
+    synchronized void start(final long period)
+    {
+        running = true;
+        thread = new PortScheduler.DaemonThreadFactory(name).newThread(new Runnable() {
+            public void run() {
+                loop(period);
+            }
+        });
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stops running, and waits for the current iteration to finish unless called by the iteration itself
+     * @return False if it had never been started, or had been stopped already
+    **/
+    boolean stop()
+    {
+        Thread t;
+        synchronized(this)
+        {
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        if(t == null)
+            return false;
+        if(t != Thread.currentThread())
+        {
+            LockSupport.unpark(t);
+            try
+            {
+                t.join();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return true;
+    }
+
+    boolean isRunning()
+    {
+        return running;
+    }
+
+    long getIterations()
+    {
+        return iterations.sum();
+    }
+    long getOverruns()
+    {
+        return overruns.sum();
+    }
+    long getMissedPeriods()
+    {
+        return missed.sum();
+    }
+    PortMetrics.Latency getJitter()
+    {
+        return jitter.snapshot();
+    }
+    PortMetrics.Latency getExecution()
+    {
+        return execution.snapshot();
+    }
+    void resetMetrics()
+    {
+        jitter.reset();
+        execution.reset();
+        iterations.reset();
+        overruns.reset();
+        missed.reset();
+    }
+
+    /**
+     * @param executionName What an iteration is called in the description, e.g. {@code "execution"}
+     * @return The overruns and the times, for the toString of the owner
+    **/
+    String describe(String executionName)
+    {
+        PortMetrics.Latency j = getJitter();
+        PortMetrics.Latency e = getExecution();
+        return getOverruns()+" overruns, "+getMissedPeriods()+" missed"
+            +String.format(", jitter p50 %.0fus p99 %.0fus, %s p50 %.0fus p99 %.0fus",
+                j.getP50()/1e3, j.getP99()/1e3, executionName, e.getP50()/1e3, e.getP99()/1e3);
+    }
+
+    private void loop(long period)
+    {
+        long next = System.nanoTime();
+        long last = next - period;
+        while(running)
+        {
+            long start = System.nanoTime();
+            jitter.record(start - next);
+            if(!iteration.run(start, start - last))
+            {
+                running = false;
+                return;
+            }
+            last = start;
+            long end = System.nanoTime();
+            execution.record(end - start);
+            iterations.increment();
+            next += period;
+            if(end - next > 0)
+            {//Overran, so skip the periods that have already gone
+                long skipped = (end - next) / period + 1;
+                overruns.increment();
+                missed.add(skipped);
+                next += skipped * period;
+            }
+            for(long left = next - System.nanoTime(); left > 0 && running; left = next - System.nanoTime())
+                LockSupport.parkNanos(left);
+        }
+    }
+}
@@ -0,0 +1,613 @@
+package ShefRobot;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records every command sent to the motors and sensors of a {@link Robot}, and every answer, so that a run which went wrong can be looked at afterwards.
+ *
+ * Each motor command, sensor read (including background {@link Sensor#startSampling(int) samples}) and sensor command is written as a fixed-size
+ * binary record, holding what was asked, its argument, the result and when it started and finished (from {@link System#nanoTime()}).
+ * The records go into a ring in a memory-mapped file, so once the file is full the oldest records are overwritten.
+ * Writing a record is a handful of stores into memory, with no locks, system calls or allocation, so recording can be left on at the full sample rate.
+ *
+ * As the file is mapped into memory, records written before the program crashed (even if the JVM itself crashed) are kept by the operating system.
+ * {@link #force()} writes them to the disk, which is only needed to survive the computer itself crashing.
+ * Each record is marked as complete once it has been fully written, so a record that was only half written when the program crashed is left out when reading.
+ *
+ * A recording can be read with {@link Reader}, printed with {@code java ShefRobot.FlightRecorder <file>}, or played back into a {@link Robot} with a {@link ReplayEV3}.
+ * <pre>
+ * Robot robot = new Robot();
+ * robot.setFlightRecorder(FlightRecorder.open(new File("run.rec"), 1000000));
+ * </pre>
+ * @see Robot#setFlightRecorder(FlightRecorder)
+ * @see ReplayEV3
+**/
+public final class FlightRecorder implements Closeable
+{
+    /**
+     * What a record is of
+    **/
+    public enum Kind {
+        /** A command sent to a motor, or a reading taken from it */
+        MOTOR,
+        /** A sample read from a sensor, the action is the index of the mode it was read in */
+        SENSOR_SAMPLE,
+        /** Any other command sent to a sensor, e.g. switching on the floodlight */
+        SENSOR_COMMAND
+    }
+
+    static final int MAGIC = 0x53524652;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 64;
+    /**
+     * The most values a record can hold, which is enough for any sensor sample
+    **/
+    public static final int MAX_VALUES = 7;
+    /**
+     * The most records a file can hold, so it can be mapped in one piece
+    **/
+    public static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+    //Header layout
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_RECORD_SIZE = 8;
+    private static final int H_CAPACITY = 12;
+    private static final int H_WALL_MILLIS = 16;
+    private static final int H_NANOS = 24;
+    //Record layout
+    private static final int R_SEQUENCE = 0;
+    private static final int R_START = 8;
+    private static final int R_END = 16;
+    private static final int R_KIND = 24;
+    private static final int R_PORT = 25;
+    private static final int R_DEVICE = 26;
+    private static final int R_FLAGS = 27;
+    private static final int R_ACTION = 28;
+    private static final int R_COUNT = 30;
+    private static final int R_ARGUMENT = 32;
+    private static final int R_VALUES = 36;
+
+    private static final int FLAG_FAILED = 1;
+    private static final int FLAG_HAS_ARGUMENT = 2;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final AtomicLong next = new AtomicLong();
+    private volatile boolean closed;
+
+    private FlightRecorder(File file, RandomAccessFile raf, MappedByteBuffer buffer, int capacity)
+    {
+        this.file = file;
+        this.raf = raf;
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates a new recording, replacing anything already in the file.
+     * @param file The file to record into
+     * @param capacity The number of records kept, each taking {@value #RECORD_SIZE} bytes of the file
+     * @return The recorder
+     * @throws IllegalArgumentException When the capacity is below 1 or above {@link #MAX_CAPACITY}
+     * @throws IOException When the file can't be created
+    **/
+    public static FlightRecorder open(File file, int capacity) throws IOException
+    {
+        if(capacity < 1 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("Invalid capacity argument: "+capacity+"\n The capacity should be within the range 1-"+MAX_CAPACITY+".");
+        long size = HEADER_SIZE + (long)capacity * RECORD_SIZE;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            //Emptied first, so no records are left over from an earlier recording
+            raf.setLength(0);
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(H_MAGIC, MAGIC);
+            buffer.putInt(H_VERSION, VERSION);
+            buffer.putInt(H_RECORD_SIZE, RECORD_SIZE);
+            buffer.putInt(H_CAPACITY, capacity);
+            buffer.putLong(H_WALL_MILLIS, System.currentTimeMillis());
+            buffer.putLong(H_NANOS, System.nanoTime());
+            return new FlightRecorder(file, raf, buffer, capacity);
+        }
+        catch(IOException e)
+        {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The file being recorded into
+    **/
+    public File getFile()
+    {
+        return file;
+    }
+    /**
+     * @return The number of records the file holds
+    **/
+    public int getCapacity()
+    {
+        return capacity;
+    }
+    /**
+     * @return The number of records written since the recording started, including any that have since been overwritten
+    **/
+    public long getRecordCount()
+    {
+        return next.get();
+    }
+
+    /**
+     * Writes the records to the disk, so they are kept even if the computer crashes.
+     * This isn't needed for them to survive the program (or the JVM) crashing.
+    **/
+    public void force()
+    {
+        if(!closed)
+            buffer.force();
+    }
+
+    /**
+     * Stops recording and writes the records to the disk.
+     * Anything sent to the recorder afterwards is ignored.
+    **/
+    @Override
+    public void close() throws IOException
+    {
+        if(closed)
+            return;
+        closed = true;
+        buffer.force();
+        raf.close();
+    }
+
+    /**
+     * Records a command sent to a motor
+     * @param port The port of the motor
+     * @param type The type of the motor
+     * @param action The command
+     * @param argument The command's argument, or {@code null}
+     * @param result The value returned, or {@code null}
+     * @param failed True if the command threw an exception
+    **/
+    void motor(Motor.Port port, Motor.Type type, MotorAction action, Integer argument, Integer result, long start, long end, boolean failed)
+    {
+        long seq = claim();
+        if(seq < 0)
+            return;
+        int at = slotOffset(seq);
+        int count = 0;
+        if(result != null)
+        {
+            buffer.putInt(at + R_VALUES, result);
+            count = 1;
+        }
+        write(at, seq, Kind.MOTOR, port.ordinal(), type.ordinal(), action.ordinal(), argument, count, start, end, failed);
+    }
+
+    /**
+     * Records a sample read from a sensor
+     * @param port The port of the sensor
+     * @param type The type of the sensor
+     * @param mode The index of the mode the sample was read in, in the sensor type's modes
+    **/
+    void sample(Sensor.Port port, Sensor.Type type, int mode, float[] values, int offset, int size, long start, long end)
+    {
+        long seq = claim();
+        if(seq < 0)
+            return;
+        int at = slotOffset(seq);
+        int count = Math.min(MAX_VALUES, Math.min(size, values.length - offset));
+        for(int i=0;i<count;i++)
+            buffer.putFloat(at + R_VALUES + 4 * i, values[offset + i]);
+        write(at, seq, Kind.SENSOR_SAMPLE, port.ordinal(), type.ordinal(), mode, null, count, start, end, false);
+    }
+
+    /**
+     * Records any other command sent to a sensor
+     * @param action The ordinal of the sensor's action
+     * @param argument The command's argument (only the first value is kept), or {@code null}
+     * @param result The values returned, or {@code null}
+    **/
+    void sensorCommand(Sensor.Port port, Sensor.Type type, int action, float[] argument, float[] result, long start, long end, boolean failed)
+    {
+        long seq = claim();
+        if(seq < 0)
+            return;
+        int at = slotOffset(seq);
+        int count = result == null ? 0 : Math.min(MAX_VALUES, result.length);
+        for(int i=0;i<count;i++)
+            buffer.putFloat(at + R_VALUES + 4 * i, result[i]);
+        Integer arg = argument == null || argument.length == 0 ? null : Float.floatToRawIntBits(argument[0]);
+        write(at, seq, Kind.SENSOR_COMMAND, port.ordinal(), type.ordinal(), action, arg, count, start, end, failed);
+    }
+
+    /**
+     * Takes the next slot in the ring, marking it as being written
+     * @return The sequence number of the record, or -1 when the recorder has been closed
+    **/
+    private long claim()
+    {
+        if(closed)
+            return -1;
+        long seq = next.getAndIncrement();
+        //Cleared first, so a record overwritten part way through a crash isn't mistaken for the old one
+        buffer.putLong(slotOffset(seq) + R_SEQUENCE, 0);
+        return seq;
+    }
+
+    private int slotOffset(long seq)
+    {
+        return HEADER_SIZE + (int)(seq % capacity) * RECORD_SIZE;
+    }
+
+    private void write(int at, long seq, Kind kind, int port, int device, int action, Integer argument, int count, long start, long end, boolean failed)
+    {
+        buffer.putLong(at + R_START, start);
+        buffer.putLong(at + R_END, end);
+        buffer.put(at + R_KIND, (byte)kind.ordinal());
+        buffer.put(at + R_PORT, (byte)port);
+        buffer.put(at + R_DEVICE, (byte)device);
+        buffer.put(at + R_FLAGS, (byte)((failed ? FLAG_FAILED : 0) | (argument != null ? FLAG_HAS_ARGUMENT : 0)));
+        buffer.putShort(at + R_ACTION, (short)action);
+        buffer.put(at + R_COUNT, (byte)count);
+        buffer.putInt(at + R_ARGUMENT, argument == null ? 0 : argument);
+        //Written last, which marks the record as complete
+        buffer.putLong(at + R_SEQUENCE, seq + 1);
+    }
+
+    /**
+     * Prints a recording, oldest record first
+     * @param args The file to print
+    **/
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length != 1)
+        {
+            System.err.println("Usage: java ShefRobot.FlightRecorder <file>");
+            System.exit(1);
+        }
+        try(Reader reader = new Reader(new File(args[0])))
+        {
+            Record record = new Record();
+            while(reader.next(record))
+                System.out.println(record);
+        }
+    }
+
+    /**
+     * Reads a recording, oldest record first.
+     * The file is mapped rather than loaded, so recordings much larger than the memory of the program can be read.
+     * A recording can be read while it is still being written, in which case the records written after the reader was opened may be left out.
+    **/
+    public static final class Reader implements Closeable
+    {
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private final long wallMillis;
+        private final long nanos;
+        /**
+         * The slot of the oldest record, and how many slots have been read since
+        **/
+        private final int first;
+        private int read;
+
+        /**
+         * Opens a recording
+         * @param file The file written by a {@link FlightRecorder}
+         * @throws IOException When the file can't be read, or isn't a recording
+        **/
+        public Reader(File file) throws IOException
+        {
+            raf = new RandomAccessFile(file, "r");
+            try
+            {
+                long size = raf.length();
+                if(size < HEADER_SIZE)
+                    throw new IOException("Not a flight recording: " + file);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if(buffer.getInt(H_MAGIC) != MAGIC || buffer.getInt(H_VERSION) != VERSION || buffer.getInt(H_RECORD_SIZE) != RECORD_SIZE)
+                    throw new IOException("Not a flight recording, or from a different version of ShefRobot: " + file);
+                capacity = buffer.getInt(H_CAPACITY);
+                if(capacity < 1 || HEADER_SIZE + (long)capacity * RECORD_SIZE > size)
+                    throw new IOException("The flight recording is cut short: " + file);
+                wallMillis = buffer.getLong(H_WALL_MILLIS);
+                nanos = buffer.getLong(H_NANOS);
+            }
+            catch(IOException e)
+            {
+                raf.close();
+                throw e;
+            }
+            //The slot after the newest record holds the oldest one, once the ring has gone all the way round
+            long newest = 0;
+            int newestSlot = -1;
+            for(int slot=0;slot<capacity;slot++)
+            {
+                long seq = sequence(slot);
+                if(seq > newest)
+                {
+                    newest = seq;
+                    newestSlot = slot;
+                }
+            }
+            first = newest <= capacity ? 0 : (newestSlot + 1) % capacity;
+        }
+
+        /**
+         * @return The number of records the file holds
+        **/
+        public int getCapacity()
+        {
+            return capacity;
+        }
+
+        /**
+         * Reads the next complete record
+         * @param into The record to read into, which can be reused for every record so reading doesn't allocate
+         * @return False when there are no more records
+        **/
+        public boolean next(Record into)
+        {
+            while(read < capacity)
+            {
+                int slot = (first + read++) % capacity;
+                long seq = sequence(slot);
+                //Empty, half written, or from a lap of the ring that has since been partly overwritten
+                if(seq == 0 || (seq - 1) % capacity != slot)
+                    continue;
+                int at = HEADER_SIZE + slot * RECORD_SIZE;
+                into.sequence = seq - 1;
+                into.start = buffer.getLong(at + R_START);
+                into.end = buffer.getLong(at + R_END);
+                into.kind = Kind.values()[buffer.get(at + R_KIND)];
+                into.port = buffer.get(at + R_PORT);
+                into.device = buffer.get(at + R_DEVICE);
+                int flags = buffer.get(at + R_FLAGS);
+                into.failed = (flags & FLAG_FAILED) != 0;
+                into.hasArgument = (flags & FLAG_HAS_ARGUMENT) != 0;
+                into.action = buffer.getShort(at + R_ACTION);
+                into.count = Math.min(MAX_VALUES, buffer.get(at + R_COUNT));
+                into.argument = buffer.getInt(at + R_ARGUMENT);
+                for(int i=0;i<into.count;i++)
+                    into.values[i] = buffer.getInt(at + R_VALUES + 4 * i);
+                into.wallMillis = wallMillis;
+                into.nanos = nanos;
+                //Catch the writer overwriting the slot while it was being read
+                if(sequence(slot) != seq)
+                    continue;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return How far through the file the reader has got, to go back to with {@link #seek(int)}
+        **/
+        int position()
+        {
+            return read;
+        }
+
+        /**
+         * Goes back to a position returned by {@link #position()}
+        **/
+        void seek(int position)
+        {
+            read = position;
+        }
+
+        private long sequence(int slot)
+        {
+            return buffer.getLong(HEADER_SIZE + slot * RECORD_SIZE + R_SEQUENCE);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * One record from a recording, see {@link Reader#next(Record)}
+    **/
+    public static final class Record
+    {
+        long sequence;
+        long start;
+        long end;
+        Kind kind;
+        int port;
+        int device;
+        boolean failed;
+        boolean hasArgument;
+        int action;
+        int count;
+        int argument;
+        final int[] values = new int[MAX_VALUES];
+        long wallMillis;
+        long nanos;
+
+        /**
+         * @return The position of the record in the recording, starting from 0
+        **/
+        public long getSequence()
+        {
+            return sequence;
+        }
+        /**
+         * @return When the command was started, from {@link System#nanoTime()} in the program that recorded it
+        **/
+        public long getStartNanos()
+        {
+            return start;
+        }
+        /**
+         * @return When the command finished, from {@link System#nanoTime()} in the program that recorded it
+        **/
+        public long getEndNanos()
+        {
+            return end;
+        }
+        /**
+         * @return Roughly when the command was started, in milliseconds since 1970 as {@link System#currentTimeMillis()}
+        **/
+        public long getWallMillis()
+        {
+            return wallMillis + (start - nanos) / 1000000;
+        }
+        public Kind getKind()
+        {
+            return kind;
+        }
+        /**
+         * @return The motor port of a {@link Kind#MOTOR} record
+        **/
+        public Motor.Port getMotorPort()
+        {
+            return kind == Kind.MOTOR ? Motor.Port.values()[port] : null;
+        }
+        /**
+         * @return The sensor port of a sensor record
+        **/
+        public Sensor.Port getSensorPort()
+        {
+            return kind == Kind.MOTOR ? null : Sensor.Port.values()[port];
+        }
+        /**
+         * @return The name of the command, or for a {@link Kind#SENSOR_SAMPLE} the LeJOS name of the mode the sample was read in (e.g. {@code "Red"})
+        **/
+        public String getAction()
+        {
+            switch(kind) {
+                case MOTOR:
+                    return action < MotorAction.values().length ? MotorAction.values()[action].name() : "#" + action;
+                case SENSOR_SAMPLE:
+                    String[] modes = Sensor.Type.values()[device].modes;
+                    return action < modes.length ? modes[action] : "#" + action;
+                default:
+                    return sensorCommandName(device, action);
+            }
+        }
+        /**
+         * @return The index of the mode a {@link Kind#SENSOR_SAMPLE} was read in, or the ordinal of the command otherwise
+        **/
+        public int getActionIndex()
+        {
+            return action;
+        }
+        /**
+         * @return The name of the type of device, e.g. {@code "L"} for a large motor or {@code "COLOR"} for a colour sensor
+        **/
+        public String getDevice()
+        {
+            return kind == Kind.MOTOR ? Motor.Type.values()[device].name() : Sensor.Type.values()[device].name();
+        }
+        public boolean hasArgument()
+        {
+            return hasArgument;
+        }
+        /**
+         * @return The argument of a motor command
+        **/
+        public int getArgument()
+        {
+            return argument;
+        }
+        /**
+         * @return The first value of the argument of a sensor command
+        **/
+        public float getFloatArgument()
+        {
+            return Float.intBitsToFloat(argument);
+        }
+        /**
+         * @return True if the command threw an exception
+        **/
+        public boolean isFailed()
+        {
+            return failed;
+        }
+        /**
+         * @return The number of values in the result
+        **/
+        public int getValueCount()
+        {
+            return count;
+        }
+        /**
+         * @param i The index of the value
+         * @return A value of a motor's result
+        **/
+        public int getInt(int i)
+        {
+            return values[i];
+        }
+        /**
+         * @param i The index of the value
+         * @return A value of a sensor's result
+        **/
+        public float getFloat(int i)
+        {
+            return Float.intBitsToFloat(values[i]);
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append(sequence).append(' ').append(start).append(' ')
+                .append(String.format("%.3fms ", (end - start) / 1e6))
+                .append(kind == Kind.MOTOR ? getMotorPort().name() : getSensorPort().name()).append(' ')
+                .append(getDevice()).append(' ').append(getAction());
+            if(hasArgument)
+                sb.append('(').append(kind == Kind.MOTOR ? String.valueOf(argument) : String.valueOf(getFloatArgument())).append(')');
+            if(count > 0)
+            {
+                sb.append(" =");
+                for(int i=0;i<count;i++)
+                    sb.append(' ').append(kind == Kind.MOTOR ? String.valueOf(getInt(i)) : String.valueOf(getFloat(i)));
+            }
+            if(failed)
+                sb.append(" FAILED");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Names a sensor command from its type and ordinal
+    **/
+    private static String sensorCommandName(int device, int action)
+    {
+        Enum<?>[] actions;
+        switch(Sensor.Type.values()[device]) {
+            case TOUCH:
+                actions = TouchSensorAction.values();
+                break;
+            case ULTRASOUND:
+                actions = UltrasonicSensorAction.values();
+                break;
+            case GYRO:
+                actions = GyroSensorAction.values();
+                break;
+            default:
+                actions = ColorSensorAction.values();
+        }
+        return action < actions.length ? actions[action].name() : "#" + action;
+    }
+}
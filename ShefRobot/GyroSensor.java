@@ -4,10 +4,8 @@ import lejos.remote.ev3.*;
 import ShefRobot.*;
 import ShefRobot.util.*;
 import java.rmi.RemoteException;
-import lejos.hardware.sensor.EV3GyroSensor;
-enum GyroSensorAction{
-    GET_VALUE, RESET, GET_RATE, GET_ANGLE, GET_RATE_AND_ANGLE;
-}
+import lejos.robotics.SampleProvider;
+import java.util.concurrent.CompletableFuture;
 /**
  * This class represents an EV3 GyroSensor which can detect its angle and the rate of change
  * Each EV3 should contain 1 gyro sensor
@@ -24,6 +22,18 @@ public class GyroSensor extends Sensor<GyroSensorAction>
     }
 
 
+    /**
+     * Starts sampling the sensor in the background in its combined angle and rate mode,
+     * after which {@link GyroSensor#getAngle()}, {@link GyroSensor#getRate()} and {@link GyroSensor#getRateAndAngle()}
+     * all return the latest sample immediately instead of asking the robot.
+     * @param periodMs How often to read the sensor, in milliseconds
+     * @see Sensor#startSampling(int)
+    **/
+    @Override
+    public void startSampling(int periodMs)
+    {
+        startSampling(GyroSensorAction.GET_RATE_AND_ANGLE, periodMs);
+    }
     /**
      * Resets the Gyro sensor
      * The sensor must be still when this method is called, else it may become mis-calibrated
@@ -38,18 +48,40 @@ public class GyroSensor extends Sensor<GyroSensorAction>
     **/
     public float getAngle()
     {
+        float[] cached = cachedSample(GyroSensorAction.GET_RATE_AND_ANGLE);
+        if (cached != null)
+            return cached[0];
         float[] result = sendAction(GyroSensorAction.GET_ANGLE);
         return result[0];
     }
+    /**
+     * Asynchronous version of {@link GyroSensor#getAngle()}, which returns immediately.
+     * @return A future that completes with the angle
+    **/
+    public CompletableFuture<Float> getAngleAsync()
+    {
+        return sendActionAsync(GyroSensorAction.GET_ANGLE, null).thenApply(result -> result[0]);
+    }
     /**
      * Measures angular velocity of the sensor.
      * @return Returns a value
     **/
     public float getRate()
     {
+        float[] cached = cachedSample(GyroSensorAction.GET_RATE_AND_ANGLE);
+        if (cached != null)
+            return cached[1];
         float[] result = sendAction(GyroSensorAction.GET_RATE);
         return result[0];
     }
+    /**
+     * Asynchronous version of {@link GyroSensor#getRate()}, which returns immediately.
+     * @return A future that completes with the angular velocity
+    **/
+    public CompletableFuture<Float> getRateAsync()
+    {
+        return sendActionAsync(GyroSensorAction.GET_RATE, null).thenApply(result -> result[0]);
+    }
     /**
      * Measures orientation and angular velocity of the sensor.
      * @return Returns a value
@@ -60,50 +92,57 @@ public class GyroSensor extends Sensor<GyroSensorAction>
         return result;
     }
     /**
-     * Convenience method  for sending an action and waiting for a response
-     * @param act The action to be sent
-     * @return The response received from the sensor
-    **/ 
-    private float[] sendAction(GyroSensorAction act)
+     * Asynchronous version of {@link GyroSensor#getRateAndAngle()}, which returns immediately.
+     * Both values come from a single read of the sensor.
+     * @return A future that completes with the angle and the angular velocity
+    **/
+    public CompletableFuture<float[]> getRateAndAngleAsync()
     {
-        Pair<GyroSensorAction,float[]> action = new Pair<GyroSensorAction,float[]>(act, null);
-        this.addAction(action);
-        while (action.getValue() == null) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {}
-        }
-        return action.getValue();
+        return sendActionAsync(GyroSensorAction.GET_RATE_AND_ANGLE, null);
     }
     /**
-     * Called by the superclass to forward subclass specific actions
+     * Called by the superclass to find the sensor mode used by actions that read the sensor
     **/
-    protected void subAction(Pair<GyroSensorAction,float[]> act) throws RemoteException
+    protected SampleProvider getSampleProvider(GyroSensorAction act)
     {
-        float[] samples;
-        switch (act.key) {
+        switch (act) {
             case GET_VALUE:
-                samples = new float[this.sensor.sampleSize()];
-                this.sensor.fetchSample(samples, 0);
-                act.setValue(samples);
-                break;
-            case RESET:
-                ((EV3GyroSensor)this.sensor).reset();
-                act.setValue(new float[1]);//None null value, so thread continues
-                break;
+                return this.sensor;
             case GET_RATE:
-                samples = new float[((EV3GyroSensor)this.sensor).getRateMode().sampleSize()];
-                ((EV3GyroSensor)this.sensor).getRateMode().fetchSample(samples, 0);
-                act.setValue(samples);
+                return this.sensor.getMode("Rate");
             case GET_ANGLE:
-                samples = new float[((EV3GyroSensor)this.sensor).getAngleMode().sampleSize()];
-                ((EV3GyroSensor)this.sensor).getAngleMode().fetchSample(samples, 0);
-                act.setValue(samples);
-                break;
+                return this.sensor.getMode("Angle");
+            case GET_RATE_AND_ANGLE:
+                return this.sensor.getMode("Angle and Rate");
+            default:
+                return null;
+        }
+    }
+    /**
+     * Called by the superclass to find the mode an action reads in
+    **/
+    @Override
+    protected String getModeName(GyroSensorAction act)
+    {
+        switch (act) {
+            case GET_RATE:
+                return "Rate";
+            case GET_ANGLE:
+                return "Angle";
             case GET_RATE_AND_ANGLE:
-                samples = new float[((EV3GyroSensor)this.sensor).getAngleAndRateMode().sampleSize()];
-                ((EV3GyroSensor)this.sensor).getAngleAndRateMode().fetchSample(samples, 0);
-                act.setValue(samples);
+                return "Angle and Rate";
+            default:
+                return null;
+        }
+    }
+    /**
+     * Called by the superclass to forward subclass specific actions
+    **/
+    protected void subAction(PortAction<GyroSensorAction,float[]> act) throws RemoteException
+    {
+        switch (act.key) {
+            case RESET:
+                this.sensor.reset();
                 break;
             default: 
                 System.err.println("[" + this.port.name() + "] Asked for Action: " + act.key + " on a GyroSensor...");  
@@ -0,0 +1,5 @@
+package ShefRobot;
+
+enum GyroSensorAction{
+    GET_VALUE, RESET, GET_RATE, GET_ANGLE, GET_RATE_AND_ANGLE;
+}
@@ -0,0 +1,141 @@
+package ShefRobot;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Internal class that collects the metrics of one port, see {@link PortMetrics}.
+ * Recording is lock free, so it can be done from the port thread and from callers without slowing either down.
+**/
+class MetricsRecorder
+{
+    /**
+     * Number of buckets per power of two in the histograms, which keeps every value within 12.5% of the bucket it is counted in
+    **/
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    /**
+     * Enough buckets to hold any positive long
+    **/
+    static final int BUCKETS = (63 - SUB_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    final Histogram queueWait = new Histogram();
+    final Histogram execution = new Histogram();
+    final Histogram wakeup = new Histogram();
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    /**
+     * Records an action being queued
+     * @param depth The length of the queue after the action was added
+    **/
+    void enqueued(int depth)
+    {
+        enqueued.increment();
+        int max;
+        while(depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth));
+    }
+    void completed()
+    {
+        completed.increment();
+    }
+    void failed()
+    {
+        failed.increment();
+    }
+    void cancelled()
+    {
+        cancelled.increment();
+    }
+    void coalesced()
+    {
+        coalesced.increment();
+    }
+
+    /**
+     * Clears all the counters and histograms
+    **/
+    void reset()
+    {
+        enqueued.reset();
+        completed.reset();
+        failed.reset();
+        cancelled.reset();
+        coalesced.reset();
+        maxQueueDepth.set(0);
+        queueWait.reset();
+        execution.reset();
+        wakeup.reset();
+    }
+
+    /**
+     * @param port The name of the port
+     * @param queueDepth The current length of the queue
+     * @return A copy of the current metrics
+    **/
+    PortMetrics snapshot(String port, int queueDepth)
+    {
+        return new PortMetrics(port, enqueued.sum(), completed.sum(), failed.sum(), cancelled.sum(), coalesced.sum(),
+            queueDepth, maxQueueDepth.get(), queueWait.snapshot(), execution.snapshot(), wakeup.snapshot());
+    }
+
+    /**
+     * Returns the bucket a value is counted in.
+     * Values below {@link #SUB_BUCKETS} have a bucket each, after which every power of two is split into {@link #SUB_BUCKETS} buckets.
+    **/
+    static int bucket(long value)
+    {
+        if(value < SUB_BUCKETS)
+            return value < 0 ? 0 : (int)value;
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (msb - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+    /**
+     * Returns the smallest value counted in a bucket
+    **/
+    static long lowestValue(int bucket)
+    {
+        if(bucket < SUB_BUCKETS)
+            return bucket;
+        int msb = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        return (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << (msb - SUB_BITS);
+    }
+
+    /**
+     * A histogram of times in nanoseconds, with buckets that grow with the value (like an HdrHistogram)
+    **/
+    static class Histogram
+    {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos)
+        {
+            if(nanos < 0)
+                nanos = 0;
+            counts.incrementAndGet(bucket(nanos));
+            total.add(nanos);
+            long m;
+            while(nanos > (m = max.get()) && !max.compareAndSet(m, nanos));
+        }
+        void reset()
+        {
+            for(int i=0;i<BUCKETS;i++)
+                counts.set(i, 0);
+            total.reset();
+            max.set(0);
+        }
+        PortMetrics.Latency snapshot()
+        {
+            long[] copy = new long[BUCKETS];
+            for(int i=0;i<BUCKETS;i++)
+                copy[i] = counts.get(i);
+            return new PortMetrics.Latency(copy, total.sum(), max.get());
+        }
+    }
+}
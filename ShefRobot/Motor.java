@@ -6,20 +6,25 @@ import lejos.robotics.*;
 import java.rmi.*;
 import ShefRobot.util.*;
 import ShefRobot.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
-enum MotorAction {
-    FORWARD, BACKWARD, STOP, SET_SPEED, ROTATE, ROTATE_ASYNC, ROTATE_TO, ROTATE_TO_ASYNC, RESET_TACHO, GET_SPEED, GET_MAX_SPEED, GET_TACHO_COUNT, GET_IS_STALLED, GET_IS_MOVING;
-}
 /**
  * This class represents a generic motor, 
  * it is must be instantiated as a subclass of the correct motor model (Large or Medium).
  * This allows the motor objects to be calibrated correctly.
  * 
  * Any methods called on the same Motor will occur in order unless a method is otherwise stated as being asynchronous
+ *
+ * {@link #setSpeed}, {@link #forward}, {@link #backward} and {@link #stop} are merged while they wait to be sent, so a program
+ * that calls them faster than the robot can respond only sends the latest speed and direction, rather than working through a backlog.
+ * Any other method (e.g. {@link #rotate} or {@link #getTachoCount}) is never merged, and the commands before it are always sent before it.
+ * When several threads ask for the same reading at once (e.g. {@link #getTachoCount}), they share the answer to a single request.
  * @see Robot#getLargeMotor(Motor.Port)
  * @see Robot#getMediumMotor(Motor.Port)
 **/
-public abstract class Motor extends PortManager<Pair<MotorAction, Integer>>
+public abstract class Motor extends PortManager<PortAction<MotorAction, Integer>>
 {
     /**
      * These represent the physical ports on the robot which Motors can be connected to
@@ -33,8 +38,17 @@ public abstract class Motor extends PortManager<Pair<MotorAction, Integer>>
     enum Type {
         M, L
     }
+    /**
+     * How often a motor that is turning is checked for having stopped, in milliseconds, see {@link #whenStopped}
+    **/
+    static final long STOP_POLL_MS = 10;
     
-    private RMIRegulatedMotor motor;
+    private Backend.RegulatedMotor motor;
+    /**
+     * The drive command at the end of the queue, which new speeds and directions are merged into, or {@code null} (guarded by driveLock)
+    **/
+    private DriveCommand pendingDrive;
+    private final Object driveLock = new Object();
     private Port port;
     private Type type;
     Robot parentRobot;
@@ -50,7 +64,7 @@ public abstract class Motor extends PortManager<Pair<MotorAction, Integer>>
      * @param type The type of motor.
      */
     protected Motor(Robot robot, Port port, Type type) {
-        super(Thread.currentThread());
+        super(robot.getScheduler(), Thread.currentThread());
         this.parentRobot = robot;
         this.port = port;
         this.type = type;
@@ -81,37 +95,36 @@ public abstract class Motor extends PortManager<Pair<MotorAction, Integer>>
             }
             this.motor = null;
         }
-        // Clean up the Robot object's list, but this *shouldn't* cause an endless loop
-        // since the parent will only call this function if this isn't in the list...
-        // (it will go round twice, but that's the best way to be sure both objects agree!)
-        this.parentRobot.closeMotor(this.port);
+        // Clean up the Robot object's list, in case we were closed directly rather than through the Robot
+        // (this only removes us, so a motor opened on the port since is left alone)
+        this.parentRobot.forgetMotor(this.port, this);
     }
     /**
      * Tells the motor to rotate forwards
      * The motor will continue rotating until {@link Motor#stop()} is called.
     **/
     public void forward() {
-        this.addAction(new Pair<MotorAction, Integer>(MotorAction.FORWARD, 0));
+        this.drive(null, MotorAction.FORWARD);
     }
     /**
      * Tells the motor to rotate backwards
      * The motor will continue rotating until {@link Motor#stop()} is called.
     **/
     public void backward() {
-        this.addAction(new Pair<MotorAction, Integer>(MotorAction.BACKWARD, 0));
+        this.drive(null, MotorAction.BACKWARD);
     }
     /**
      * Tells the motor to stop moving
     **/
     public void stop() {
-        this.addAction(new Pair<MotorAction, Integer>(MotorAction.STOP, 0));
+        this.drive(null, MotorAction.STOP);
     }
     /**
      * Resets the value returned by {@link Motor#getTachoCount()} to 0
     **/
     public void resetTachoCount()
     {
-        this.addAction(new Pair<MotorAction, Integer>(MotorAction.RESET_TACHO, 0));
+        this.addAction(new PortAction<MotorAction, Integer>(MotorAction.RESET_TACHO, 0));
     }
     /**
      * Returns the cumulative number of degrees the motor has turned since {@link Motor#resetTachoCount()} was last called.
@@ -119,14 +132,17 @@ public abstract class Motor extends PortManager<Pair<MotorAction, Integer>>
     **/
     public int getTachoCount()
     {
-        Pair<MotorAction, Integer> action = new Pair<MotorAction, Integer>(MotorAction.GET_TACHO_COUNT, null);
+        return this.await(getTachoCountAsync());
+    }
+    /**
+     * Asynchronous version of {@link Motor#getTachoCount()}, which returns immediately.
+     * @return A future that completes with the number of degrees the motor has turned
+    **/
+    public CompletableFuture<Integer> getTachoCountAsync()
+    {
+        PortAction<MotorAction, Integer> action = new PortAction<MotorAction, Integer>(MotorAction.GET_TACHO_COUNT, null);
         this.addAction(action);
-        while (action.getValue() == null) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {}
-        }
-        return action.getValue();
+        return action;
     }
     /**
      * Sets the speed of the Motor. 
@@ -141,7 +157,7 @@ public abstract class Motor extends PortManager<Pair<MotorAction, Integer>>
         //Catch this because negative speeds are Math.abs by the internal robot
         if(newSpeed<0)
             throw new IllegalArgumentException("Invalid speed argument: "+newSpeed+"\n Speeds should not be negative (try using the backward() method).");
-        this.addAction(new Pair<MotorAction, Integer>(MotorAction.SET_SPEED, newSpeed));
+        this.drive(newSpeed, null);
     }
     /**
      * Returns the speed of the Motor
@@ -149,14 +165,17 @@ public abstract class Motor extends PortManager<Pair<MotorAction, Integer>>
     **/
     public int getSpeed()
     {
-        Pair<MotorAction, Integer> action = new Pair<MotorAction, Integer>(MotorAction.GET_SPEED, null);
+        return this.await(getSpeedAsync());
+    }
+    /**
+     * Asynchronous version of {@link Motor#getSpeed()}, which returns immediately.
+     * @return A future that completes with the speed of the motor
+    **/
+    public CompletableFuture<Integer> getSpeedAsync()
+    {
+        PortAction<MotorAction, Integer> action = new PortAction<MotorAction, Integer>(MotorAction.GET_SPEED, null);
         this.addAction(action);
-        while (action.getValue() == null) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {}
-        }
-        return action.getValue();
+        return action;
     }
     /**
      * Returns the maximum speed, this value is based off the Robots battery voltage (it decreases as the Robots battery drains).
@@ -166,14 +185,17 @@ public abstract class Motor extends PortManager<Pair<MotorAction, Integer>>
     **/
     public int getMaxSpeed()
     {
-        Pair<MotorAction, Integer> action = new Pair<MotorAction, Integer>(MotorAction.GET_MAX_SPEED, null);
+        return this.await(getMaxSpeedAsync());
+    }
+    /**
+     * Asynchronous version of {@link Motor#getMaxSpeed()}, which returns immediately.
+     * @return A future that completes with the current maximum speed of the robot
+    **/
+    public CompletableFuture<Integer> getMaxSpeedAsync()
+    {
+        PortAction<MotorAction, Integer> action = new PortAction<MotorAction, Integer>(MotorAction.GET_MAX_SPEED, null);
         this.addAction(action);
-        while (action.getValue() == null) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {}
-        }
-        return action.getValue();
+        return action;
     }
     /**
      * Returns whether the motor is currently moving.
@@ -181,14 +203,17 @@ public abstract class Motor extends PortManager<Pair<MotorAction, Integer>>
     **/
     public boolean isMoving()
     {
-        Pair<MotorAction, Integer> action = new Pair<MotorAction, Integer>(MotorAction.GET_IS_MOVING, null);
+        return this.await(isMovingAsync());
+    }
+    /**
+     * Asynchronous version of {@link Motor#isMoving()}, which returns immediately.
+     * @return A future that completes with true if the motor is moving, else false
+    **/
+    public CompletableFuture<Boolean> isMovingAsync()
+    {
+        PortAction<MotorAction, Integer> action = new PortAction<MotorAction, Integer>(MotorAction.GET_IS_MOVING, null);
         this.addAction(action);
-        while (action.getValue() == null) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {}
-        }
-        return action.getValue()!=0;
+        return action.thenApply(v -> v != 0);
     }
     /**
      * Returns whether the motor has stalled.
@@ -196,14 +221,17 @@ public abstract class Motor extends PortManager<Pair<MotorAction, Integer>>
     **/
     public boolean isStalled()
     {
-        Pair<MotorAction, Integer> action = new Pair<MotorAction, Integer>(MotorAction.GET_IS_STALLED, null);
+        return this.await(isStalledAsync());
+    }
+    /**
+     * Asynchronous version of {@link Motor#isStalled()}, which returns immediately.
+     * @return A future that completes with true if the motor has stalled, else false
+    **/
+    public CompletableFuture<Boolean> isStalledAsync()
+    {
+        PortAction<MotorAction, Integer> action = new PortAction<MotorAction, Integer>(MotorAction.GET_IS_STALLED, null);
         this.addAction(action);
-        while (action.getValue() == null) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {}
-        }
-        return action.getValue()!=0;
+        return action.thenApply(v -> v != 0);
     }
     /**
      * Rotates the motor the specified number of degrees.
@@ -229,16 +257,12 @@ public abstract class Motor extends PortManager<Pair<MotorAction, Integer>>
     public void rotate(int degrees, boolean async)
     {  
         if(async) {
-            this.addAction(new Pair<MotorAction, Integer>(MotorAction.ROTATE_ASYNC, degrees));
+            this.addAction(new PortAction<MotorAction, Integer>(MotorAction.ROTATE_ASYNC, degrees));
         }
         else {
-            Pair<MotorAction, Integer> action = new Pair<MotorAction, Integer>(MotorAction.ROTATE, degrees);
+            PortAction<MotorAction, Integer> action = new PortAction<MotorAction, Integer>(MotorAction.ROTATE, degrees);
             this.addAction(action);
-            while (action.getValue() != null) {
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {}
-            }
+            this.await(action);
         }
     }
     /**
@@ -266,16 +290,77 @@ public abstract class Motor extends PortManager<Pair<MotorAction, Integer>>
     public void rotateTo(int degrees, boolean async)
     {
         if(async) {
-            this.addAction(new Pair<MotorAction, Integer>(MotorAction.ROTATE_TO_ASYNC, degrees));
+            this.addAction(new PortAction<MotorAction, Integer>(MotorAction.ROTATE_TO_ASYNC, degrees));
         }
         else {
-            Pair<MotorAction, Integer> action = new Pair<MotorAction, Integer>(MotorAction.ROTATE_TO, degrees);
+            PortAction<MotorAction, Integer> action = new PortAction<MotorAction, Integer>(MotorAction.ROTATE_TO, degrees);
             this.addAction(action);
-            while (action.getValue() != null) {
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {}
+            this.await(action);
+        }
+    }
+    /**
+     * Queues any other action, which the drive commands queued after it can't be merged past.
+    **/
+    @Override
+    protected void addAction(PortAction<MotorAction, Integer> act) {
+        synchronized (driveLock) {
+            pendingDrive = null;
+            super.addAction(act);
+        }
+    }
+    /**
+     * Identical reads waiting together are answered by a single round trip to the robot.
+    **/
+    @Override
+    protected boolean canShare(PortAction<MotorAction, Integer> next, PortAction<MotorAction, Integer> done) {
+        return next.key == done.key && isRead(done.key);
+    }
+    @Override
+    protected void share(PortAction<MotorAction, Integer> next, PortAction<MotorAction, Integer> done) {
+        next.complete(done.getNow(null));
+    }
+    /**
+     * Reads don't change the motor, so other reads can be answered past them.
+    **/
+    @Override
+    protected boolean isBarrier(PortAction<MotorAction, Integer> act) {
+        return !isRead(act.key);
+    }
+    private static boolean isRead(MotorAction key) {
+        switch (key) {
+            case GET_SPEED:
+            case GET_MAX_SPEED:
+            case GET_TACHO_COUNT:
+            case GET_IS_STALLED:
+            case GET_IS_MOVING:
+                return true;
+            default:
+                return false;
+        }
+    }
+    /**
+     * Changes the speed and/or direction of the motor, merging them into the drive command at the end of the queue if there is one.
+     * @param speed The new speed, or {@code null} to leave it as it is
+     * @param motion {@code FORWARD}, {@code BACKWARD} or {@code STOP}, or {@code null} to leave the motor as it is
+     * @return The drive command the change was queued in, which completes once the robot has carried it out
+    **/
+    CompletableFuture<Integer> drive(Integer speed, MotorAction motion) {
+        synchronized (driveLock) {
+            DriveCommand d = pendingDrive;
+            if (d != null) {
+                //Only the latest speed and direction matter, so the earlier ones never need to be sent
+                if (speed != null) {
+                    d.speed = speed;
+                }
+                if (motion != null) {
+                    d.motion = motion;
+                }
+                this.countCoalesced();
+                return d;
             }
+            pendingDrive = new DriveCommand(speed, motion);
+            super.addAction(pendingDrive);
+            return pendingDrive;
         }
     }
     /**
@@ -283,7 +368,7 @@ public abstract class Motor extends PortManager<Pair<MotorAction, Integer>>
     **/
     private void makeMotor() {
         try {
-            this.motor = this.parentRobot.getEV3().createRegulatedMotor(this.port.name(), this.type.name().charAt(0));
+            this.motor = this.parentRobot.getBackend().createRegulatedMotor(this.port.name(), this.type.name().charAt(0));
         } catch (lejos.hardware.DeviceException e) {
             System.err.println("Failed to open the motor port. The most likely reason is that the previous program failed to shut down correctly and free the port. You will have to restart the EV3. Sorry :(");
             throw new RuntimeException("Failed to open Motor port " + this.port.name());
@@ -299,64 +384,166 @@ public abstract class Motor extends PortManager<Pair<MotorAction, Integer>>
     /**
      * Carrys out the parameterised action
      * This method is called by the PortManager superclass
-     * @param act {@code act.key} is read-only and specifies the {@code Action} to be carried out
-     * @param act {@code act.value} can specify an argument for the {@code Action} or be used for returning values.
+     * @param act {@code act.key} specifies the {@code Action} to be carried out, and {@code act.getArgument()} its argument.
+     * Actions that return values complete {@code act} with them.
     **/
-    protected void action(Pair<MotorAction, Integer> act) {
-        if (this.motor == null) {
-            makeMotor();
+    protected void action(PortAction<MotorAction, Integer> act) {
+        if (act.key == MotorAction.GROUP) {
+            //Wait for the rest of the group, the last motor to arrive carries out the batch for all of them
+            ((MotorGroup.Member)act).arrive(this);
+            return;
         }
         try {
-            switch (act.key) {
-                case FORWARD:
-                    this.motor.forward();
-                    break;
-                case BACKWARD:
-                    this.motor.backward();
-                    break;
-                case STOP:
-                    this.motor.stop(true);
-                    break;
-                case SET_SPEED:
-                    this.motor.setSpeed(act.getValue());
-                    break;
-                case ROTATE:
-                    this.motor.rotate(act.getValue(), false);
-                    act.setValue(null);
-                    break;
-                case ROTATE_ASYNC:
-                    this.motor.rotate(act.getValue(), true);
-                    break;
-                case ROTATE_TO:
-                    this.motor.rotateTo(act.getValue(), false);
-                    act.setValue(null);
-                    break;
-                case ROTATE_TO_ASYNC:
-                    this.motor.rotateTo(act.getValue(), true);
-                    break;
-                case RESET_TACHO:
-                    this.motor.resetTachoCount();
-                    break;
-                case GET_SPEED:
-                    act.setValue(this.motor.getSpeed());
-                    break;
-                case GET_MAX_SPEED:
-                    act.setValue((int)this.motor.getMaxSpeed());
-                    break;
-                case GET_TACHO_COUNT:
-                    act.setValue(this.motor.getTachoCount());
-                    break;
-                case GET_IS_MOVING:
-                    act.setValue(this.motor.isMoving()?1:0);
-                    break;
-                case GET_IS_STALLED:
-                    act.setValue(this.motor.isStalled()?1:0);
-                    break;
-                default:
-                    System.err.println("[" + this.port.name() + "] Asked for Action: " + act.key + " on a Motor...");
+            if (act.key == MotorAction.DRIVE) {
+                Integer speed;
+                MotorAction motion;
+                synchronized (driveLock) {
+                    //Once started nothing more can be merged in
+                    if (pendingDrive == act) {
+                        pendingDrive = null;
+                    }
+                    speed = ((DriveCommand)act).speed;
+                    motion = ((DriveCommand)act).motion;
+                }
+                //Speed first, so the motor starts at the new speed
+                if (speed != null) {
+                    execute(MotorAction.SET_SPEED, speed);
+                }
+                if (motion != null) {
+                    execute(motion, null);
+                }
+                return;
+            }
+            if (act.key == MotorAction.ROTATE || act.key == MotorAction.ROTATE_TO) {
+                //Start the turn without waiting for it, and suspend the port until the timer sees the motor has stopped,
+                //so no thread of the scheduler is held while the motor turns
+                execute(act.key == MotorAction.ROTATE ? MotorAction.ROTATE_ASYNC : MotorAction.ROTATE_TO_ASYNC, act.getArgument());
+                suspend();
+                whenStopped(failure -> {
+                    if (failure == null) {
+                        act.complete(null);
+                    } else {
+                        System.err.println("Action " + act.key + " failed: " + failure);
+                        act.completeExceptionally(failure);
+                    }
+                    resume();
+                });
+                return;
             }
+            act.complete(execute(act.key, act.getArgument()));
         } catch (RemoteException e) {
             throw new RuntimeException(e);
         }
     }
+    /**
+     * Checks whether the motor has stopped, then again every {@link #STOP_POLL_MS} on the timer until it has,
+     * without holding a thread of the scheduler in between.
+     * Called by the port while it is {@link #suspend() suspended}, so nothing else is sent to the motor until it has stopped.
+     * @param done Called once the motor has stopped with {@code null}, or with the failure if checking fails or the motor is closed first
+    **/
+    void whenStopped(Consumer<RuntimeException> done) {
+        RuntimeException failure = null;
+        try {
+            if (isKilled()) {
+                failure = new IllegalStateException("The motor was closed before it stopped turning.");
+            } else if (execute(MotorAction.GET_IS_MOVING, null) != 0) {
+                runLater(() -> whenStopped(done), STOP_POLL_MS, TimeUnit.MILLISECONDS);
+                return;
+            }
+        } catch (RemoteException e) {
+            failure = new RuntimeException(e);
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        done.accept(failure);
+    }
+    /**
+     * Carrys out a single action on the motor.
+     * This is called by the port, or by whichever port carries out a {@link MotorGroup} batch while this one is suspended.
+     * @param key The {@code Action} to be carried out
+     * @param arg The argument for the {@code Action}, if it takes one
+     * @return The value returned by the {@code Action}, or {@code null} if it doesn't return anything
+    **/
+    Integer execute(MotorAction key, Integer arg) throws RemoteException {
+        if (this.motor == null) {
+            makeMotor();
+        }
+        FlightRecorder recorder = this.parentRobot.getFlightRecorder();
+        if (recorder == null) {
+            return send(key, arg);
+        }
+        long start = System.nanoTime();
+        Integer result = null;
+        boolean failed = true;
+        try {
+            result = send(key, arg);
+            failed = false;
+            return result;
+        } finally {
+            recorder.motor(this.port, this.type, key, arg, result, start, System.nanoTime(), failed);
+        }
+    }
+    /**
+     * Sends a single action to the motor
+    **/
+    private Integer send(MotorAction key, Integer arg) throws RemoteException {
+        switch (key) {
+            case FORWARD:
+                this.motor.forward();
+                break;
+            case BACKWARD:
+                this.motor.backward();
+                break;
+            case STOP:
+                this.motor.stop(true);
+                break;
+            case SET_SPEED:
+                this.motor.setSpeed(arg);
+                break;
+            case ROTATE:
+                this.motor.rotate(arg, false);
+                break;
+            case ROTATE_ASYNC:
+                this.motor.rotate(arg, true);
+                break;
+            case ROTATE_TO:
+                this.motor.rotateTo(arg, false);
+                break;
+            case ROTATE_TO_ASYNC:
+                this.motor.rotateTo(arg, true);
+                break;
+            case RESET_TACHO:
+                this.motor.resetTachoCount();
+                break;
+            case GET_SPEED:
+                return this.motor.getSpeed();
+            case GET_MAX_SPEED:
+                return (int)this.motor.getMaxSpeed();
+            case GET_TACHO_COUNT:
+                return this.motor.getTachoCount();
+            case GET_IS_MOVING:
+                return this.motor.isMoving()?1:0;
+            case GET_IS_STALLED:
+                return this.motor.isStalled()?1:0;
+            default:
+                System.err.println("[" + this.port.name() + "] Asked for Action: " + key + " on a Motor...");
+        }
+        return null;
+    }
+
+    /**
+     * A queued change of speed and/or direction, which later changes are merged into until it is started
+    **/
+    private static class DriveCommand extends PortAction<MotorAction, Integer>
+    {
+        Integer speed;
+        MotorAction motion;
+
+        DriveCommand(Integer speed, MotorAction motion)
+        {
+            super(MotorAction.DRIVE, null);
+            this.speed = speed;
+            this.motion = motion;
+        }
+    }
 }
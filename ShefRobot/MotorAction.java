@@ -0,0 +1,5 @@
+package ShefRobot;
+
+enum MotorAction {
+    FORWARD, BACKWARD, STOP, SET_SPEED, ROTATE, ROTATE_ASYNC, ROTATE_TO, ROTATE_TO_ASYNC, RESET_TACHO, GET_SPEED, GET_MAX_SPEED, GET_TACHO_COUNT, GET_IS_STALLED, GET_IS_MOVING, GROUP, DRIVE;
+}
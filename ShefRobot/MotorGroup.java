@@ -0,0 +1,454 @@
+package ShefRobot;
+
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import ShefRobot.util.*;
+
+/**
+ * This class represents a group of {@link Motor Motors} on the same {@link Robot} that are given commands together,
+ * such as the left and right wheels of a robot.
+ *
+ * Each command is carried out on every motor in the group in a single burst, once any commands already waiting on those motors have finished.
+ * This means the motors start and stop together, rather than one after the other as they would if each {@link Motor} was told separately.
+ *
+ * Commands to a group will occur in order with any other commands sent to the motors in it.
+ * @see Robot#getMotorGroup(Motor...)
+**/
+public class MotorGroup
+{
+    /**
+     * Groups are queued on their motors one at a time, so two groups sharing a motor can't end up queued in different orders on different motors.
+    **/
+    private static final Object QUEUE_LOCK = new Object();
+
+    private final Motor[] motors;
+
+    /**
+     * {@link Robot#getMotorGroup} should be used rather than creating these objects directly.
+     * @param motors The motors in the group.
+     * @throws IllegalArgumentException When no motors are given or a motor is given more than once.
+    **/
+    protected MotorGroup(Motor... motors)
+    {
+        if(motors.length == 0)
+            throw new IllegalArgumentException("Invalid motors argument: a MotorGroup needs at least one Motor.");
+        if(new HashSet<Motor>(Arrays.asList(motors)).size() != motors.length)
+            throw new IllegalArgumentException("Invalid motors argument: each Motor can only be in a MotorGroup once.");
+        this.motors = motors.clone();
+    }
+    /**
+     * Returns the number of motors in the group
+     * @return The number of motors in the group
+    **/
+    public int size()
+    {
+        return motors.length;
+    }
+    /**
+     * Tells all the motors to rotate forwards
+     * @see Motor#forward()
+    **/
+    public void forward()
+    {
+        dispatch(allMotors(MotorAction.FORWARD, 0), false);
+    }
+    /**
+     * Tells all the motors to rotate backwards
+     * @see Motor#backward()
+    **/
+    public void backward()
+    {
+        dispatch(allMotors(MotorAction.BACKWARD, 0), false);
+    }
+    /**
+     * Tells all the motors to stop moving
+     * @see Motor#stop()
+    **/
+    public void stop()
+    {
+        dispatch(allMotors(MotorAction.STOP, 0), false);
+    }
+    /**
+     * Sets the speed of all the motors
+     * @param newSpeed The speed of the motors, this value must not be negative
+     * @throws IllegalArgumentException When newSpeed is negative
+     * @see Motor#setSpeed(int)
+    **/
+    public void setSpeed(final int newSpeed)
+    {
+        checkSpeed(newSpeed);
+        dispatch(allMotors(MotorAction.SET_SPEED, newSpeed), false);
+    }
+    /**
+     * Sets the speed of each motor, in the order the motors were given to {@link Robot#getMotorGroup}
+     * @param speeds One speed for each motor, these values must not be negative
+     * @throws IllegalArgumentException When the number of speeds does not match the number of motors, or a speed is negative
+    **/
+    public void setSpeeds(final int... speeds)
+    {
+        checkLength(speeds);
+        Batch batch = new Batch(motors);
+        for(int i=0;i<motors.length;i++)
+        {
+            checkSpeed(speeds[i]);
+            batch.add(i, MotorAction.SET_SPEED, speeds[i]);
+        }
+        dispatch(batch, false);
+    }
+    /**
+     * Drives each motor at the given speed, in the order the motors were given to {@link Robot#getMotorGroup}.
+     * Positive speeds drive the motor forwards, negative speeds drive it backwards and 0 stops it.
+     * All the speeds are set before any of the motors are started, e.g. {@code drive(200, -200)} turns a two wheeled robot on the spot.
+     * @param speeds One speed for each motor
+     * @throws IllegalArgumentException When the number of speeds does not match the number of motors
+    **/
+    public void drive(final int... speeds)
+    {
+        checkLength(speeds);
+        Batch batch = new Batch(motors);
+        for(int i=0;i<motors.length;i++)
+        {
+            if(speeds[i] != 0)
+                batch.add(i, MotorAction.SET_SPEED, Math.abs(speeds[i]));
+        }
+        for(int i=0;i<motors.length;i++)
+        {
+            if(speeds[i] > 0)
+                batch.add(i, MotorAction.FORWARD, 0);
+            else if(speeds[i] < 0)
+                batch.add(i, MotorAction.BACKWARD, 0);
+            else
+                batch.add(i, MotorAction.STOP, 0);
+        }
+        dispatch(batch, false);
+    }
+    /**
+     * Rotates all the motors the specified number of degrees, and waits for them all to finish
+     * @param degrees The number of degrees that the motors should rotate
+     * @see Motor#rotate(int)
+    **/
+    public void rotate(int degrees)
+    {
+        rotate(degrees, false);
+    }
+    /**
+     * Rotates all the motors the specified number of degrees
+     * @param degrees The number of degrees that the motors should rotate
+     * @param async When true this method will not wait for the motors to finish rotating before returning control
+     * @see Motor#rotate(int, boolean)
+    **/
+    public void rotate(int degrees, boolean async)
+    {
+        int[] all = new int[motors.length];
+        Arrays.fill(all, degrees);
+        rotate(all, async);
+    }
+    /**
+     * Rotates each motor the specified number of degrees, in the order the motors were given to {@link Robot#getMotorGroup}
+     * @param degrees One number of degrees for each motor
+     * @param async When true this method will not wait for the motors to finish rotating before returning control
+     * @throws IllegalArgumentException When the number of values does not match the number of motors
+    **/
+    public void rotate(int[] degrees, boolean async)
+    {
+        checkLength(degrees);
+        Batch batch = new Batch(motors);
+        for(int i=0;i<motors.length;i++)
+            batch.add(i, MotorAction.ROTATE_ASYNC, degrees[i]);
+        batch.waitForStop = !async;
+        dispatch(batch, !async);
+    }
+    /**
+     * Rotates all the motors to the specified tacho count, and waits for them all to finish
+     * @param degrees The tacho count to rotate the motors until
+     * @see Motor#rotateTo(int)
+    **/
+    public void rotateTo(int degrees)
+    {
+        rotateTo(degrees, false);
+    }
+    /**
+     * Rotates all the motors to the specified tacho count
+     * @param degrees The tacho count to rotate the motors until
+     * @param async When true this method will not wait for the motors to finish rotating before returning control
+     * @see Motor#rotateTo(int, boolean)
+    **/
+    public void rotateTo(int degrees, boolean async)
+    {
+        Batch batch = allMotors(MotorAction.ROTATE_TO_ASYNC, degrees);
+        batch.waitForStop = !async;
+        dispatch(batch, !async);
+    }
+
+    /**
+     * Reads the tacho count of every motor, asking all of them at once rather than one after the other.
+     * The counts are taken as close together in time as possible, and take about as long to arrive as a single {@link Motor#getTachoCount()},
+     * so this is better than reading each motor in turn when the counts are compared, e.g. to work out where the robot is.
+     * Each read is queued behind any commands already waiting on its motor, as with {@link Motor#getTachoCount()}.
+     * @return The counts, in the order the motors were given to {@link Robot#getMotorGroup}
+    **/
+    public int[] getTachoCounts()
+    {
+        int[] counts = new int[motors.length];
+        readTachoCounts(counts);
+        return counts;
+    }
+    /**
+     * Asynchronous version of {@link #getTachoCounts()}, which returns immediately.
+     * @return A future that completes with the counts
+    **/
+    public CompletableFuture<int[]> getTachoCountsAsync()
+    {
+        final int[] counts = new int[motors.length];
+        CompletableFuture<?>[] reads = new CompletableFuture<?>[motors.length];
+        for(int i=0;i<motors.length;i++)
+        {
+            final int index = i;
+            reads[i] = motors[i].getTachoCountAsync().thenAccept(count -> counts[index] = count);
+        }
+        return CompletableFuture.allOf(reads).thenApply(v -> counts);
+    }
+    /**
+     * Reads the tacho count of every motor into the given array, asking all of them at once and waiting for the answers
+     * @param counts One place for each motor
+    **/
+    void readTachoCounts(int[] counts)
+    {
+        List<CompletableFuture<Integer>> reads = new ArrayList<CompletableFuture<Integer>>(motors.length);
+        for(int i=0;i<motors.length;i++)
+            reads.add(motors[i].getTachoCountAsync());
+        for(int i=0;i<motors.length;i++)
+            counts[i] = motors[i].await(reads.get(i));
+    }
+    /**
+     * Sets the speed of each motor and, when targets are given, starts each one rotating to its target tacho count, without waiting.
+     * Used by {@link DifferentialDrive} to stream a planned path to the motors; the speeds must not be negative.
+     * @param speeds One speed for each motor
+     * @param targets One tacho count for each motor, or {@code null} to only change the speeds
+     * @return A future that completes once the commands have been sent to every motor
+    **/
+    CompletableFuture<Integer> steer(int[] speeds, int[] targets)
+    {
+        Batch batch = new Batch(motors);
+        for(int i=0;i<motors.length;i++)
+            batch.add(i, MotorAction.SET_SPEED, speeds[i]);
+        if(targets != null)
+        {
+            for(int i=0;i<motors.length;i++)
+                batch.add(i, MotorAction.ROTATE_TO_ASYNC, targets[i]);
+        }
+        return dispatch(batch, false);
+    }
+
+    private Batch allMotors(MotorAction act, int arg)
+    {
+        Batch batch = new Batch(motors);
+        for(int i=0;i<motors.length;i++)
+            batch.add(i, act, arg);
+        return batch;
+    }
+    private void checkLength(int[] values)
+    {
+        if(values.length != motors.length)
+            throw new IllegalArgumentException("Invalid argument: "+values.length+" values given for a MotorGroup of "+motors.length+" motors.");
+    }
+    private static void checkSpeed(int speed)
+    {
+        //Catch this because negative speeds are Math.abs by the internal robot
+        if(speed<0)
+            throw new IllegalArgumentException("Invalid speed argument: "+speed+"\n Speeds should not be negative (try using the backward() method).");
+    }
+    /**
+     * Queues a batch on every motor in the group.
+     * Each motor is suspended when it reaches the batch, and the last one to get there carries out the whole batch and resumes the others.
+     * @param batch The batch to be carried out
+     * @param wait When true, waits for the batch to be carried out before returning
+     * @return A future that completes when the batch has been carried out
+    **/
+    private CompletableFuture<Integer> dispatch(Batch batch, boolean wait)
+    {
+        for(int i=0;i<motors.length;i++)
+            batch.members.add(new Member(batch, i));
+        synchronized(QUEUE_LOCK)
+        {
+            for(int i=0;i<motors.length;i++)
+                motors[i].addAction(batch.members.get(i));
+        }
+        if(wait)
+            motors[0].await(batch.members.get(0));
+        return batch.members.get(0);
+    }
+
+    /**
+     * A list of actions to be carried out together on the motors of a group
+    **/
+    private static class Batch
+    {
+        final Motor[] motors;
+        final List<Integer> targets = new ArrayList<Integer>();
+        final List<MotorAction> actions = new ArrayList<MotorAction>();
+        final List<Integer> args = new ArrayList<Integer>();
+        final List<Member> members = new ArrayList<Member>();
+        /**
+         * When true, the batch isn't finished until all the motors have stopped moving
+        **/
+        boolean waitForStop;
+        /**
+         * The number of motors that haven't reached the batch yet, and whether it has been carried out or abandoned (guarded by this)
+        **/
+        private int waiting;
+        private boolean finished;
+
+        Batch(Motor[] motors)
+        {
+            this.motors = motors;
+            this.waiting = motors.length;
+        }
+        void add(int target, MotorAction act, int arg)
+        {
+            targets.add(target);
+            actions.add(act);
+            args.add(arg);
+        }
+        /**
+         * Called when a motor reaches the batch, which suspends it until the batch is finished
+         * @return True when this was the last motor to arrive, which should then {@link #run} the batch
+        **/
+        synchronized boolean arrive(Member member)
+        {
+            if(finished)
+                return false;
+            motors[member.index].suspend();
+            member.arrived = true;
+            if(--waiting > 0)
+                return false;
+            finished = true;
+            return true;
+        }
+        /**
+         * Sends every action in the batch back to back, waits for the motors to stop if required, then releases the motors.
+         * The motors stay suspended while they turn, and are checked from the timer, so no thread of the scheduler is held meanwhile.
+        **/
+        void run()
+        {
+            RuntimeException failure = null;
+            try
+            {
+                for(int i=0;i<actions.size();i++)
+                    motors[targets.get(i)].execute(actions.get(i), args.get(i));
+                if(waitForStop)
+                {
+                    awaitStop(0);
+                    return;
+                }
+            }
+            catch(RemoteException e)
+            {
+                failure = new RuntimeException(e);
+            }
+            catch(RuntimeException e)
+            {
+                failure = e;
+            }
+            finish(failure);
+        }
+        /**
+         * Waits for each motor from the given one onwards to stop, in turn, then releases the motors
+        **/
+        private void awaitStop(int from)
+        {
+            if(from == motors.length)
+            {
+                finish(null);
+                return;
+            }
+            motors[from].whenStopped(failure -> {
+                if(failure == null)
+                    awaitStop(from + 1);
+                else
+                    finish(failure);
+            });
+        }
+        private void finish(RuntimeException failure)
+        {
+            if(failure != null)
+                System.err.println("Action GROUP failed: " + failure);
+            release(failure);
+        }
+        /**
+         * Gives up on the batch, because one of the motors was closed before it got there
+        **/
+        void abandon()
+        {
+            synchronized(this)
+            {
+                if(finished)
+                    return;
+                finished = true;
+            }
+            release(new RuntimeException("A Motor in the MotorGroup was closed before the group's command could be carried out."));
+        }
+        /**
+         * Completes every member and resumes the motors that were suspended waiting for the batch
+        **/
+        private void release(RuntimeException failure)
+        {
+            for(Member m:members)
+            {
+                if(failure == null)
+                    m.complete(null);
+                else
+                    m.completeExceptionally(failure);
+            }
+            for(Member m:members)
+            {
+                if(m.arrived)
+                    motors[m.index].resume();
+            }
+        }
+    }
+
+    /**
+     * The action queued on each motor for a batch
+    **/
+    static class Member extends PortAction<MotorAction, Integer>
+    {
+        private final Batch batch;
+        private final int index;
+        /**
+         * Set once the motor has reached this action and been suspended (guarded by the batch)
+        **/
+        private boolean arrived;
+
+        Member(Batch batch, int index)
+        {
+            super(MotorAction.GROUP, null);
+            this.batch = batch;
+            this.index = index;
+        }
+        /**
+         * Called by a motor's port when it reaches this action.
+         * The port is suspended so nothing else is sent to the motor until the batch is finished,
+         * and the last motor to arrive carries out the batch for the whole group.
+         * No thread is held while waiting for the other motors, so a group can't hold up a scheduler with few threads.
+         * @param motor The motor whose port has arrived
+        **/
+        void arrive(Motor motor)
+        {
+            if(batch.arrive(this))
+                batch.run();
+        }
+        /**
+         * Abandons the batch when the motor is closed before reaching this action, so the other motors aren't left suspended
+        **/
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if(cancelled)
+                batch.abandon();
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package ShefRobot;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of where a robot with two driven wheels is, from the tacho counts of its wheel motors and, optionally, a gyro sensor.
+ *
+ * Once {@link #start started}, both tacho counts are read at a fixed rate on a thread of the odometry's own.
+ * The two motors are asked for their counts at the same moment (see {@link MotorGroup#getTachoCounts()}), so the counts are taken
+ * as close together in time as the robot allows and arrive in about the time of a single read. Each new pair of counts moves
+ * the {@link Pose} on by the distance each wheel has turned since the last, without allocating anything.
+ *
+ * The pose is published so that any number of threads can read it as often as they like without waiting for the robot or for each other:
+ * {@link #getPose(Pose)} copies the latest pose into an object the caller owns, and is retried in the rare case that it overlaps an update,
+ * so the position, heading and speeds it returns always belong to the same update.
+ *
+ * Wheels slip, especially when turning quickly, so the heading worked out from them alone drifts further from the truth the more the robot turns.
+ * Given a {@link GyroSensor}, the odometry reads it in its combined angle and rate mode at the same moment as the tacho counts,
+ * and blends the two with a complementary filter: the change in heading comes from the wheels, which see small, quick turns with little delay,
+ * while the heading is pulled towards the gyro's angle, which doesn't suffer from slip, over the {@link #setGyroTimeConstant time constant}.
+ * The turning speed then comes straight from the gyro. Programs that turn or hold a heading can read {@link #getHeading()} as often as they like,
+ * rather than asking the gyro over the connection on every read.
+ *
+ * Distances are in the unit the sizes were given in. Headings are in degrees, anticlockwise from the direction the robot faced
+ * when it started, and the robot starts at (0, 0) facing along the x axis unless told otherwise with {@link #setPose}.
+ * <pre>
+ * Odometry odometry = new Odometry(robot.getLargeMotor(Motor.Port.B), robot.getLargeMotor(Motor.Port.C), 5.6, 12);
+ * odometry.start(5);
+ * Odometry.Pose pose = new Odometry.Pose();
+ * while(odometry.getPose(pose).getX() &lt; 50)
+ *     Robot.sleep(10);
+ * </pre>
+ * The gyro should be mounted flat and the right way up, so that its angle increases as the robot turns anticlockwise.
+**/
+public class Odometry
+{
+    private final MotorGroup wheels;
+    private final GyroSensor gyro;
+    private final double unitsPerDegree;
+    private final double trackWidth;
+
+    /**
+     * The published pose. {@link #version} is odd while it is being changed, so readers can tell when they have overlapped a change.
+    **/
+    private volatile long version;
+    private volatile double x;
+    private volatile double y;
+    private volatile double heading;
+    private volatile double velocity;
+    private volatile double angularVelocity;
+    private volatile long time;
+
+    /**
+     * The pose being worked on, with the heading in radians, and the counts it was last moved on from (guarded by writeLock)
+    **/
+    private final Object writeLock = new Object();
+    private double poseX;
+    private double poseY;
+    private double poseHeading;
+    private final int[] counts = new int[2];
+    private int lastLeft;
+    private int lastRight;
+    private long lastTime;
+    private boolean haveCounts;
+    /**
+     * What to add to the gyro's angle to get the heading, in radians, and whether it is known (guarded by writeLock)
+    **/
+    private double gyroOffset;
+    private boolean haveGyro;
+    private volatile long gyroTimeConstant = DEFAULT_GYRO_TIME_CONSTANT;
+
+    /**
+     * The default time taken for the heading to follow the gyro, in nanoseconds
+    **/
+    private static final long DEFAULT_GYRO_TIME_CONSTANT = TimeUnit.SECONDS.toNanos(1);
+
+    private final FixedRateRunner runner = new FixedRateRunner("ShefRobot odometry", this::read);
+    private final LongAdder updates = new LongAdder();
+
+    /**
+     * Creates odometry for the two wheels of a robot.
+     * The sizes can be in any unit (e.g. centimetres), as long as both are in the same one, which is then used for the pose.
+     * @param left The motor driving the left wheel
+     * @param right The motor driving the right wheel
+     * @param wheelDiameter The diameter of the wheels
+     * @param trackWidth The distance between the middles of the two wheels
+     * @throws IllegalArgumentException When the motors are the same or belong to different robots, or a size is not positive
+    **/
+    public Odometry(Motor left, Motor right, double wheelDiameter, double trackWidth)
+    {
+        this(left, right, null, wheelDiameter, trackWidth);
+    }
+    /**
+     * Creates odometry for the two wheels of a robot, with the heading corrected by a gyro.
+     * The sizes can be in any unit (e.g. centimetres), as long as both are in the same one, which is then used for the pose.
+     * @param left The motor driving the left wheel
+     * @param right The motor driving the right wheel
+     * @param gyro The gyro sensor, or {@code null} to use the wheels alone
+     * @param wheelDiameter The diameter of the wheels
+     * @param trackWidth The distance between the middles of the two wheels
+     * @throws IllegalArgumentException When the motors are the same or belong to different robots, or a size is not positive
+    **/
+    public Odometry(Motor left, Motor right, GyroSensor gyro, double wheelDiameter, double trackWidth)
+    {
+        if(!(wheelDiameter > 0) || Double.isInfinite(wheelDiameter))
+            throw new IllegalArgumentException("Invalid wheelDiameter argument: "+wheelDiameter+"\n The wheel diameter should be greater than 0.");
+        if(!(trackWidth > 0) || Double.isInfinite(trackWidth))
+            throw new IllegalArgumentException("Invalid trackWidth argument: "+trackWidth+"\n The track width should be greater than 0.");
+        this.wheels = left.parentRobot.getMotorGroup(left, right);
+        this.unitsPerDegree = Math.PI * wheelDiameter / 360;
+        this.trackWidth = trackWidth;
+        this.gyro = gyro;
+    }
+
+    /**
+     * Sets how quickly the heading follows the gyro.
+     * Over a time much shorter than this, changes in heading come from the wheels, while over longer times the heading comes from the gyro.
+     * A shorter time corrects for wheel slip sooner, but lets through more of the gyro's noise. Has no effect without a gyro.
+     * @param ms The time constant in milliseconds, or 0 to take the heading from the gyro alone
+     * @throws IllegalArgumentException When ms is negative
+    **/
+    public void setGyroTimeConstant(int ms)
+    {
+        if(ms < 0)
+            throw new IllegalArgumentException("Invalid time constant argument: "+ms+"\n The time constant should not be negative.");
+        gyroTimeConstant = TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+    /**
+     * @return How quickly the heading follows the gyro, in milliseconds
+    **/
+    public int getGyroTimeConstant()
+    {
+        return (int)TimeUnit.NANOSECONDS.toMillis(gyroTimeConstant);
+    }
+
+    /**
+     * Starts reading the tacho counts and updating the pose
+     * @param periodMs How often to read the counts, in milliseconds
+     * @throws IllegalArgumentException When periodMs is less than 1
+     * @throws IllegalStateException When the odometry is already running
+    **/
+    public synchronized void start(int periodMs)
+    {
+        if(periodMs < 1)
+            throw new IllegalArgumentException("Invalid period argument: "+periodMs+"\n Periods below 1ms are invalid.");
+        if(runner.isRunning())
+            throw new IllegalStateException("The Odometry is already running.");
+        synchronized(writeLock)
+        {//Whatever the wheels did while stopped isn't known, so start again from the next counts
+            haveCounts = false;
+            haveGyro = false;
+        }
+        runner.start(TimeUnit.MILLISECONDS.toNanos(periodMs));
+    }
+
+    /**
+     * Stops reading the tacho counts, and waits for the current read to finish.
+     * The pose stays where it was, and carries on from there if the odometry is started again.
+    **/
+    public void stop()
+    {
+        runner.stop();
+    }
+
+    /**
+     * @return True if the odometry is running
+    **/
+    public boolean isRunning()
+    {
+        return runner.isRunning();
+    }
+
+    /**
+     * Moves the robot to the given pose, e.g. to correct it from a known landmark. Its speeds are left as they are.
+     * With a gyro, the gyro's angle is matched to the new heading at the next update.
+     * @param x The x coordinate
+     * @param y The y coordinate
+     * @param heading The heading in degrees, anticlockwise from the x axis
+    **/
+    public void setPose(double x, double y, double heading)
+    {
+        synchronized(writeLock)
+        {
+            poseX = x;
+            poseY = y;
+            poseHeading = Math.toRadians(heading);
+            haveGyro = false;
+            publish(velocity, angularVelocity, System.nanoTime());
+        }
+    }
+
+    /**
+     * Copies the latest pose into the given object, without allocating anything or waiting for the robot.
+     * All the values come from the same update.
+     * @param into The object to copy the pose into
+     * @return {@code into}
+    **/
+    public Pose getPose(Pose into)
+    {
+        long v;
+        do
+        {
+            v = version;
+            into.x = x;
+            into.y = y;
+            into.heading = heading;
+            into.velocity = velocity;
+            into.angularVelocity = angularVelocity;
+            into.time = time;
+        }
+        while((v & 1) != 0 || v != version);
+        return into;
+    }
+    /**
+     * @return A copy of the latest pose
+     * @see #getPose(Pose)
+    **/
+    public Pose getPose()
+    {
+        return getPose(new Pose());
+    }
+    /**
+     * @return The latest x coordinate
+    **/
+    public double getX()
+    {
+        return x;
+    }
+    /**
+     * @return The latest y coordinate
+    **/
+    public double getY()
+    {
+        return y;
+    }
+    /**
+     * @return The latest heading in degrees, anticlockwise from the x axis
+    **/
+    public double getHeading()
+    {
+        return heading;
+    }
+
+    /**
+     * @return The number of times the pose has been updated from the tacho counts
+    **/
+    public long getUpdates()
+    {
+        return updates.sum();
+    }
+    /**
+     * @return The number of reads that took longer than the period
+    **/
+    public long getOverruns()
+    {
+        return runner.getOverruns();
+    }
+    /**
+     * @return The number of periods skipped because a read overran
+    **/
+    public long getMissedPeriods()
+    {
+        return runner.getMissedPeriods();
+    }
+    /**
+     * @return How late each read started, in nanoseconds
+    **/
+    public PortMetrics.Latency getJitter()
+    {
+        return runner.getJitter();
+    }
+    /**
+     * @return How long each read of both tacho counts (and the gyro), and the update that follows it, took, in nanoseconds
+    **/
+    public PortMetrics.Latency getReadTime()
+    {
+        return runner.getExecution();
+    }
+    /**
+     * Clears the counts and times
+    **/
+    public void resetMetrics()
+    {
+        runner.resetMetrics();
+        updates.reset();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Odometry: "+getUpdates()+" updates, "+runner.describe("read");
+    }
+
+    /**
+     * Reads both tacho counts (and the gyro) and updates the pose, on the runner's thread
+    **/
+    private boolean read(long start, long sinceLast)
+    {
+        float[] sample = null;
+        try
+        {
+            //Both asked for at once, so the gyro is read at the same moment as the wheels
+            CompletableFuture<float[]> angleAndRate = gyro == null ? null : gyro.getRateAndAngleAsync();
+            wheels.readTachoCounts(counts);
+            if(angleAndRate != null)
+                sample = angleAndRate.join();
+        }
+        catch(RuntimeException e)
+        {
+            System.err.println("Odometry failed, stopping: " + e);
+            return false;
+        }
+        long end = System.nanoTime();
+        //The counts were taken somewhere during the read, most likely around the middle
+        if(sample == null)
+            update(counts[0], counts[1], Double.NaN, Double.NaN, start + (end - start) / 2);
+        else
+            update(counts[0], counts[1], sample[0], sample[1], start + (end - start) / 2);
+        return true;
+    }
+
+    /**
+     * Moves the pose on by the distance each wheel has turned since the last counts, along the arc that joins them,
+     * and pulls the heading towards the gyro's angle
+     * @param gyroAngle The gyro's angle in degrees, or NaN without a gyro
+     * @param gyroRate The gyro's angular velocity in degrees per second, or NaN without a gyro
+    **/
+    private void update(int left, int right, double gyroAngle, double gyroRate, long now)
+    {
+        synchronized(writeLock)
+        {
+            boolean fused = !Double.isNaN(gyroAngle);
+            if(fused && !haveGyro)
+            {//The gyro starts from wherever it was last reset, so match it to the current heading
+                gyroOffset = poseHeading - Math.toRadians(gyroAngle);
+                haveGyro = true;
+            }
+            if(!haveCounts)
+            {
+                lastLeft = left;
+                lastRight = right;
+                lastTime = now;
+                haveCounts = true;
+                return;
+            }
+            double dl = (left - lastLeft) * unitsPerDegree;
+            double dr = (right - lastRight) * unitsPerDegree;
+            double dt = (now - lastTime) / 1e9;
+            double distance = (dl + dr) / 2;
+            double turn = (dr - dl) / trackWidth;
+            if(fused)
+            {//Complementary filter: the wheels' turn, corrected towards the gyro with weight dt / (timeConstant + dt)
+                double tau = gyroTimeConstant / 1e9;
+                double weight = tau + dt > 0 ? dt / (tau + dt) : 1;
+                double predicted = poseHeading + turn;
+                turn += weight * (Math.toRadians(gyroAngle) + gyroOffset - predicted);
+            }
+            //Moving along the chord of the arc, which points half way through the turn
+            double direction = poseHeading + turn / 2;
+            poseX += distance * Math.cos(direction);
+            poseY += distance * Math.sin(direction);
+            poseHeading += turn;
+            lastLeft = left;
+            lastRight = right;
+            lastTime = now;
+            if(dt > 0)
+                publish(distance / dt, fused ? gyroRate : Math.toDegrees(turn / dt), now);
+            else
+                publish(velocity, fused ? gyroRate : angularVelocity, now);
+        }
+        updates.increment();
+    }
+
+    /**
+     * Publishes the pose being worked on (called with writeLock held)
+    **/
+    private void publish(double newVelocity, double newAngularVelocity, long now)
+    {
+        long v = version;
+        version = v + 1;
+        x = poseX;
+        y = poseY;
+        heading = Math.toDegrees(poseHeading);
+        velocity = newVelocity;
+        angularVelocity = newAngularVelocity;
+        time = now;
+        version = v + 2;
+    }
+
+    /**
+     * Where a robot is, which way it is facing and how fast it is moving, at one moment
+    **/
+    public static final class Pose
+    {
+        double x;
+        double y;
+        double heading;
+        double velocity;
+        double angularVelocity;
+        long time;
+
+        /**
+         * @return The x coordinate
+        **/
+        public double getX()
+        {
+            return x;
+        }
+        /**
+         * @return The y coordinate
+        **/
+        public double getY()
+        {
+            return y;
+        }
+        /**
+         * @return The heading in degrees, anticlockwise from the x axis
+        **/
+        public double getHeading()
+        {
+            return heading;
+        }
+        /**
+         * @return The speed of the middle of the robot, in distance units per second, negative when going backwards
+        **/
+        public double getVelocity()
+        {
+            return velocity;
+        }
+        /**
+         * @return How fast the robot is turning, in degrees per second, positive when turning anticlockwise
+        **/
+        public double getAngularVelocity()
+        {
+            return angularVelocity;
+        }
+        /**
+         * @return When the tacho counts behind this pose were read, as a {@link System#nanoTime()}
+        **/
+        public long getTime()
+        {
+            return time;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("Pose: (%.2f, %.2f) heading %.1f, velocity %.2f, turning %.1f deg/s", x, y, heading, velocity, angularVelocity);
+        }
+    }
+}
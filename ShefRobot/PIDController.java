@@ -0,0 +1,90 @@
+package ShefRobot;
+
+/**
+ * A PID controller, for use with a {@link ControlLoop}.
+ *
+ * The output is {@code kp * error + ki * (sum of error * dt) + kd * d(error)/dt}, where the error is {@code setpoint - measurement}.
+ * The derivative is taken of the measurement rather than the error, so changing the setpoint doesn't cause a sudden kick.
+ * While the output is held at one of its {@link #setOutputLimits limits}, the integral stops growing in that direction (anti-windup).
+ * This class is not thread safe, it should only be used by one ControlLoop.
+**/
+public class PIDController implements ControlLoop.Controller
+{
+    private volatile float kp;
+    private volatile float ki;
+    private volatile float kd;
+    private volatile float min = Float.NEGATIVE_INFINITY;
+    private volatile float max = Float.POSITIVE_INFINITY;
+
+    private float integral;
+    private float lastMeasurement;
+    private boolean first = true;
+
+    /**
+     * @param kp The proportional gain
+     * @param ki The integral gain
+     * @param kd The derivative gain
+    **/
+    public PIDController(float kp, float ki, float kd)
+    {
+        setGains(kp, ki, kd);
+    }
+
+    /**
+     * Changes the gains, this can be done while the loop is running
+     * @param kp The proportional gain
+     * @param ki The integral gain
+     * @param kd The derivative gain
+    **/
+    public void setGains(float kp, float ki, float kd)
+    {
+        this.kp = kp;
+        this.ki = ki;
+        this.kd = kd;
+    }
+    /**
+     * Limits the output, e.g. to the range of speeds a motor can take
+     * @param min The smallest output
+     * @param max The largest output
+     * @throws IllegalArgumentException When min is greater than max
+    **/
+    public void setOutputLimits(float min, float max)
+    {
+        if(min > max)
+            throw new IllegalArgumentException("Invalid limits arguments: "+min+", "+max+"\n The minimum should not exceed the maximum.");
+        this.min = min;
+        this.max = max;
+    }
+
+    public float update(float setpoint, float measurement, float dt)
+    {
+        float error = setpoint - measurement;
+        float derivative = first || dt <= 0 ? 0 : -(measurement - lastMeasurement) / dt;
+        first = false;
+        lastMeasurement = measurement;
+
+        float i = integral + error * dt;
+        float output = kp * error + ki * i + kd * derivative;
+        if(output > max)
+        {
+            output = max;
+            if(error < 0)
+                integral = i;
+        }
+        else if(output < min)
+        {
+            output = min;
+            if(error > 0)
+                integral = i;
+        }
+        else
+            integral = i;
+        return output;
+    }
+
+    public void reset()
+    {
+        integral = 0;
+        first = true;
+    }
+}
@@ -2,67 +2,421 @@ package ShefRobot;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import ShefRobot.util.*;
 
-abstract class PortManager<T> implements Runnable {
+/**
+ * Carries out the actions sent to one port, one at a time and in order.
+ * The actions are run by the port's {@link PortScheduler}, which only needs a thread while there are actions waiting.
+**/
+abstract class PortManager<T extends PortAction<?,?>> {
 
-    private Thread thread;
-    private Thread parentThread;
-    private Semaphore actSem;
-    private LinkedList<T> actions;
-    private boolean killflag;
+    /**
+     * How often the port checks whether the parent thread has finished, so it can close itself.
+    **/
+    private static final long IDLE_CHECK_NS = TimeUnit.MILLISECONDS.toNanos(500);
+    /**
+     * The most actions carried out before giving the thread back to the scheduler, so busy ports can't starve the others sharing it
+    **/
+    private static final int MAX_BATCH = 32;
+
+    private final Executor executor;
+    private final Thread parentThread;
+    private final BlockingQueue<T> actions = new LinkedBlockingQueue<T>();
+    /**
+     * True while the port is queued on, or running in, the executor
+    **/
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean killflag;
+    private volatile boolean parentFinished;
+    /**
+     * True while an action that has been started is waiting on something else (e.g. the other motors of a {@link MotorGroup})
+    **/
+    private volatile boolean suspended;
+    /**
+     * The action that suspended the port, so the actions that {@link #canRunWith can run with} it are still taken first once it is resumed
+     * (only used by the thread draining the port)
+    **/
+    private T suspendedBy;
+    /**
+     * Set by the timer every period, and cleared when {@link #periodic()} is run
+    **/
+    private volatile boolean tickDue;
+    private ScheduledFuture<?> ticker;
+    private final ScheduledFuture<?> watcher;
+    /**
+     * The thread currently carrying out actions, which {@link #kill()} interrupts (guarded by this)
+    **/
+    private Thread runner;
+    private final CompletableFuture<Void> terminated = new CompletableFuture<Void>();
+    private final MetricsRecorder metrics = new MetricsRecorder();
 
-    public PortManager(Thread parentThread) {
+    /**
+     * @param scheduler Carries out the port's actions
+     * @param parentThread The port closes itself once this thread has finished, or {@code null} to stay open until it is closed
+    **/
+    public PortManager(PortScheduler scheduler, Thread parentThread) {
+        this.executor = scheduler.getExecutor();
         this.parentThread = parentThread;
-        actSem = new Semaphore(1);
-        actions = new LinkedList<T>();
-        killflag = false;
-        thread = new Thread(this);
-        thread.start();
+        if (parentThread == null) {
+            watcher = null;
+            return;
+        }
+        watcher = PortScheduler.timer().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                if (PortManager.this.parentThread.getState() == Thread.State.TERMINATED) {
+                    parentFinished = true;
+                    schedule();
+                }
+            }
+        }, IDLE_CHECK_NS, IDLE_CHECK_NS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Waits until the port has stopped, after {@link #kill()}, and any action it was carrying out has finished.
+     * Returns straight away when called by an action on the port itself, which would otherwise wait for itself forever.
+    **/
+    void awaitTermination() {
+        synchronized (this) {
+            if (runner == Thread.currentThread()) {
+                return;
+            }
+        }
+        terminated.join();
+    }
+
+    /**
+     * @param port The name of the port, used to label the metrics
+     * @return A snapshot of the metrics of this port
+    **/
+    PortMetrics getMetrics(String port) {
+        return metrics.snapshot(port, actions.size());
+    }
+
+    void resetMetrics() {
+        metrics.reset();
     }
 
-    protected Thread getThread() {
-        return thread;
+    /**
+     * Records a command that was merged into an action already waiting, rather than being queued
+    **/
+    void countCoalesced() {
+        metrics.coalesced();
     }
 
     protected void addAction(T act) {
-        try {
-            actSem.acquire();
-            actions.add(act);
-            actSem.release();
-            thread.interrupt();
-        } catch (InterruptedException e) {
-            // Try again...
-            addAction(act);
+        act.markEnqueued();
+        actions.offer(act);
+        metrics.enqueued(actions.size());
+        if (killflag) {
+            //Nothing will carry this out now
+            if (act.cancel(false)) {
+                metrics.cancelled();
+            }
+            return;
+        }
+        schedule();
+    }
+
+    /**
+     * Sets how often the port should call {@link #periodic()} between actions.
+     * @param nanos The period in nanoseconds, or 0 to stop calling {@link #periodic()}
+    **/
+    protected synchronized void setPeriod(long nanos) {
+        if (ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+        if (nanos > 0 && !killflag) {
+            ticker = PortScheduler.timer().scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    //If the port is busy the ticks are merged, so missed ticks are skipped rather than run back to back
+                    tickDue = true;
+                    schedule();
+                }
+            }, 0, nanos, TimeUnit.NANOSECONDS);
         }
     }
 
     protected void kill() {
         killflag = true;
-        this.thread.interrupt();
+        synchronized (this) {
+            if (ticker != null) {
+                ticker.cancel(false);
+            }
+            //Break out of anything the port is waiting for
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+        if (watcher != null) {
+            watcher.cancel(false);
+        }
+        schedule();
+    }
+
+    /**
+     * Stops the port from starting any more actions until {@link #resume()} is called.
+     * Called while carrying out an action that can't finish yet, which is then completed by whatever calls {@link #resume()}.
+    **/
+    void suspend() {
+        suspended = true;
+    }
+
+    void resume() {
+        suspended = false;
+        schedule();
+    }
+
+    /**
+     * Runs a task on the port's scheduler after a delay, without holding a thread while waiting.
+     * Used with {@link #suspend()} to finish an action that waits for the robot, e.g. a motor turning or a sensor settling.
+    **/
+    void runLater(Runnable task, long delay, TimeUnit unit) {
+        PortScheduler.timer().schedule(() -> executor.execute(task), delay, unit);
+    }
+
+    /**
+     * @return True once the port has been {@link #kill() killed}, so a task started by {@link #runLater} should give up
+    **/
+    boolean isKilled() {
+        return killflag;
+    }
+
+    /**
+     * Makes sure the port will be run by the executor, if it isn't already
+    **/
+    private void schedule() {
+        if (terminated.isDone() || !scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    drain();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            scheduled.set(false);
+            System.err.println("The scheduler refused to run the port: " + e);
+        }
     }
+
     /**
-     * This method is for internal use, it exists due to Sensors and Motors both extending runnable.
+     * Carries out the waiting actions, and the periodic task when it is due, until there are none left or the batch is used up.
     **/
-    public void run() {
-        while (!killflag) {
-            if (this.parentThread.getState() == Thread.State.TERMINATED) {
-                this.killflag = true;
-                this.close();
-            } else {
-                try {
-                    actSem.acquire();
-                    for (T act: actions) {
-                        action(act);
+    private void drain() {
+        synchronized (this) {
+            runner = Thread.currentThread();
+        }
+        try {
+            T last = suspendedBy;
+            suspendedBy = null;
+            for (int n = 0; n < MAX_BATCH; n++) {
+                if (killflag) {
+                    terminate();
+                    return;
+                }
+                if (parentFinished) {
+                    parentFinished = false;
+                    try {
+                        this.close();
+                    } catch (RuntimeException e) {
+                        System.err.println("Failed to close the port: " + e);
                     }
-                    actions.clear();
-                    actSem.release();
+                    killflag = true;
+                    continue;
+                }
+                if (suspended) {
+                    suspendedBy = last;
+                    break;
+                }
+                if (tickDue) {
+                    tickDue = false;
+                    tick();
+                }
+                T act = last == null ? null : pollGrouped(last);
+                if (act == null) {
+                    act = actions.poll();
+                }
+                if (act == null) {
+                    break;
+                }
+                perform(act);
+                shareResult(act);
+                last = act;
+            }
+        } finally {
+            synchronized (this) {
+                runner = null;
+                //Don't leave an interrupt meant for this port on a thread that may go on to run another one
+                Thread.interrupted();
+            }
+            scheduled.set(false);
+        }
+        if (killflag || parentFinished || (!suspended && (tickDue || !actions.isEmpty()))) {
+            schedule();
+        }
+    }
+
+    /**
+     * Takes the first waiting action that {@link #canRunWith can run with} the last one, as long as no {@link #isBarrier barrier} is queued before it.
+     * The batch size limits how many actions can be moved ahead like this, so the others are never held up for long.
+     * @return The action, or {@code null} if there isn't one
+    **/
+    private T pollGrouped(T last) {
+        for (Iterator<T> it = actions.iterator(); it.hasNext();) {
+            T next = it.next();
+            if (canRunWith(next, last)) {
+                it.remove();
+                return next;
+            }
+            if (isBarrier(next)) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Answers the waiting actions that {@link #canShare can share} the result of an action that has just been carried out,
+     * as long as no {@link #isBarrier barrier} is queued before them.
+     * Callers that ask for the same thing while it is already being fetched get the same answer, without another round trip to the robot.
+    **/
+    private void shareResult(T done) {
+        if (!done.isDone() || done.isCompletedExceptionally()) {
+            return;
+        }
+        long finished = done.getFinishedTime();
+        for (Iterator<T> it = actions.iterator(); it.hasNext();) {
+            T next = it.next();
+            //Only actions asked for before the answer arrived, otherwise a caller could be given an answer older than its question
+            if (next.getEnqueuedTime() - finished < 0 && canShare(next, done)) {
+                it.remove();
+                share(next, done);
+                metrics.coalesced();
+            } else if (isBarrier(next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Whether a waiting action can be answered with the result of an action that has just been carried out, instead of being carried out itself.
+     * By default no actions share results.
+     * @param next The waiting action
+     * @param done The action that has just been carried out, which completed successfully
+     * @return True if {@code next} can be completed by {@link #share}
+    **/
+    protected boolean canShare(T next, T done) {
+        return false;
+    }
+
+    /**
+     * Completes a waiting action with the result of an action that has just been carried out.
+     * Only called when {@link #canShare} returned true.
+     * @param next The waiting action
+     * @param done The action that has just been carried out
+    **/
+    protected void share(T next, T done) {}
+
+    /**
+     * Whether a waiting action may be carried out straight after the last action, ahead of the actions queued before it.
+     * By default actions are always carried out in the order they were queued.
+     * @param next The waiting action
+     * @param last The action that has just been carried out
+     * @return True if {@code next} can be moved ahead
+    **/
+    protected boolean canRunWith(T next, T last) {
+        return false;
+    }
+
+    /**
+     * Whether an action must stay in order with the actions around it, so nothing queued after it can be moved ahead of it
+     * @param act The waiting action
+     * @return True if nothing can be moved past {@code act}
+    **/
+    protected boolean isBarrier(T act) {
+        return true;
+    }
+
+    /**
+     * Releases anybody still waiting on actions that will never be carried out
+    **/
+    private void terminate() {
+        T act;
+        while ((act = actions.poll()) != null) {
+            if (act.cancel(false)) {
+                metrics.cancelled();
+            }
+        }
+        terminated.complete(null);
+    }
+
+    /**
+     * Carries out a single action and makes sure it is completed, so nobody waiting on it is left hanging.
+    **/
+    private void perform(T act) {
+        //Skip anything the caller has already given up on
+        if (act.isDone()) {
+            metrics.cancelled();
+            return;
+        }
+        act.markStarted();
+        long start = act.getStartedTime();
+        metrics.queueWait.record(start - act.getEnqueuedTime());
+        try {
+            action(act);
+            //A suspended action is completed by whoever resumes the port
+            if (!suspended) {
+                act.complete(null);
+            }
+            metrics.completed();
+        } catch (RuntimeException e) {
+            System.err.println("Action " + act.key + " failed: " + e);
+            act.completeExceptionally(e);
+            metrics.failed();
+        }
+        metrics.execution.record(System.nanoTime() - start);
+    }
+
+    private void tick() {
+        try {
+            periodic();
+        } catch (RuntimeException e) {
+            System.err.println("Periodic task failed: " + e);
+        }
+    }
+
+    /**
+     * Called between actions every {@link #setPeriod period}, if one has been set.
+    **/
+    protected void periodic() {}
 
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {}
+    /**
+     * Waits for an action to be carried out by the port.
+     * Any exception thrown while carrying out the action is rethrown here.
+     * @param act The action, which should already have been passed to {@link #addAction}
+     * @return The result the action was completed with
+    **/
+    protected <V> V await(CompletableFuture<V> act) {
+        try {
+            return act.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw e;
+        } finally {
+            if (act instanceof PortAction) {
+                long finished = ((PortAction<?,?>)act).getFinishedTime();
+                if (finished != 0) {
+                    metrics.wakeup.record(System.nanoTime() - finished);
+                }
             }
         }
     }
 
     protected abstract void action(T act);
     protected abstract void close();
-}
\ No newline at end of file
+}
@@ -0,0 +1,223 @@
+package ShefRobot;
+
+/**
+ * A snapshot of how busy one port of a {@link Robot} has been, and where the time has gone.
+ *
+ * Every command sent to a {@link Motor} or {@link Sensor} is queued for that port, and carried out in order.
+ * The time each command takes is split into:
+ * <ul>
+ * <li>queue wait: from being queued to the port starting it (i.e. waiting for earlier commands),</li>
+ * <li>execution: carrying out the command, which for a real robot is mostly the time taken to talk to the EV3,</li>
+ * <li>wakeup: from the command finishing to the program that was waiting for it carrying on.</li>
+ * </ul>
+ * All times are in nanoseconds. The counts cover the time since the port was created or {@link Robot#resetMetrics()} was last called.
+ *
+ * Sensor values returned from a sample that is already being kept up to date (see {@link Sensor#startSampling(int)}) do not need a command, so are not counted.
+ * @see Robot#getMetrics()
+**/
+public final class PortMetrics
+{
+    private final String port;
+    private final long enqueued;
+    private final long completed;
+    private final long failed;
+    private final long cancelled;
+    private final long coalesced;
+    private final int queueDepth;
+    private final int maxQueueDepth;
+    private final Latency queueWait;
+    private final Latency execution;
+    private final Latency wakeup;
+
+    PortMetrics(String port, long enqueued, long completed, long failed, long cancelled, long coalesced,
+        int queueDepth, int maxQueueDepth, Latency queueWait, Latency execution, Latency wakeup)
+    {
+        this.port = port;
+        this.enqueued = enqueued;
+        this.completed = completed;
+        this.failed = failed;
+        this.cancelled = cancelled;
+        this.coalesced = coalesced;
+        this.queueDepth = queueDepth;
+        this.maxQueueDepth = maxQueueDepth;
+        this.queueWait = queueWait;
+        this.execution = execution;
+        this.wakeup = wakeup;
+    }
+
+    /**
+     * @return The name of the port, e.g. {@code "A"} or {@code "S1"}
+    **/
+    public String getPort()
+    {
+        return port;
+    }
+    /**
+     * @return The number of commands sent to the port
+    **/
+    public long getEnqueued()
+    {
+        return enqueued;
+    }
+    /**
+     * @return The number of commands that were carried out successfully
+    **/
+    public long getCompleted()
+    {
+        return completed;
+    }
+    /**
+     * @return The number of commands that failed
+    **/
+    public long getFailed()
+    {
+        return failed;
+    }
+    /**
+     * @return The number of commands that were never carried out, e.g. because the port was closed first
+    **/
+    public long getCancelled()
+    {
+        return cancelled;
+    }
+    /**
+     * @return The number of commands that were merged into another command, instead of being sent separately.
+     * This counts motor speed and direction changes merged while they wait (see {@link Motor}),
+     * and reads answered by an identical read that was already being carried out.
+    **/
+    public long getCoalesced()
+    {
+        return coalesced;
+    }
+    /**
+     * @return The number of commands waiting when the snapshot was taken
+    **/
+    public int getQueueDepth()
+    {
+        return queueDepth;
+    }
+    /**
+     * @return The most commands that have been waiting at once
+    **/
+    public int getMaxQueueDepth()
+    {
+        return maxQueueDepth;
+    }
+    /**
+     * @return The time commands spent waiting for earlier commands
+    **/
+    public Latency getQueueWait()
+    {
+        return queueWait;
+    }
+    /**
+     * @return The time taken to carry out commands
+    **/
+    public Latency getExecution()
+    {
+        return execution;
+    }
+    /**
+     * @return The time between a command finishing and the program waiting for it carrying on
+    **/
+    public Latency getWakeup()
+    {
+        return wakeup;
+    }
+
+    @Override
+    public String toString()
+    {
+        return port+": "+completed+" completed, "+failed+" failed, "+cancelled+" cancelled, "+coalesced+" coalesced, queue "+queueDepth+" (max "+maxQueueDepth+")"
+            +", wait "+queueWait+", execution "+execution+", wakeup "+wakeup;
+    }
+
+    /**
+     * A histogram of times in nanoseconds.
+     * Values are counted in buckets that grow with the value, so percentiles are accurate to within 12.5%, however large the times.
+    **/
+    public static final class Latency
+    {
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        Latency(long[] counts, long total, long max)
+        {
+            this.counts = counts;
+            long c = 0;
+            for(long n:counts)
+                c += n;
+            this.count = c;
+            this.total = total;
+            this.max = max;
+        }
+
+        /**
+         * @return The number of times recorded
+        **/
+        public long getCount()
+        {
+            return count;
+        }
+        /**
+         * @return The mean time, or 0 if none have been recorded
+        **/
+        public long getMean()
+        {
+            return count == 0 ? 0 : total / count;
+        }
+        /**
+         * @return The longest time recorded
+        **/
+        public long getMax()
+        {
+            return max;
+        }
+        public long getP50()
+        {
+            return getPercentile(50);
+        }
+        public long getP90()
+        {
+            return getPercentile(90);
+        }
+        public long getP99()
+        {
+            return getPercentile(99);
+        }
+        /**
+         * Returns the time that the given percentage of the recorded times were no longer than.
+         * @param percentile The percentage, from 0 to 100
+         * @return The time, or 0 if none have been recorded
+         * @throws IllegalArgumentException When the percentage is not between 0 and 100
+        **/
+        public long getPercentile(double percentile)
+        {
+            if(percentile < 0 || percentile > 100)
+                throw new IllegalArgumentException("Invalid percentile argument: "+percentile+"\n Percentiles should be between 0 and 100.");
+            if(count == 0)
+                return 0;
+            long rank = Math.max(1, (long)Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for(int i=0;i<counts.length;i++)
+            {
+                seen += counts[i];
+                if(seen >= rank)
+                {
+                    //Report the top of the bucket, as HdrHistogram does, but never more than was actually seen
+                    long top = i+1 < counts.length ? MetricsRecorder.lowestValue(i+1) - 1 : Long.MAX_VALUE;
+                    return Math.min(top, max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("p50 %.1fus p99 %.1fus max %.1fus", getP50()/1e3, getP99()/1e3, max/1e3);
+        }
+    }
+}
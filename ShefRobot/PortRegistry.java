@@ -0,0 +1,120 @@
+package ShefRobot;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Internal class that keeps track of the Motor or Sensor open on each port of a {@link Robot}.
+ *
+ * Looking up a port never blocks. Opening a port, or replacing what is open on it with a different type, is done by one thread
+ * at a time for each port, so two threads asking for the same port at once can't both open it.
+ * @param <P> The enum of ports
+ * @param <D> The type of Motor or Sensor
+**/
+final class PortRegistry<P extends Enum<P>, D extends PortManager<?>>
+{
+    private final P[] ports;
+    private final AtomicReferenceArray<D> open;
+    /**
+     * One lock for each port, held while opening it
+    **/
+    private final Object[] locks;
+
+    PortRegistry(Class<P> portType)
+    {
+        this.ports = portType.getEnumConstants();
+        this.open = new AtomicReferenceArray<D>(ports.length);
+        this.locks = new Object[ports.length];
+        for(int i=0;i<locks.length;i++)
+            locks[i] = new Object();
+    }
+
+    /**
+     * @return What is open on the port, or {@code null} if nothing is
+    **/
+    D get(P port)
+    {
+        return open.get(port.ordinal());
+    }
+
+    /**
+     * Returns what is open on the port if it has the given type, otherwise closes whatever is open and opens a new one.
+     * The new one isn't opened until the old one has finished its last action and released the port.
+     * @param port The port
+     * @param type The type wanted
+     * @param factory Opens a new one of the type wanted
+     * @return What is open on the port, which is always of the type wanted
+    **/
+    <T extends D> T get(P port, Class<T> type, Supplier<T> factory)
+    {
+        int i = port.ordinal();
+        D current = open.get(i);
+        if(type.isInstance(current))
+            return type.cast(current);
+        synchronized(locks[i])
+        {
+            //Somebody else may have opened it while we waited
+            current = open.get(i);
+            if(type.isInstance(current))
+                return type.cast(current);
+            if(current != null && open.compareAndSet(i, current, null))
+            {//A different type is open on the port, so close it first, and wait for it to stop, to free the port
+                current.close();
+                current.awaitTermination();
+            }
+            T created = factory.get();
+            open.set(i, created);
+            return created;
+        }
+    }
+
+    /**
+     * Forgets what is open on the port, without closing it
+     * @return What was open on the port, or {@code null} if nothing was
+    **/
+    D remove(P port)
+    {
+        return open.getAndSet(port.ordinal(), null);
+    }
+
+    /**
+     * Forgets the port, but only if {@code device} is what is open on it.
+     * Used when a Motor or Sensor closes itself, so it can't forget a newer one opened on the same port.
+    **/
+    void remove(P port, D device)
+    {
+        open.compareAndSet(port.ordinal(), device, null);
+    }
+
+    /**
+     * @return What is open on each port, in port order
+    **/
+    List<D> values()
+    {
+        List<D> values = new ArrayList<D>(ports.length);
+        for(int i=0;i<ports.length;i++)
+        {
+            D d = open.get(i);
+            if(d != null)
+                values.add(d);
+        }
+        return values;
+    }
+
+    /**
+     * Forgets every port, without closing them
+     * @return What was open on each port, in port order
+    **/
+    List<D> removeAll()
+    {
+        List<D> removed = new ArrayList<D>(ports.length);
+        for(int i=0;i<ports.length;i++)
+        {
+            D d = open.getAndSet(i, null);
+            if(d != null)
+                removed.add(d);
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,164 @@
+package ShefRobot;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which threads carry out the commands sent to {@link Motor Motors} and {@link Sensor Sensors}.
+ *
+ * Commands sent to the same port are always carried out one at a time, in the order they were sent, whichever scheduler is used.
+ * The threads are only busy while a port has commands waiting, so idle ports (and idle {@link Robot Robots}) don't use a thread at all.
+ *
+ * By default every Robot uses {@link #getDefault()}, a shared {@link #cached() cached} pool, which gives every busy port a thread of its own.
+ * Commands that wait for the robot don't keep a thread while they wait: a {@link Motor#rotate(int)} is checked from a timer until the motor
+ * has stopped, and a {@link Sensor} waits to settle after changing mode in the same way, with the port suspended meanwhile.
+ * A thread is only held for each call to the robot itself, so a pool with a fixed number of threads (see {@link #shared(int)}) is safe to use.
+ * On Java 21 or later, a virtual thread can be used for each busy port instead (see {@link #virtualThreads()}).
+ * @see Robot#Robot(Backend, PortScheduler)
+**/
+public final class PortScheduler
+{
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static volatile PortScheduler defaultScheduler;
+
+    private final Executor executor;
+
+    private PortScheduler(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a scheduler that gives every busy port a thread, reusing threads that have become idle.
+     * The threads stop again after being idle for a while, so the number of threads follows the number of ports with commands waiting.
+     * @return The scheduler
+    **/
+    public static PortScheduler cached()
+    {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new DaemonThreadFactory("ShefRobot port"));
+        return new PortScheduler(pool);
+    }
+    /**
+     * Creates a scheduler that shares a fixed number of threads between all the ports that use it.
+     * The threads are only started when they are needed, and stop again after being idle for a while.
+     * Commands that wait for the robot (e.g. a {@link Motor#rotate(int)} that waits for the motor to stop) give their thread back while they wait,
+     * so a few threads are enough for many ports, though each call to the robot holds a thread for its round trip.
+     * @param threads The most threads that will be used at once
+     * @return The scheduler
+     * @throws IllegalArgumentException When threads is less than 1
+    **/
+    public static PortScheduler shared(int threads)
+    {
+        if(threads < 1)
+            throw new IllegalArgumentException("Invalid threads argument: "+threads+"\n At least one thread is needed.");
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("ShefRobot port"));
+        pool.allowCoreThreadTimeOut(true);
+        return new PortScheduler(pool);
+    }
+    /**
+     * Creates a scheduler that carries out the commands of each busy port on a new virtual thread.
+     * @return The scheduler
+     * @throws UnsupportedOperationException When virtual threads are not available, i.e. before Java 21
+    **/
+    public static PortScheduler virtualThreads()
+    {
+        try
+        {
+            //Looked up at runtime, so the library can still be built for, and run on, older versions of Java
+            return new PortScheduler((Executor)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+        }
+        catch(ReflectiveOperationException e)
+        {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later.");
+        }
+    }
+    /**
+     * Creates a scheduler that uses the given executor.
+     * The executor can run the commands of different ports at the same time, the scheduler makes sure each port only has one running.
+     * Commands can take as long as the EV3 takes to respond, so an executor with very few threads will make ports wait for each other.
+     * @param executor The executor to carry out commands with
+     * @return The scheduler
+    **/
+    public static PortScheduler of(Executor executor)
+    {
+        if(executor == null)
+            throw new IllegalArgumentException("Invalid executor argument: null");
+        return new PortScheduler(executor);
+    }
+    /**
+     * Returns the scheduler used by Robots that aren't given one.
+     * Unless {@link #setDefault} has been called, this is a {@link #cached} pool.
+     * @return The default scheduler
+    **/
+    public static PortScheduler getDefault()
+    {
+        PortScheduler scheduler = defaultScheduler;
+        if(scheduler == null)
+        {
+            synchronized(PortScheduler.class)
+            {
+                if(defaultScheduler == null)
+                    defaultScheduler = cached();
+                scheduler = defaultScheduler;
+            }
+        }
+        return scheduler;
+    }
+    /**
+     * Sets the scheduler used by Robots created after this call that aren't given one.
+     * @param scheduler The new default scheduler
+    **/
+    public static void setDefault(PortScheduler scheduler)
+    {
+        if(scheduler == null)
+            throw new IllegalArgumentException("Invalid scheduler argument: null");
+        defaultScheduler = scheduler;
+    }
+
+    Executor getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * Returns the timer shared by all ports, which wakes them for periodic tasks.
+     * The timer only ever hands work to the ports' schedulers, so a single thread is enough.
+    **/
+    static ScheduledExecutorService timer()
+    {
+        return Timer.INSTANCE;
+    }
+
+    //Created on first use
+    private static class Timer
+    {
+        static final ScheduledThreadPoolExecutor INSTANCE = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("ShefRobot timer"));
+        static
+        {
+            INSTANCE.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    /**
+     * Creates daemon threads, so that the ports never stop the program from exiting.
+     * The ports are still closed when it exits, by the shutdown hook each {@link Robot} adds.
+    **/
+    static class DaemonThreadFactory implements ThreadFactory
+    {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+        DaemonThreadFactory(String name)
+        {
+            this.name = name;
+        }
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, name+" "+count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package ShefRobot;
+
+import lejos.remote.ev3.*;
+import lejos.hardware.*;
+import lejos.hardware.sensor.*;
+import lejos.robotics.SampleProvider;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Internal class connecting a {@link Robot} to a real EV3 using the LeJOS remote API.
+ * When the connection to the EV3 fails, it is evicted from {@link Discovery}, so Robots created afterwards open a new one.
+ * Other failures, such as asking for a port that is in use, leave the connection shared.
+**/
+class RemoteBackend implements Backend
+{
+    private final Discovery.Connection connection;
+    private final RemoteEV3 ev3;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * @param connection The connection to the EV3, released by {@link #release()}
+    **/
+    RemoteBackend(Discovery.Connection connection)
+    {
+        this.connection = connection;
+        this.ev3 = connection.get();
+    }
+
+    /**
+     * @return The RemoteEV3 object from the LeJOS package that this backend talks to
+    **/
+    RemoteEV3 getEV3()
+    {
+        return ev3;
+    }
+
+    /**
+     * Called when the Robot is closed, to stop sharing the connection
+    **/
+    void release()
+    {
+        if(released.compareAndSet(false, true))
+            connection.release();
+    }
+
+    /**
+     * Evicts the connection after a call fails because of the connection itself
+     * @return The failure, to be rethrown
+    **/
+    private <E extends Exception> E failed(E e)
+    {
+        if(isTransportFailure(e))
+            connection.evict();
+        return e;
+    }
+
+    /**
+     * LeJOS wraps the RemoteExceptions and IOExceptions of a broken connection in RuntimeExceptions, so the causes are checked too
+     * @return True if the failure came from the connection to the EV3
+    **/
+    private static boolean isTransportFailure(Throwable e)
+    {
+        for(Throwable t = e; t != null; t = t.getCause())
+        {
+            if(t instanceof IOException)
+                return true;
+        }
+        return false;
+    }
+
+    public RegulatedMotor createRegulatedMotor(String port, char type)
+    {
+        try
+        {
+            return new RemoteMotor(ev3.createRegulatedMotor(port, type));
+        }
+        catch(RuntimeException e)
+        {
+            throw failed(e);
+        }
+    }
+
+    public SensorDevice createSensor(String port, String sensorClass)
+    {
+        try
+        {
+            if(sensorClass.equals(EV3ColorSensor.class.getName()))
+                return new LocalSensor(new EV3ColorSensor(ev3.getPort(port)));
+            if(sensorClass.equals(EV3GyroSensor.class.getName()))
+                return new LocalSensor(new EV3GyroSensor(ev3.getPort(port)));
+            if(sensorClass.equals(EV3TouchSensor.class.getName()))
+                return new LocalSensor(new EV3TouchSensor(ev3.getPort(port)));
+            if(sensorClass.equals(EV3UltrasonicSensor.class.getName()))
+                return new LocalSensor(new EV3UltrasonicSensor(ev3.getPort(port)));
+        }
+        catch(RuntimeException e)
+        {
+            throw failed(e);
+        }
+        throw new RuntimeException("Unexpected sensor type: "+ sensorClass);
+    }
+
+    public AudioDevice getAudio()
+    {
+        final Audio audio = ev3.getAudio();
+        return new AudioDevice() {
+            public int getVolume() {
+                return audio.getVolume();
+            }
+            public void setVolume(int volume) {
+                audio.setVolume(volume);
+            }
+            public void playTone(int freq, int duration) {
+                audio.playTone(freq, duration);
+            }
+            public void playTone(int freq, int duration, int volume) {
+                audio.playTone(freq, duration, volume);
+            }
+        };
+    }
+
+    public Keys getKeys()
+    {
+        return ev3.getKeys();
+    }
+
+    public Key getKey(String name)
+    {
+        return ev3.getKey(name);
+    }
+
+    /**
+     * A call to the EV3
+    **/
+    private interface RemoteCall<V>
+    {
+        V call() throws RemoteException;
+    }
+
+    /**
+     * Makes a call to the EV3, evicting the connection if the connection fails
+    **/
+    private <V> V call(RemoteCall<V> call) throws RemoteException
+    {
+        try
+        {
+            return call.call();
+        }
+        catch(RemoteException e)
+        {
+            throw failed(e);
+        }
+        catch(RuntimeException e)
+        {
+            throw failed(e);
+        }
+    }
+
+    /**
+     * Forwards each call to the motor on the EV3
+    **/
+    private class RemoteMotor implements RegulatedMotor
+    {
+        private final RMIRegulatedMotor motor;
+        RemoteMotor(RMIRegulatedMotor motor)
+        {
+            this.motor = motor;
+        }
+        public void forward() throws RemoteException { call(() -> { motor.forward(); return null; }); }
+        public void backward() throws RemoteException { call(() -> { motor.backward(); return null; }); }
+        public void stop(boolean immediateReturn) throws RemoteException { call(() -> { motor.stop(immediateReturn); return null; }); }
+        public void setSpeed(int speed) throws RemoteException { call(() -> { motor.setSpeed(speed); return null; }); }
+        public void rotate(int angle, boolean immediateReturn) throws RemoteException { call(() -> { motor.rotate(angle, immediateReturn); return null; }); }
+        public void rotateTo(int limitAngle, boolean immediateReturn) throws RemoteException { call(() -> { motor.rotateTo(limitAngle, immediateReturn); return null; }); }
+        public void resetTachoCount() throws RemoteException { call(() -> { motor.resetTachoCount(); return null; }); }
+        public int getSpeed() throws RemoteException { return call(motor::getSpeed); }
+        public float getMaxSpeed() throws RemoteException { return call(motor::getMaxSpeed); }
+        public int getTachoCount() throws RemoteException { return call(motor::getTachoCount); }
+        public boolean isMoving() throws RemoteException { return call(motor::isMoving); }
+        public boolean isStalled() throws RemoteException { return call(motor::isStalled); }
+        public void close() throws RemoteException { call(() -> { motor.close(); return null; }); }
+    }
+
+    /**
+     * Wraps a LeJOS sensor object, which talks to the sensor port of the EV3
+    **/
+    private class LocalSensor implements SensorDevice
+    {
+        private final BaseSensor sensor;
+        LocalSensor(BaseSensor sensor)
+        {
+            this.sensor = sensor;
+        }
+        public int sampleSize()
+        {
+            return sensor.sampleSize();
+        }
+        public void fetchSample(float[] sample, int offset)
+        {
+            try
+            {
+                sensor.fetchSample(sample, offset);
+            }
+            catch(RuntimeException e)
+            {
+                throw failed(e);
+            }
+        }
+        public void setCurrentMode(int mode)
+        {
+            sensor.setCurrentMode(mode);
+        }
+        public void close()
+        {
+            sensor.close();
+        }
+        public SampleProvider getMode(String modeName)
+        {
+            if(sensor instanceof EV3ColorSensor)
+            {
+                EV3ColorSensor color = (EV3ColorSensor)sensor;
+                switch(modeName) {
+                    case "ColorID": return color.getColorIDMode();
+                    case "Red": return color.getRedMode();
+                    case "RGB": return color.getRGBMode();
+                    case "Ambient": return color.getAmbientMode();
+                }
+            }
+            else if(sensor instanceof EV3GyroSensor)
+            {
+                EV3GyroSensor gyro = (EV3GyroSensor)sensor;
+                switch(modeName) {
+                    case "Angle and Rate": return gyro.getAngleAndRateMode();
+                    case "Angle": return gyro.getAngleMode();
+                    case "Rate": return gyro.getRateMode();
+                }
+            }
+            else if(sensor instanceof EV3UltrasonicSensor)
+            {
+                EV3UltrasonicSensor ultrasonic = (EV3UltrasonicSensor)sensor;
+                switch(modeName) {
+                    case "Distance": return ultrasonic.getDistanceMode();
+                    case "Listen": return ultrasonic.getListenMode();
+                }
+            }
+            else if(modeName.equals("Touch"))
+            {
+                return sensor;
+            }
+            throw new IllegalArgumentException("Unknown sensor mode: "+modeName);
+        }
+        public void setFloodlight(int color)
+        {
+            ((EV3ColorSensor)sensor).setFloodlight(color);
+        }
+        public int getFloodlight()
+        {
+            return ((EV3ColorSensor)sensor).getFloodlight();
+        }
+        public void reset()
+        {
+            ((EV3GyroSensor)sensor).reset();
+        }
+        public void enable()
+        {
+            ((EV3UltrasonicSensor)sensor).enable();
+        }
+        public void disable()
+        {
+            ((EV3UltrasonicSensor)sensor).disable();
+        }
+        public boolean isEnabled()
+        {
+            return ((EV3UltrasonicSensor)sensor).isEnabled();
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package ShefRobot;
+
+import lejos.hardware.Key;
+import lejos.hardware.Keys;
+import lejos.robotics.SampleProvider;
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An EV3 that plays back a recording made with a {@link FlightRecorder}, which can be given to {@link Robot#Robot(Backend)}
+ * to run a program against the sensor readings and motor positions of an earlier run, without a robot.
+ *
+ * Every reading (e.g. {@link Sensor#getRawSample()}, {@link ColorSensor#getColor()} or {@link Motor#getTachoCount()}) is answered with
+ * the latest value recorded for the same port and mode (or motor reading), up to the point the replay has reached.
+ * Commands sent to the motors and sensors (e.g. {@link Motor#forward()}) are accepted but change nothing, as what the robot did next is already in the recording.
+ * Readings that weren't recorded return zeros, and a motor's speed is the last one it was set to.
+ *
+ * How far the replay has reached depends on its {@link Mode}:
+ * <ul>
+ * <li>{@link Mode#REAL_TIME} follows the clock, so a reading returns what the robot saw the same time after the recording started as has passed since the replay was created.</li>
+ * <li>{@link Mode#FAST} moves on by one recorded reading every time the program takes a reading, so the program sees every value in the order it was recorded, as fast as it can read them.
+ * A reading that isn't recorded again later in the recording doesn't move the replay on.
+ * Other waits in the program still take as long as they did, e.g. the time a {@link ColorSensor} takes to settle after switching mode (see {@link ColorSensor#setSettleTime}).</li>
+ * <li>{@link Mode#STEPPED} only moves on when told to with {@link #step()} or {@link #advance(long)}, e.g. by a test stepping through a run that went wrong.</li>
+ * </ul>
+ * The recording is read from the file as it is played rather than loaded first, so recordings much larger than the memory of the program can be replayed.
+ * <pre>
+ * ReplayEV3 replay = new ReplayEV3(new File("run.rec"), ReplayEV3.Mode.FAST);
+ * Robot robot = new Robot(replay);
+ * ColorSensor sensor = robot.getColorSensor(Sensor.Port.S1);
+ * while(!replay.isFinished())
+ *     System.out.println(sensor.getColor());
+ * </pre>
+ * @see FlightRecorder
+ * @see Robot#Robot(Backend)
+**/
+public class ReplayEV3 implements Backend, Closeable
+{
+    /**
+     * How a replay moves through the recording
+    **/
+    public enum Mode {
+        /** Moves through the recording at the speed it was recorded */
+        REAL_TIME,
+        /** Moves on by one recorded reading each time the program takes the same reading */
+        FAST,
+        /** Only moves on when {@link ReplayEV3#step()} or {@link ReplayEV3#advance(long)} is called */
+        STEPPED
+    }
+
+    private static final int MODES;
+    private static final int COMMANDS;
+    static {
+        int modes = 0;
+        for(Sensor.Type t:Sensor.Type.values())
+            modes = Math.max(modes, t.modes.length);
+        MODES = modes;
+        COMMANDS = Math.max(Math.max(TouchSensorAction.values().length, UltrasonicSensorAction.values().length),
+            Math.max(GyroSensorAction.values().length, ColorSensorAction.values().length));
+    }
+
+    private final FlightRecorder.Reader reader;
+    private final Mode mode;
+
+    /**
+     * The next record to play, if there is one (guarded by this)
+    **/
+    private final FlightRecorder.Record pending = new FlightRecorder.Record();
+    private boolean havePending;
+    /**
+     * Used to look ahead for a reading in {@link Mode#FAST}, and the position in the file after which each reading is known not to be recorded again (guarded by this)
+    **/
+    private final FlightRecorder.Record scan = new FlightRecorder.Record();
+    private final Map<Long, Integer> unmatchedFrom = new HashMap<Long, Integer>();
+    /**
+     * When the replay started from, and how far the replay has reached, in the recording's {@link System#nanoTime()}
+    **/
+    private final long origin;
+    private long clock;
+    private final long wallOrigin = System.nanoTime();
+    private long played;
+
+    /**
+     * The latest recorded values (guarded by this).
+     * Motor readings by port and {@link MotorAction}, samples by port and index of the mode, other sensor commands by port and action
+    **/
+    private final int[][] motorValues = new int[Motor.Port.values().length][MotorAction.values().length];
+    private final boolean[][] motorKnown = new boolean[Motor.Port.values().length][MotorAction.values().length];
+    private final float[][][] samples = new float[Sensor.Port.values().length][MODES][FlightRecorder.MAX_VALUES];
+    private final int[][] sampleCounts = new int[Sensor.Port.values().length][MODES];
+    private final float[][] commandValues = new float[Sensor.Port.values().length][COMMANDS];
+    private final boolean[][] commandKnown = new boolean[Sensor.Port.values().length][COMMANDS];
+
+    /**
+     * Opens a recording to replay.
+     * In {@link Mode#REAL_TIME} the replay starts straight away, from when the recording was opened (or its oldest record, once the oldest have been overwritten).
+     * @param file The file written by a {@link FlightRecorder}
+     * @param mode How the replay moves through the recording
+     * @throws IOException When the file can't be read, or isn't a recording
+    **/
+    public ReplayEV3(File file, Mode mode) throws IOException
+    {
+        if(mode == null)
+            throw new IllegalArgumentException("Invalid mode argument: null\n A replay mode is needed.");
+        this.mode = mode;
+        this.reader = new FlightRecorder.Reader(file);
+        havePending = reader.next(pending);
+        //From when the recording was opened, unless its start has since been overwritten
+        origin = havePending && pending.sequence > 0 ? pending.start : pending.nanos;
+        clock = origin;
+    }
+
+    /**
+     * @return How the replay moves through the recording
+    **/
+    public Mode getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * Plays the next record of the recording.
+     * @return False when the recording has finished
+     * @throws IllegalStateException When the replay isn't {@link Mode#STEPPED}
+    **/
+    public synchronized boolean step()
+    {
+        checkStepped();
+        if(!havePending)
+            return false;
+        play();
+        return true;
+    }
+
+    /**
+     * Moves the replay on by the given time, playing every record started before then
+     * @param nanos The time to move on by, in nanoseconds
+     * @throws IllegalArgumentException When nanos is negative
+     * @throws IllegalStateException When the replay isn't {@link Mode#STEPPED}
+    **/
+    public synchronized void advance(long nanos)
+    {
+        checkStepped();
+        if(nanos < 0)
+            throw new IllegalArgumentException("Invalid nanos argument: "+nanos+"\n The replay can't go backwards.");
+        playTo(clock + nanos);
+    }
+
+    /**
+     * @return How far the replay has reached, in nanoseconds since the point it started from
+    **/
+    public synchronized long getTime()
+    {
+        return clock - origin;
+    }
+
+    /**
+     * @return The number of records played so far
+    **/
+    public synchronized long getRecordsPlayed()
+    {
+        return played;
+    }
+
+    /**
+     * @return True once every record has been played, after which readings keep returning the last recorded values
+    **/
+    public synchronized boolean isFinished()
+    {
+        return !havePending;
+    }
+
+    /**
+     * Closes the recording. Readings taken afterwards keep returning the values played so far.
+    **/
+    @Override
+    public synchronized void close() throws IOException
+    {
+        havePending = false;
+        reader.close();
+    }
+
+    public RegulatedMotor createRegulatedMotor(String port, char type)
+    {
+        return new ReplayMotor(Motor.Port.valueOf(port).ordinal());
+    }
+
+    public SensorDevice createSensor(String port, String sensorClass)
+    {
+        for(Sensor.Type t:Sensor.Type.values())
+        {
+            if(t.absoluteClass.equals(sensorClass))
+                return new ReplaySensor(Sensor.Port.valueOf(port).ordinal(), t.modes);
+        }
+        throw new RuntimeException("Unexpected sensor type: "+ sensorClass);
+    }
+
+    public AudioDevice getAudio()
+    {
+        return new AudioDevice() {
+            private volatile int volume = Speaker.VOLUME_MAX;
+            public int getVolume() {
+                return volume;
+            }
+            public void setVolume(int volume) {
+                this.volume = volume;
+            }
+            public void playTone(int freq, int duration) {
+                //Silent, and only takes as long as the tone when keeping to the recording's time
+                if(mode == Mode.REAL_TIME)
+                    SimulatedEV3.pause(TimeUnit.MILLISECONDS.toNanos(duration));
+            }
+        };
+    }
+
+    public Keys getKeys()
+    {
+        return null;
+    }
+
+    public Key getKey(String name)
+    {
+        return null;
+    }
+
+    private void checkStepped()
+    {
+        if(mode != Mode.STEPPED)
+            throw new IllegalStateException("Only a STEPPED replay can be stepped, this one is "+mode+".");
+    }
+
+    /**
+     * Moves the replay on for a reading about to be taken (called with the lock held)
+     * @param kind The kind of record the reading was recorded as
+     * @param port The ordinal of the port
+     * @param action The index of the mode, or the ordinal of the action
+    **/
+    private void moveOn(FlightRecorder.Kind kind, int port, int action)
+    {
+        switch(mode) {
+            case REAL_TIME:
+                playTo(origin + (System.nanoTime() - wallOrigin));
+                break;
+            case FAST:
+                if(!havePending)
+                    break;
+                //Readings that aren't recorded again don't move the replay on
+                if(!matches(pending, kind, port, action) && !recordedLater(kind, port, action))
+                    break;
+                while(havePending)
+                {
+                    boolean match = matches(pending, kind, port, action);
+                    play();
+                    if(match)
+                        break;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static boolean matches(FlightRecorder.Record r, FlightRecorder.Kind kind, int port, int action)
+    {
+        return r.kind == kind && r.port == port && r.action == action;
+    }
+
+    /**
+     * Looks ahead of the pending record for the same reading, leaving the reader where it was (called with the lock held)
+    **/
+    private boolean recordedLater(FlightRecorder.Kind kind, int port, int action)
+    {
+        Long key = ((long)kind.ordinal() << 48) | ((long)port << 32) | (action & 0xFFFFFFFFL);
+        int position = reader.position();
+        Integer unmatched = unmatchedFrom.get(key);
+        if(unmatched != null && unmatched <= position)
+            return false;
+        boolean found = false;
+        while(!found && reader.next(scan))
+            found = matches(scan, kind, port, action);
+        reader.seek(position);
+        if(!found)
+            unmatchedFrom.put(key, position);
+        return found;
+    }
+
+    /**
+     * Plays every record started by the given time (called with the lock held)
+    **/
+    private void playTo(long time)
+    {
+        while(havePending && pending.start - time <= 0)
+            play();
+        if(time - clock > 0)
+            clock = time;
+    }
+
+    /**
+     * Stores the values of the pending record and reads the next one (called with the lock held)
+    **/
+    private void play()
+    {
+        FlightRecorder.Record r = pending;
+        if(r.start - clock > 0)
+            clock = r.start;
+        played++;
+        if(!r.failed && r.count > 0)
+        {
+            switch(r.kind) {
+                case MOTOR:
+                    if(r.action < MotorAction.values().length)
+                    {
+                        motorValues[r.port][r.action] = r.getInt(0);
+                        motorKnown[r.port][r.action] = true;
+                    }
+                    break;
+                case SENSOR_SAMPLE:
+                    if(r.action < MODES)
+                    {
+                        for(int i=0;i<r.count;i++)
+                            samples[r.port][r.action][i] = r.getFloat(i);
+                        sampleCounts[r.port][r.action] = r.count;
+                    }
+                    break;
+                default:
+                    if(r.action < COMMANDS)
+                    {
+                        commandValues[r.port][r.action] = r.getFloat(0);
+                        commandKnown[r.port][r.action] = true;
+                    }
+            }
+        }
+        havePending = reader.next(pending);
+    }
+
+    /**
+     * Reads a motor, or returns the given value if the reading was never recorded
+    **/
+    private synchronized int motor(int port, MotorAction action, int otherwise)
+    {
+        moveOn(FlightRecorder.Kind.MOTOR, port, action.ordinal());
+        return motorKnown[port][action.ordinal()] ? motorValues[port][action.ordinal()] : otherwise;
+    }
+
+    /**
+     * Reads a sensor sample into {@code dst}, padded with zeros
+     * @param next False to return the latest sample without moving on, e.g. for the read that switches the sensor's mode, which isn't recorded
+    **/
+    private synchronized void sample(int port, int modeIndex, boolean next, float[] dst, int offset, int size)
+    {
+        if(next)
+            moveOn(FlightRecorder.Kind.SENSOR_SAMPLE, port, modeIndex);
+        int count = Math.min(size, sampleCounts[port][modeIndex]);
+        System.arraycopy(samples[port][modeIndex], 0, dst, offset, count);
+        Arrays.fill(dst, offset + count, offset + size, 0f);
+    }
+
+    /**
+     * Returns the latest recorded result of a sensor command, or the given value if it was never recorded
+    **/
+    private synchronized float command(int port, int action, float otherwise)
+    {
+        if(mode == Mode.REAL_TIME)
+            playTo(origin + (System.nanoTime() - wallOrigin));
+        return commandKnown[port][action] ? commandValues[port][action] : otherwise;
+    }
+
+    /**
+     * A motor of the replay, answering readings from the recording
+    **/
+    private class ReplayMotor implements Backend.RegulatedMotor
+    {
+        private final int port;
+        private volatile int speed = SimulatedMotor.DEFAULT_SPEED;
+
+        ReplayMotor(int port)
+        {
+            this.port = port;
+        }
+
+        public void forward() {}
+        public void backward() {}
+        public void stop(boolean immediateReturn) {}
+        public void setSpeed(int speed)
+        {
+            this.speed = speed;
+        }
+        public void rotate(int angle, boolean immediateReturn) {}
+        public void rotateTo(int limitAngle, boolean immediateReturn) {}
+        public void resetTachoCount() {}
+        public int getSpeed()
+        {
+            return motor(port, MotorAction.GET_SPEED, speed);
+        }
+        public float getMaxSpeed()
+        {
+            return motor(port, MotorAction.GET_MAX_SPEED, (int)SimulatedMotor.MAX_SPEED);
+        }
+        public int getTachoCount()
+        {
+            return motor(port, MotorAction.GET_TACHO_COUNT, 0);
+        }
+        public boolean isMoving()
+        {
+            return motor(port, MotorAction.GET_IS_MOVING, 0) != 0;
+        }
+        public boolean isStalled()
+        {
+            return motor(port, MotorAction.GET_IS_STALLED, 0) != 0;
+        }
+        public void close() {}
+    }
+
+    /**
+     * A sensor of the replay, answering samples from the recording
+    **/
+    private class ReplaySensor implements Backend.SensorDevice
+    {
+        private final int port;
+        private final String[] modes;
+        private final SampleProvider[] providers;
+        private volatile int currentMode;
+        /**
+         * The mode the sensor was last read in or switched to, or -1 before the first read.
+         * Sensors with one mode are never switched, so their first read is recorded.
+        **/
+        private volatile int lastMode;
+        private volatile int floodlight = ColorSensor.FloodlightState.RED.internalId;
+        private volatile boolean enabled = true;
+
+        ReplaySensor(int port, String[] modes)
+        {
+            this.port = port;
+            this.modes = modes;
+            this.lastMode = modes.length == 1 ? 0 : -1;
+            this.providers = new SampleProvider[modes.length];
+            for(int i=0;i<modes.length;i++)
+                providers[i] = new ModeProvider(i);
+        }
+
+        public int sampleSize()
+        {
+            return providers[currentMode].sampleSize();
+        }
+        public void fetchSample(float[] sample, int offset)
+        {
+            //Reads of the sensor itself are in the mode it is already in, so are always recorded
+            lastMode = currentMode;
+            sample(port, currentMode, true, sample, offset, providers[currentMode].sampleSize());
+        }
+        public SampleProvider getMode(String modeName)
+        {
+            for(int i=0;i<modes.length;i++)
+            {
+                if(modes[i].equals(modeName))
+                    return providers[i];
+            }
+            throw new IllegalArgumentException("Unknown sensor mode: "+modeName);
+        }
+        public void setCurrentMode(int mode)
+        {
+            if(mode < 0 || mode >= modes.length)
+                throw new IllegalArgumentException("Unknown sensor mode: "+mode);
+            currentMode = mode;
+            lastMode = mode;
+        }
+        public void close() {}
+
+        public void setFloodlight(int color)
+        {
+            floodlight = color;
+        }
+        public int getFloodlight()
+        {
+            return (int)command(port, ColorSensorAction.GET_FLOODLIGHT_STATE.ordinal(), floodlight);
+        }
+        public void reset() {}
+        public void enable()
+        {
+            enabled = true;
+        }
+        public void disable()
+        {
+            enabled = false;
+        }
+        public boolean isEnabled()
+        {
+            return command(port, UltrasonicSensorAction.GET_STATE.ordinal(), enabled ? 1f : 0f) != 0;
+        }
+
+        /**
+         * Reads the sensor in one mode
+        **/
+        private class ModeProvider implements SampleProvider
+        {
+            private final int index;
+            private final int size;
+            ModeProvider(int index)
+            {
+                this.index = index;
+                this.size = SimulatedSensor.sampleSize(modes[index]);
+            }
+            public int sampleSize()
+            {
+                return size;
+            }
+            public void fetchSample(float[] sample, int offset)
+            {
+                //A read in a new mode is what switches the sensor, and is thrown away without being recorded
+                boolean recorded = lastMode == index;
+                lastMode = index;
+                sample(port, index, recorded, sample, offset, size);
+            }
+        }
+    }
+}
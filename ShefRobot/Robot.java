@@ -5,6 +5,9 @@ import lejos.hardware.*;
 import lejos.robotics.*;
 import java.rmi.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.lang.management.ManagementFactory;
+import javax.management.*;
 
 /** Objects of this class represent particular EV3 based Lego robots. 
 
@@ -12,10 +15,16 @@ import java.util.*;
 */
 public class Robot {
 
-    private RemoteEV3 ev3;
+    /** Threads used to close ports at the same time in close()
+    */
+    private static final ExecutorService CLOSERS = Executors.newCachedThreadPool(new PortScheduler.DaemonThreadFactory("ShefRobot close"));
+
+    private Backend backend;
+    private PortScheduler scheduler;
+    private volatile FlightRecorder recorder;
 
-    private HashMap<Motor.Port,Motor> motors;
-    private HashMap<Sensor.Port,Sensor> sensors;
+    private final PortRegistry<Motor.Port,Motor> motors = new PortRegistry<Motor.Port,Motor>(Motor.Port.class);
+    private final PortRegistry<Sensor.Port,Sensor<?>> sensors = new PortRegistry<Sensor.Port,Sensor<?>>(Sensor.Port.class);
 
     /** Thread is used to gracefully exit when program shuts down
      * Instantiated and linked in setup()
@@ -31,70 +40,99 @@ public class Robot {
      * Internal buttons member returned by getButtons()
     **/
     private Buttons buttons;
+    /*
+     * The name the metrics MBean is registered under, if it has been registered
+    **/
+    private ObjectName metricsName;
     /** Create a new Robot object.
 
-    This will find the first available EV3 on the local network or Bluetooth. 
+    This will find the EV3s on the local network or Bluetooth, and connect to whichever answers first.
+    If no EV3 can be found or connected to, it tries again a few times, waiting a little longer each time.
      */
     public Robot() {
-    int errors = 0;
-        do
+        setup(new RemoteBackend(Discovery.connectFirst()));
+        try
         {
-            try {
-                BrickInfo[] bricks = BrickFinder.discover();
-                if (bricks.length > 0) {
-                    for (BrickInfo info: bricks) {
-                        System.out.println("EV3 found on ip: " + info.getIPAddress());
-                    }
-                    String ip = bricks[0].getIPAddress();
-                    setup(ip);
-                } else {
-                    System.out.println("No EV3s found - check your network/bluetooth connections!");
-                    throw new RuntimeException("No EV3 found.");
-                }
-                //Reached the end of setup, exit the loop
-                break;
-            } catch (java.net.SocketTimeoutException e) {
-                System.err.println("Failed to find a, EV3 - have you checked your network/bluetooth connection??");
-                throw new RuntimeException("Failed to find a Robot");
-            } catch (Exception e) {
-                errors++;
-                if(errors<5)
-                {
-                    System.err.println("Failed to connect to EV3: "+errors+"/5 attempts.");
-                    System.err.println("Retrying in 5 seconds.");
-                    try
-                    {
-                        Thread.sleep(5000);
-                    }catch(Exception ioe){}
-                }
-                else
-                {
-                    System.err.println("Failed to connect to EV3 after 5 attempts.");
-                    System.err.println("Please check the machines bluetooth is enabled and connected to the EV3.");
-                    throw new RuntimeException(e);
-                }
-            }
-        }while(true);//We exit the loop via a break or a thrown exception
-        speaker = new Speaker(ev3);
-        buttons = new Buttons(ev3);
+            speaker = new Speaker(this);
+            buttons = new Buttons(backend);
+        } catch (RuntimeException e) {
+            ((RemoteBackend)backend).release();
+            throw e;
+        }
     }
 
     /** Create a new Robot object with a specific IP address.
 
+    Robots created with the same IP address share one connection to the EV3.
+
     @param ip This defines the IP address of the Robot.
      */
     public Robot(String ip) {
         try
         {
-            setup(ip);
-            speaker = new Speaker(ev3);
-            buttons = new Buttons(ev3);
+            setup(new RemoteBackend(Discovery.connectWithRetry(ip)));
+            speaker = new Speaker(this);
+            buttons = new Buttons(backend);
         } catch (Exception e) {
+            if (backend instanceof RemoteBackend) {
+                ((RemoteBackend)backend).release();
+            }
             System.err.println("Failed to find a, EV3 - have you checked your network/bluetooth connection??");
             throw new RuntimeException("Failed to find a Robot");
         }
     }
 
+    /** Connect to every EV3 on the local network or Bluetooth at once.
+
+    This is much faster than creating each Robot in turn, which is useful when a program controls several robots.
+    EV3s that can't be connected to are reported and left out.
+
+    @return A Robot for each EV3 that was connected to, which may be empty.
+     */
+    public static List<Robot> connectAll() {
+        List<String> ips = Discovery.discover(false);
+        if (ips.isEmpty()) {
+            ips = Discovery.discover(true);
+        }
+        return connectAll(ips.toArray(new String[ips.size()]));
+    }
+
+    /** Connect to the EV3s with the given IP addresses at once.
+
+    @param ips The IP addresses of the Robots.
+    @return A Robot for each EV3 that was connected to, in the same order as the addresses. EV3s that can't be connected to are reported and left out.
+     */
+    public static List<Robot> connectAll(String... ips) {
+        return Discovery.forEach(Arrays.asList(ips), ip -> new Robot(ip));
+    }
+
+    /** Create a new Robot object that uses the given backend instead of connecting to an EV3.
+
+    For example, passing a {@link SimulatedEV3} allows programs to be run and tested without a robot.
+
+    @param backend The backend used to talk to the motors, sensors, speaker and buttons.
+     */
+    public Robot(Backend backend) {
+        this(backend, PortScheduler.getDefault());
+    }
+
+    /** Create a new Robot object that uses the given backend, and carries out the commands sent to its ports with the given scheduler.
+
+    Programs that drive many robots at once can use this to share threads between them, see {@link PortScheduler}.
+
+    @param backend The backend used to talk to the motors, sensors, speaker and buttons.
+    @param scheduler The scheduler that carries out the commands sent to the Motors and Sensors.
+     */
+    public Robot(Backend backend, PortScheduler scheduler) {
+        if (scheduler == null) {
+            throw new IllegalArgumentException("Invalid scheduler argument: null");
+        }
+        setup(backend);
+        this.scheduler = scheduler;
+        speaker = new Speaker(this);
+        buttons = new Buttons(backend);
+    }
+
     /** Get a Motor object attached to the specified port.
 
     If a LargeMotor is already attached to this port, then this function will retern a reference
@@ -105,21 +143,7 @@ public class Robot {
     @see Motor
      */
     public LargeMotor getLargeMotor(Motor.Port port) {
-        Motor m;
-        m = this.motors.get(port);
-        if (m == null) {
-            m = new LargeMotor(this, port);
-            this.motors.put(port, m);
-        }
-        if(m instanceof LargeMotor)
-        {
-            return (LargeMotor)m;
-        }
-        else
-        {//Requesting motor of different type on same port, so recreate
-            closeMotor(port);
-            return getLargeMotor(port);
-        }
+        return this.motors.get(port, LargeMotor.class, () -> new LargeMotor(this, port));
     }
     /** Get a Motor object attached to the specified port.
 
@@ -131,21 +155,25 @@ public class Robot {
     @see Motor 
      */
     public MediumMotor getMediumMotor(Motor.Port port) {
-        Motor m;
-        m = this.motors.get(port);
-        if (m == null) {
-            m = new MediumMotor(this, port);
-            this.motors.put(port, m);
-        }
-        if(m instanceof MediumMotor)
-        {
-            return (MediumMotor)m;
-        }
-        else
-        {//Requesting motor of different type on same port, so recreate
-            closeMotor(port);
-            return getMediumMotor(port);
+        return this.motors.get(port, MediumMotor.class, () -> new MediumMotor(this, port));
+    }
+    /** Get a MotorGroup that sends commands to several motors at once.
+
+    Use this rather than calling each {@link Motor} in turn when the motors need to start and stop together,
+    e.g. the left and right wheels of the robot.
+
+    @param motors The motors in the group, which must have been created by this Robot.
+    @return The MotorGroup object.
+    @throws IllegalArgumentException When a motor belongs to a different Robot, or is given more than once.
+    @see MotorGroup
+     */
+    public MotorGroup getMotorGroup(Motor... motors) {
+        for (Motor m: motors) {
+            if (m.parentRobot != this) {
+                throw new IllegalArgumentException("Invalid motors argument: all the motors in a MotorGroup must belong to this Robot.");
+            }
         }
+        return new MotorGroup(motors);
     }
     /** 
      * Get a Speaker object
@@ -173,22 +201,8 @@ public class Robot {
     @param port The port to which the sensor is connected. Must be from {@link Sensor.Port}.
     @return The UltrasonicSensor object.
      */
-    public UltrasonicSensor getUltrasonicSensor(Sensor.Port port) {     
-        Sensor s;
-         s = this.sensors.get(port);
-        if (s == null) {
-            s = new UltrasonicSensor(this, port);
-            this.sensors.put(port, s);
-        }
-        if(s instanceof UltrasonicSensor)
-        {
-            return (UltrasonicSensor)s;
-        }
-        else
-        {//Requesting sensor of different type on same port, so recreate
-            closeSensor(port);
-            return getUltrasonicSensor(port);
-        }
+    public UltrasonicSensor getUltrasonicSensor(Sensor.Port port) {
+        return this.sensors.get(port, UltrasonicSensor.class, () -> new UltrasonicSensor(this, port));
     }
     /** Get an TouchSensor object attached to the specified port.
 
@@ -198,22 +212,8 @@ public class Robot {
     @param port The port to which the sensor is connected. Must be from {@link Sensor.Port}.
     @return The TouchSensor object.
      */
-    public TouchSensor getTouchSensor(Sensor.Port port) {     
-        Sensor s;
-         s = this.sensors.get(port);
-        if (s == null) {
-            s = new TouchSensor(this, port);
-            this.sensors.put(port, s);
-        }
-        if(s instanceof TouchSensor)
-        {
-            return (TouchSensor)s;
-        }
-        else
-        {//Requesting sensor of different type on same port, so recreate
-            closeSensor(port);
-            return getTouchSensor(port);
-        }
+    public TouchSensor getTouchSensor(Sensor.Port port) {
+        return this.sensors.get(port, TouchSensor.class, () -> new TouchSensor(this, port));
     }
     /** Get a ColorSensor object attached to the specified port.
 
@@ -223,22 +223,8 @@ public class Robot {
     @param port The port to which the sensor is connected. Must be from {@link Sensor.Port}.
     @return The ColorSensor object.
      */
-    public ColorSensor getColorSensor(Sensor.Port port) {     
-        Sensor s;
-         s = this.sensors.get(port);
-        if (s == null) {
-            s = new ColorSensor(this, port);
-            this.sensors.put(port, s);
-        }
-        if(s instanceof ColorSensor)
-        {
-            return (ColorSensor)s;
-        }
-        else
-        {//Requesting sensor of different type on same port, so recreate
-            closeSensor(port);
-            return getColorSensor(port);
-        }
+    public ColorSensor getColorSensor(Sensor.Port port) {
+        return this.sensors.get(port, ColorSensor.class, () -> new ColorSensor(this, port));
     }
     /** Get a GyroSensor object attached to the specified port.
 
@@ -248,23 +234,97 @@ public class Robot {
     @param port The port to which the sensor is connected. Must be from {@link Sensor.Port}.
     @return The GyroSensor object.
      */
-    public GyroSensor getGyroSensor(Sensor.Port port) {     
-        Sensor s;
-         s = this.sensors.get(port);
-        if (s == null) {
-            s = new GyroSensor(this, port);
-            this.sensors.put(port, s);
+    public GyroSensor getGyroSensor(Sensor.Port port) {
+        return this.sensors.get(port, GyroSensor.class, () -> new GyroSensor(this, port));
+    }
+    /** Get the metrics of every open Motor and Sensor port.
+
+    These show how many commands have been sent to each port and how long they took, which helps find slow ports
+    and tune programs that need to react quickly. See {@link PortMetrics} for what is measured.
+
+    @return A snapshot of the metrics of each port, keyed by port name (e.g. {@code "A"} or {@code "S1"}), in port order.
+    @see PortMetrics
+     */
+    public Map<String, PortMetrics> getMetrics() {
+        Map<String, PortMetrics> metrics = new LinkedHashMap<String, PortMetrics>();
+        for (Motor.Port p: Motor.Port.values()) {
+            Motor m = this.motors.get(p);
+            if (m != null) {
+                metrics.put(p.name(), m.getMetrics(p.name()));
+            }
         }
-        if(s instanceof GyroSensor)
-        {
-            return (GyroSensor)s;
+        for (Sensor.Port p: Sensor.Port.values()) {
+            Sensor<?> s = this.sensors.get(p);
+            if (s != null) {
+                metrics.put(p.name(), s.getMetrics(p.name()));
+            }
+        }
+        return Collections.unmodifiableMap(metrics);
+    }
+    /** Clear the metrics of every open Motor and Sensor port.
+     */
+    public void resetMetrics() {
+        for (Motor m: this.motors.values()) {
+            m.resetMetrics();
+        }
+        for (Sensor<?> s: this.sensors.values()) {
+            s.resetMetrics();
+        }
+    }
+    /** Publish the metrics of this Robot over JMX, so they can be watched with tools such as JConsole while the program runs.
+
+    The MBean is registered with the platform MBean server as {@code ShefRobot:type=Robot,name=}<i>name</i>,
+    and is removed again when the Robot is closed.
+
+    @param name The name to register the metrics under, which must be different for each Robot.
+    @throws IllegalArgumentException When the name is not valid in a JMX object name, or is already in use.
+    @see RobotMetricsMXBean
+     */
+    public void registerMetricsMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("ShefRobot:type=Robot,name=" + ObjectName.quote(name));
+            if (objectName.equals(this.metricsName)) {
+                return;
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(new RobotMetricsMXBean() {
+                public Map<String, PortMetrics> getPorts() {
+                    return getMetrics();
+                }
+                public void reset() {
+                    resetMetrics();
+                }
+            }, RobotMetricsMXBean.class, true), objectName);
+            unregisterMetricsMBean();
+            this.metricsName = objectName;
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Invalid name argument: "+name+"\n "+e.getMessage());
         }
-        else
-        {//Requesting sensor of different type on same port, so recreate
-            closeSensor(port);
-            return getGyroSensor(port);
+    }
+    // Removes the metrics MBean, if it was registered
+    private void unregisterMetricsMBean() {
+        if (this.metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.metricsName);
+            } catch (JMException e) {
+                //Already gone, nothing to do
+            }
+            this.metricsName = null;
         }
     }
+    /** Records every command sent to this Robot's Motors and Sensors, and every answer, into a {@link FlightRecorder}.
+
+    The recording is written to the disk when the Robot is closed, but the recorder is left open.
+    @param recorder The recorder, or {@code null} to stop recording.
+    @see FlightRecorder
+    */
+    public void setFlightRecorder(FlightRecorder recorder) {
+        this.recorder = recorder;
+    }
+    /** @return The recorder set by {@link #setFlightRecorder}, or {@code null} if the Robot isn't being recorded.
+    */
+    public FlightRecorder getFlightRecorder() {
+        return this.recorder;
+    }
     //This javadoc comment is a direct rip from the Java source with unnecessary details removed.
     /**
      * Causes the currently executing thread to sleep (temporarily cease
@@ -282,29 +342,53 @@ public class Robot {
             Thread.sleep(millis);
         }catch(InterruptedException ie){}
     }
-    /** Close a Robot's connections.    
+    /** Close a Robot's connections.
+
+    The Motors and Sensors are closed at the same time, so this takes about as long as stopping the slowest Motor.
      */
     public void close() {
-        // Clone the maps to avoid concurrent modification problems.
-        HashMap<Motor.Port,Motor> ms = new HashMap<Motor.Port,Motor>(this.motors);
-        for (Motor.Port p: ms.keySet()) {
-            this.closeMotor(p);
-            Motor m = ms.get(p);
-            m.close();
-            try {
-                m.getThread().join();
-            } catch (InterruptedException e) {}
+        List<PortManager<?>> open = new ArrayList<PortManager<?>>();
+        open.addAll(this.motors.removeAll());
+        open.addAll(this.sensors.removeAll());
+        if (this.speaker != null) {
+            open.add(this.speaker);
         }
-        HashMap<Sensor.Port,Sensor> ss = new HashMap<Sensor.Port,Sensor>(this.sensors);
-        for (Sensor.Port p: ss.keySet()) {
-            this.closeSensor(p);
-            Sensor s = ss.get(p);
-            s.close();
+        List<CompletableFuture<Void>> closing = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < open.size(); i++) {
+            final PortManager<?> port = open.get(i);
+            Runnable closer = () -> {
+                port.close();
+                port.awaitTermination();
+            };
+            if (i < open.size() - 1) {
+                closing.add(CompletableFuture.runAsync(closer, CLOSERS));
+            } else {
+                //Close the last one here rather than waiting idle
+                try {
+                    closer.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to close a port: " + e);
+                }
+            }
+        }
+        for (CompletableFuture<Void> c: closing) {
             try {
-                s.getThread().join();
-            } catch (InterruptedException e) {}
+                c.join();
+            } catch (CompletionException e) {
+                System.err.println("Failed to close a port: " + e.getCause());
+            }
+        }
+        if (this.buttons != null) {
+            this.buttons.close();
+        }
+        if (backend instanceof RemoteBackend) {
+            ((RemoteBackend)backend).release();
+        }
+        unregisterMetricsMBean();
+        FlightRecorder rec = this.recorder;
+        if (rec != null) {
+            rec.force();
         }
-        this.sensors = new HashMap < Sensor.Port, Sensor > ();
         
         //Remove shutdown hook to prevent weird behaviour if user manually shuts down robot
         try {
@@ -324,9 +408,8 @@ public class Robot {
     @param port The port to which the motor is connected.
     */
     public void closeMotor(Motor.Port port) {
-        Motor m = this.motors.get(port);
+        Motor m = this.motors.remove(port);
         if (m != null) {
-            this.motors.remove(port);
             m.close();
         }
     }
@@ -336,27 +419,70 @@ public class Robot {
     @param port The port to which the sensor is connected.
      */
     public void closeSensor(Sensor.Port port) {
-        Sensor s = this.sensors.get(port);
+        Sensor<?> s = this.sensors.remove(port);
         if (s != null) {
-            this.sensors.remove(port);
             s.close();
         }
     }
 
+    // Called by a Motor or Sensor as it closes itself, so the Robot forgets it (unless something else has since been opened on its port)
+    void forgetMotor(Motor.Port port, Motor m) {
+        this.motors.remove(port, m);
+    }
+
+    void forgetSensor(Sensor.Port port, Sensor<?> s) {
+        this.sensors.remove(port, s);
+    }
+
+    /** @return The Motor open on the given port, or {@code null} if there isn't one.
+    */
+    Motor getOpenMotor(Motor.Port port) {
+        return this.motors.get(port);
+    }
+
+    /** @return The Sensor open on the given port, or {@code null} if there isn't one.
+    */
+    Sensor<?> getOpenSensor(Sensor.Port port) {
+        return this.sensors.get(port);
+    }
+
+    /** @return The Motors currently open, in port order.
+    */
+    List<Motor> getOpenMotors() {
+        return this.motors.values();
+    }
+
     /** This is a utility method that is used by the {@link Motor Motors} and {@link Sensor Sensors} to 
      access the EV3 and make connections.
 
+     @return The Backend used to talk to the EV3.
+    */
+    protected Backend getBackend() {
+        return this.backend;
+    }
+
+    /** This is a utility method that gives subclasses access to the EV3 itself, for things the Robot doesn't cover.
+
      @return The RemoteEV3 object from the LeJOS package.
+     @throws UnsupportedOperationException When the Robot isn't connected to an EV3, e.g. it uses a {@link SimulatedEV3}.
     */
     protected RemoteEV3 getEV3() {
-        return this.ev3;
+        if (this.backend instanceof RemoteBackend) {
+            return ((RemoteBackend)this.backend).getEV3();
+        }
+        throw new UnsupportedOperationException("This Robot isn't connected to an EV3, it uses a " + this.backend.getClass().getSimpleName() + ".");
+    }
+
+    /** @return The scheduler that carries out the commands sent to the Motors and Sensors.
+    */
+    PortScheduler getScheduler() {
+        return this.scheduler;
     }
 
     // Centralised setup method that is called by the constructors after finding IPs etc.
-    private void setup(String ip) throws Exception{
-        this.motors = new HashMap<Motor.Port,Motor>();
-        this.sensors = new HashMap<Sensor.Port,Sensor>();
-        this.ev3 = new RemoteEV3(ip);
+    private void setup(Backend backend) {
+        this.backend = backend;
+        this.scheduler = PortScheduler.getDefault();
         try {
             shutdownHook = new GracefulExiter(this);
             Runtime.getRuntime().addShutdownHook(shutdownHook);
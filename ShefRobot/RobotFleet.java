@@ -0,0 +1,585 @@
+package ShefRobot;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class controls many {@link Robot Robots} from one program, such as a lab full of EV3s.
+ *
+ * Commands are sent to every robot in parallel, to a limited number of robots at once (see {@link #setParallelism(int)}),
+ * so one slow or unreachable robot doesn't hold up the others.
+ * Each robot has its own {@link #setTimeout timeout}, which starts when the command is sent to it, so a robot that doesn't answer
+ * is given up on without holding back the robots after it.
+ * The fleet keeps track of how each robot has responded, see {@link #getHealth()}.
+ *
+ * Commands for a motor or sensor port (e.g. {@link #setSpeed(Motor.Port, int)}) are only sent to robots that have already
+ * opened that port, e.g. with {@link Robot#getLargeMotor(Motor.Port)}. Robots without it are skipped.
+ * @see Robot#connectAll()
+**/
+public class RobotFleet
+{
+    private static final int DEFAULT_PARALLELISM = 16;
+    private static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    private final List<Robot> robots;
+    private final Map<Robot, HealthTracker> health = new IdentityHashMap<Robot, HealthTracker>();
+    /**
+     * Runs the tasks and queries given to {@link #broadcast} and {@link #gather}.
+     * The number running at once is limited by {@link #permits} rather than by the pool,
+     * so a task left waiting for a robot that never answers doesn't stop the others from running.
+    **/
+    private final ExecutorService pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new PortScheduler.DaemonThreadFactory("ShefRobot fleet"));
+    private volatile Semaphore permits = new Semaphore(DEFAULT_PARALLELISM);
+    private volatile long timeoutMs = DEFAULT_TIMEOUT_MS;
+
+    /**
+     * Creates a fleet of the given robots
+     * @param robots The robots in the fleet
+     * @throws IllegalArgumentException When a robot is given more than once
+    **/
+    public RobotFleet(Robot... robots)
+    {
+        this(Arrays.asList(robots));
+    }
+    /**
+     * Creates a fleet of the given robots
+     * @param robots The robots in the fleet
+     * @throws IllegalArgumentException When a robot is given more than once
+    **/
+    public RobotFleet(Collection<Robot> robots)
+    {
+        this.robots = Collections.unmodifiableList(new ArrayList<Robot>(robots));
+        for(Robot r:this.robots)
+        {
+            if(health.put(r, new HealthTracker()) != null)
+                throw new IllegalArgumentException("Invalid robots argument: each Robot can only be in a RobotFleet once.");
+        }
+    }
+    /**
+     * Creates a fleet of every EV3 on the local network or Bluetooth, see {@link Robot#connectAll()}
+     * @return The fleet, which may be empty
+    **/
+    public static RobotFleet connectAll()
+    {
+        return new RobotFleet(Robot.connectAll());
+    }
+
+    /**
+     * @return The number of robots in the fleet
+    **/
+    public int size()
+    {
+        return robots.size();
+    }
+    /**
+     * @return The robots in the fleet, in the order they were given
+    **/
+    public List<Robot> getRobots()
+    {
+        return robots;
+    }
+    /**
+     * Sets how many robots are sent commands at the same time.
+     * A robot counts until it answers or times out, so robots that don't answer only hold up the others for the timeout.
+     * @param threads The number of robots, 16 by default
+     * @throws IllegalArgumentException When threads is less than 1
+    **/
+    public void setParallelism(int threads)
+    {
+        if(threads < 1)
+            throw new IllegalArgumentException("Invalid threads argument: "+threads+"\n At least one thread is needed.");
+        this.permits = new Semaphore(threads);
+    }
+    /**
+     * Sets how long the fleet waits for each robot to carry out a command before recording it as failed.
+     * The time starts when the command is sent to the robot, not when it is given to the fleet.
+     * A task given to {@link #broadcast} that is still waiting for its robot when it times out is left to finish in the background,
+     * and whatever it does afterwards is ignored.
+     * @param timeoutMs The time in milliseconds, 5000 by default
+     * @throws IllegalArgumentException When timeoutMs is less than 1
+    **/
+    public void setTimeout(long timeoutMs)
+    {
+        if(timeoutMs < 1)
+            throw new IllegalArgumentException("Invalid timeout argument: "+timeoutMs+"\n Timeouts below 1ms are invalid.");
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Something to do to each robot
+    **/
+    public interface RobotTask
+    {
+        void run(Robot robot) throws Exception;
+    }
+    /**
+     * Something to read from each robot
+    **/
+    public interface RobotQuery<R>
+    {
+        R query(Robot robot) throws Exception;
+    }
+
+    /**
+     * Carries out a task on every robot in parallel, and waits for them all to finish (or time out).
+     * @param task The task
+     * @return The robots whose task failed or timed out, and why. This is empty when every robot succeeded.
+    **/
+    public Map<Robot, Throwable> broadcast(final RobotTask task)
+    {
+        Map<Robot, Throwable> failures = new LinkedHashMap<Robot, Throwable>();
+        run(onPool(new RobotQuery<Void>() {
+            public Void query(Robot robot) throws Exception {
+                task.run(robot);
+                return null;
+            }
+        }), new LinkedHashMap<Robot, Void>(), failures);
+        return failures;
+    }
+    /**
+     * Reads something from every robot in parallel, and waits for them all to answer (or time out).
+     * @param query What to read
+     * @return The answer from each robot that answered, in fleet order. Robots that failed or timed out are left out, see {@link #getHealth()}.
+    **/
+    public <R> Map<Robot, R> gather(RobotQuery<R> query)
+    {
+        Map<Robot, R> results = new LinkedHashMap<Robot, R>();
+        run(onPool(query), results, new LinkedHashMap<Robot, Throwable>());
+        return results;
+    }
+
+    /**
+     * Tells every motor on every robot to stop moving, and waits for each robot to confirm it has (or time out).
+     * Robots with no motors open are left out.
+     * @return The robots that failed to stop or timed out, and why. This is empty when every robot stopped.
+    **/
+    public Map<Robot, Throwable> stopAll()
+    {
+        Map<Robot, Throwable> failures = new LinkedHashMap<Robot, Throwable>();
+        run(new AsyncQuery<Void>() {
+            public CompletableFuture<Void> start(Robot robot) {
+                List<Motor> motors = robot.getOpenMotors();
+                if(motors.isEmpty())
+                    return null;
+                CompletableFuture<?>[] stops = new CompletableFuture<?>[motors.size()];
+                for(int i=0;i<stops.length;i++)
+                    stops[i] = motors.get(i).drive(null, MotorAction.STOP);
+                return CompletableFuture.allOf(stops);
+            }
+        }, new LinkedHashMap<Robot, Void>(), failures);
+        return failures;
+    }
+    /**
+     * Sets the speed of the motor on the given port of every robot
+     * @param port The port of the motors
+     * @param newSpeed The speed of the motors, this value must not be negative
+     * @throws IllegalArgumentException When newSpeed is negative
+     * @return The robots that failed or timed out, and why. Robots without the port open are left out.
+     * @see Motor#setSpeed(int)
+    **/
+    public Map<Robot, Throwable> setSpeed(Motor.Port port, final int newSpeed)
+    {
+        if(newSpeed<0)
+            throw new IllegalArgumentException("Invalid speed argument: "+newSpeed+"\n Speeds should not be negative (try using the backward() method).");
+        return forEachMotor(port, newSpeed, null);
+    }
+    /**
+     * Tells the motor on the given port of every robot to rotate forwards
+     * @param port The port of the motors
+     * @return The robots that failed or timed out, and why. Robots without the port open are left out.
+     * @see Motor#forward()
+    **/
+    public Map<Robot, Throwable> forward(Motor.Port port)
+    {
+        return forEachMotor(port, null, MotorAction.FORWARD);
+    }
+    /**
+     * Tells the motor on the given port of every robot to rotate backwards
+     * @param port The port of the motors
+     * @return The robots that failed or timed out, and why. Robots without the port open are left out.
+     * @see Motor#backward()
+    **/
+    public Map<Robot, Throwable> backward(Motor.Port port)
+    {
+        return forEachMotor(port, null, MotorAction.BACKWARD);
+    }
+    /**
+     * Tells the motor on the given port of every robot to stop moving
+     * @param port The port of the motors
+     * @return The robots that failed or timed out, and why. Robots without the port open are left out.
+     * @see Motor#stop()
+    **/
+    public Map<Robot, Throwable> stop(Motor.Port port)
+    {
+        return forEachMotor(port, null, MotorAction.STOP);
+    }
+    /**
+     * Reads the tacho count of the motor on the given port of every robot
+     * @param port The port of the motors
+     * @return The tacho count from each robot that has the port open and answered
+     * @see Motor#getTachoCount()
+    **/
+    public Map<Robot, Integer> getTachoCounts(final Motor.Port port)
+    {
+        Map<Robot, Integer> results = new LinkedHashMap<Robot, Integer>();
+        run(new AsyncQuery<Integer>() {
+            public CompletableFuture<Integer> start(Robot robot) {
+                Motor m = robot.getOpenMotor(port);
+                return m == null ? null : m.getTachoCountAsync();
+            }
+        }, results, new LinkedHashMap<Robot, Throwable>());
+        return withoutNulls(results);
+    }
+    /**
+     * Reads the sensor on the given port of every robot
+     * @param port The port of the sensors
+     * @return The sample from each robot that has the port open and answered
+     * @see Sensor#getRawSample()
+    **/
+    public Map<Robot, float[]> sampleAll(final Sensor.Port port)
+    {
+        Map<Robot, float[]> results = new LinkedHashMap<Robot, float[]>();
+        run(new AsyncQuery<float[]>() {
+            public CompletableFuture<float[]> start(Robot robot) {
+                Sensor<?> s = robot.getOpenSensor(port);
+                return s == null ? null : s.getRawSampleAsync();
+            }
+        }, results, new LinkedHashMap<Robot, Throwable>());
+        return withoutNulls(results);
+    }
+
+    /**
+     * Returns how each robot has responded to the commands sent through the fleet, in fleet order
+     * @return The health of each robot
+    **/
+    public List<Health> getHealth()
+    {
+        List<Health> result = new ArrayList<Health>();
+        for(Robot r:robots)
+            result.add(health.get(r).snapshot(r));
+        return result;
+    }
+
+    /**
+     * Closes every robot in parallel, and stops the fleet's threads
+     * @see Robot#close()
+    **/
+    public void close()
+    {
+        broadcast(new RobotTask() {
+            public void run(Robot robot) {
+                robot.close();
+            }
+        });
+        pool.shutdown();
+    }
+
+    /**
+     * How a robot has responded to the commands sent through the fleet
+    **/
+    public static final class Health
+    {
+        /**
+         * The number of failures in a row after which a robot is reported as unhealthy
+        **/
+        public static final int FAILURE_THRESHOLD = 3;
+
+        private final Robot robot;
+        private final long successes;
+        private final long failures;
+        private final int consecutiveFailures;
+        private final long lastLatency;
+        private final long meanLatency;
+        private final long maxLatency;
+        private final Throwable lastError;
+
+        Health(Robot robot, long successes, long failures, int consecutiveFailures, long lastLatency, long meanLatency, long maxLatency, Throwable lastError)
+        {
+            this.robot = robot;
+            this.successes = successes;
+            this.failures = failures;
+            this.consecutiveFailures = consecutiveFailures;
+            this.lastLatency = lastLatency;
+            this.meanLatency = meanLatency;
+            this.maxLatency = maxLatency;
+            this.lastError = lastError;
+        }
+        public Robot getRobot()
+        {
+            return robot;
+        }
+        /**
+         * @return The number of commands the robot carried out
+        **/
+        public long getSuccesses()
+        {
+            return successes;
+        }
+        /**
+         * @return The number of commands that failed or timed out
+        **/
+        public long getFailures()
+        {
+            return failures;
+        }
+        /**
+         * @return The number of commands that have failed since the robot last succeeded
+        **/
+        public int getConsecutiveFailures()
+        {
+            return consecutiveFailures;
+        }
+        /**
+         * @return True unless the last {@link #FAILURE_THRESHOLD} commands all failed
+        **/
+        public boolean isHealthy()
+        {
+            return consecutiveFailures < FAILURE_THRESHOLD;
+        }
+        /**
+         * @return How long the last command took, in nanoseconds
+        **/
+        public long getLastLatency()
+        {
+            return lastLatency;
+        }
+        /**
+         * @return How long commands took on average, in nanoseconds
+        **/
+        public long getMeanLatency()
+        {
+            return meanLatency;
+        }
+        /**
+         * @return The longest a command took, in nanoseconds
+        **/
+        public long getMaxLatency()
+        {
+            return maxLatency;
+        }
+        /**
+         * @return Why the last failed command failed, or {@code null} if none have
+        **/
+        public Throwable getLastError()
+        {
+            return lastError;
+        }
+        @Override
+        public String toString()
+        {
+            return (isHealthy() ? "healthy" : "unhealthy")+", "+successes+" ok, "+failures+" failed, "
+                +String.format("last %.1fms mean %.1fms max %.1fms", lastLatency/1e6, meanLatency/1e6, maxLatency/1e6)
+                +(lastError == null ? "" : ", last error: "+lastError);
+        }
+    }
+
+    /**
+     * Collects the results of the commands sent to one robot
+    **/
+    private static class HealthTracker
+    {
+        private long successes;
+        private long failures;
+        private int consecutiveFailures;
+        private long lastLatency;
+        private long totalLatency;
+        private long maxLatency;
+        private Throwable lastError;
+
+        synchronized void success(long latency)
+        {
+            successes++;
+            consecutiveFailures = 0;
+            record(latency);
+        }
+        synchronized void failure(long latency, Throwable e)
+        {
+            failures++;
+            consecutiveFailures++;
+            lastError = e;
+            record(latency);
+        }
+        private void record(long latency)
+        {
+            lastLatency = latency;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+        }
+        synchronized Health snapshot(Robot robot)
+        {
+            long count = successes + failures;
+            return new Health(robot, successes, failures, consecutiveFailures, lastLatency,
+                count == 0 ? 0 : totalLatency / count, maxLatency, lastError);
+        }
+    }
+
+    /**
+     * Sends a change of speed and/or direction to a motor on every robot, and waits for each robot to carry it out (or time out).
+     * Robots without the port open are left out. No thread is used while waiting.
+     * @return The robots that failed or timed out, and why
+    **/
+    private Map<Robot, Throwable> forEachMotor(final Motor.Port port, final Integer speed, final MotorAction motion)
+    {
+        Map<Robot, Throwable> failures = new LinkedHashMap<Robot, Throwable>();
+        run(new AsyncQuery<Integer>() {
+            public CompletableFuture<Integer> start(Robot robot) {
+                Motor m = robot.getOpenMotor(port);
+                return m == null ? null : m.drive(speed, motion);
+            }
+        }, new LinkedHashMap<Robot, Integer>(), failures);
+        return failures;
+    }
+
+    /**
+     * Something to start on each robot, which answers later
+    **/
+    private interface AsyncQuery<R>
+    {
+        /**
+         * @return The answer, or {@code null} to leave out a robot that doesn't have what is asked for (which isn't counted in its health)
+        **/
+        CompletableFuture<R> start(Robot robot) throws Exception;
+    }
+
+    /**
+     * Runs a query that waits for its robot on the pool
+    **/
+    private <R> AsyncQuery<R> onPool(final RobotQuery<R> query)
+    {
+        return new AsyncQuery<R>() {
+            public CompletableFuture<R> start(final Robot robot) {
+                final CompletableFuture<R> result = new CompletableFuture<R>();
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            result.complete(query.query(robot));
+                        } catch (Throwable e) {
+                            result.completeExceptionally(e);
+                        }
+                    }
+                });
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Starts a query on every robot, at most {@link #permits} at a time, and waits for each to answer or time out.
+     * The outcome of each is recorded in the robot's health exactly once: whichever of the answer and the timeout comes first.
+    **/
+    private <R> void run(AsyncQuery<R> query, Map<Robot, R> results, Map<Robot, Throwable> failures)
+    {
+        Semaphore limit = this.permits;
+        List<Command<R>> commands = new ArrayList<Command<R>>(robots.size());
+        try
+        {
+            for(Robot robot:robots)
+            {
+                limit.acquire();
+                Command<R> c = new Command<R>(robot, limit);
+                commands.add(c);
+                c.start(query);
+            }
+            for(Command<R> c:commands)
+            {
+                try
+                {
+                    results.put(c.robot, c.outcome.get());
+                }
+                catch(ExecutionException e)
+                {
+                    failures.put(c.robot, e.getCause());
+                }
+            }
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A query sent to one robot, which finishes when the robot answers or the timeout passes, whichever is first
+    **/
+    private final class Command<R>
+    {
+        final Robot robot;
+        final CompletableFuture<R> outcome = new CompletableFuture<R>();
+        private final Semaphore limit;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private long started;
+        private volatile ScheduledFuture<?> timeout;
+
+        Command(Robot robot, Semaphore limit)
+        {
+            this.robot = robot;
+            this.limit = limit;
+        }
+
+        void start(AsyncQuery<R> query)
+        {
+            final long ms = timeoutMs;
+            started = System.nanoTime();
+            CompletableFuture<R> answer;
+            try
+            {
+                answer = query.start(robot);
+            }
+            catch(Exception e)
+            {
+                finish(null, e);
+                return;
+            }
+            if(answer == null)
+            {//Nothing to ask this robot, so there is nothing to record either
+                if(finished.compareAndSet(false, true))
+                {
+                    outcome.complete(null);
+                    limit.release();
+                }
+                return;
+            }
+            timeout = PortScheduler.timer().schedule(new Runnable() {
+                public void run() {
+                    finish(null, new TimeoutException("No answer within "+ms+"ms"));
+                }
+            }, ms, TimeUnit.MILLISECONDS);
+            answer.whenComplete((result, e) -> finish(result, e));
+        }
+
+        /**
+         * Records the outcome, unless one has already been recorded
+        **/
+        private void finish(R result, Throwable e)
+        {
+            if(!finished.compareAndSet(false, true))
+                return;
+            ScheduledFuture<?> t = timeout;
+            if(t != null)
+                t.cancel(false);
+            long latency = System.nanoTime() - started;
+            HealthTracker tracker = health.get(robot);
+            if(e == null)
+            {
+                tracker.success(latency);
+                outcome.complete(result);
+            }
+            else
+            {
+                if(e instanceof CompletionException && e.getCause() != null)
+                    e = e.getCause();
+                tracker.failure(latency, e);
+                outcome.completeExceptionally(e);
+            }
+            limit.release();
+        }
+    }
+
+    private static <R> Map<Robot, R> withoutNulls(Map<Robot, R> results)
+    {
+        results.values().removeAll(Collections.singleton(null));
+        return results;
+    }
+}
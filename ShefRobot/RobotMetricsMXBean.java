@@ -0,0 +1,23 @@
+package ShefRobot;
+
+import java.util.Map;
+
+/**
+ * The management interface through which the metrics of a {@link Robot} are published over JMX,
+ * e.g. to view them in JConsole or VisualVM while a program is running.
+ * @see Robot#registerMetricsMBean(String)
+**/
+public interface RobotMetricsMXBean
+{
+    /**
+     * @return The metrics of every open port, keyed by port name
+     * @see Robot#getMetrics()
+    **/
+    Map<String, PortMetrics> getPorts();
+
+    /**
+     * Clears the metrics of every open port
+     * @see Robot#resetMetrics()
+    **/
+    void reset();
+}
@@ -0,0 +1,118 @@
+package ShefRobot;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Internal class holding the latest sample taken by a {@link Sensor} that is sampling in the background.
+ *
+ * There is a single writer (the sensor's port thread), which alternates between two buffers so it never writes
+ * into the buffer readers are most likely to be copying. Readers copy the front buffer with an optimistic read,
+ * so they never block the writer or each other, and only retry if the writer wrapped around onto the buffer they were reading.
+**/
+class SampleCache
+{
+    /**
+     * Returned by {@link #read} when there is no sample for the requested key
+    **/
+    static final long EMPTY = Long.MIN_VALUE;
+
+    private static class Slot
+    {
+        final StampedLock lock = new StampedLock();
+        Object key;
+        float[] values = new float[0];
+        int length;
+        long timestamp;
+    }
+
+    private final Slot[] slots = new Slot[]{new Slot(), new Slot()};
+    /**
+     * Index of the slot holding the latest sample, or -1 if there isn't one
+    **/
+    private volatile int front = -1;
+
+    /**
+     * Publishes a new sample, this must only be called from one thread.
+     * @param key What the sample is of (e.g. the action used to fetch it)
+     * @param src The array holding the sample
+     * @param offset Where the sample starts in {@code src}
+     * @param length The number of values in the sample
+     * @param timestamp When the sample was taken, from {@link System#nanoTime()}
+    **/
+    void publish(Object key, float[] src, int offset, int length, long timestamp)
+    {
+        int back = front == 0 ? 1 : 0;
+        Slot slot = slots[back];
+        long stamp = slot.lock.writeLock();
+        try {
+            if (slot.values.length < length) {
+                slot.values = new float[length];
+            }
+            System.arraycopy(src, offset, slot.values, 0, length);
+            slot.key = key;
+            slot.length = length;
+            slot.timestamp = timestamp;
+        } finally {
+            slot.lock.unlockWrite(stamp);
+        }
+        front = back;
+    }
+
+    /**
+     * Forgets the latest sample, so nothing is returned until the next {@link #publish}
+    **/
+    void clear()
+    {
+        front = -1;
+    }
+
+    /**
+     * @return The number of values in the latest sample, or 0 if there isn't one
+    **/
+    int size()
+    {
+        int f = front;
+        return f < 0 ? 0 : slots[f].length;
+    }
+
+    /**
+     * Copies the latest sample into {@code dst}, if it is of the requested key.
+     * @param key What the sample should be of
+     * @param dst The array to copy into, values that don't fit are dropped
+     * @param offset Where to start copying into {@code dst}
+     * @return The timestamp of the copied sample, or {@link #EMPTY} if there is no sample of {@code key}
+    **/
+    long read(Object key, float[] dst, int offset)
+    {
+        int f = front;
+        if (f < 0) {
+            return EMPTY;
+        }
+        Slot slot = slots[f];
+        long stamp = slot.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            long timestamp = copy(slot, key, dst, offset);
+            if (slot.lock.validate(stamp)) {
+                return timestamp;
+            }
+        }
+        //The writer has come round to this slot again, so wait for it rather than spinning
+        stamp = slot.lock.readLock();
+        try {
+            return copy(slot, key, dst, offset);
+        } finally {
+            slot.lock.unlockRead(stamp);
+        }
+    }
+
+    private static long copy(Slot slot, Object key, float[] dst, int offset)
+    {
+        if (slot.key != key) {
+            return EMPTY;
+        }
+        float[] values = slot.values;
+        int n = Math.min(Math.min(slot.length, values.length), dst.length - offset);
+        System.arraycopy(values, 0, dst, offset, n);
+        return slot.timestamp;
+    }
+}
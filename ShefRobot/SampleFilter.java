@@ -0,0 +1,502 @@
+package ShefRobot;
+
+import java.util.Arrays;
+
+/**
+ * Smooths a stream of sensor samples one sample at a time, e.g. to take the noise out of {@link UltrasonicSensor#getDistance()} or {@link ColorSensor#getRed()}.
+ *
+ * Given to a sensor with {@link Sensor#setFilter(SampleFilter)}, the filter is applied to each sample the sensor takes in the background
+ * (see {@link Sensor#startSampling(int)}), so every reading returns the filtered value of the latest sample.
+ * This replaces reading the sensor several times and averaging the readings, which costs a round trip to the robot for every reading,
+ * with a single stream of samples that are each fetched once.
+ *
+ * Each value of a sample (e.g. each of red, green and blue) is filtered separately. The filters keep their history in arrays of primitives
+ * which are only allocated for the first sample, so filtering doesn't allocate any memory.
+ * NaN values are passed through without being filtered.
+ * Filters can be chained with {@link #then(SampleFilter)}, e.g. rejecting outliers before averaging what is left:
+ * <pre>
+ * UltrasonicSensor sonar = robot.getUltrasonicSensor(Sensor.Port.S4);
+ * sonar.setFilter(SampleFilter.rejectOutliers(7, 3).then(SampleFilter.exponentialAverage(0.3f)));
+ * sonar.startSampling(10);
+ * float distance = sonar.getDistance();
+ * </pre>
+ * A filter keeps the history of one stream of samples, so it can only be given to one sensor, and isn't safe to use from several threads at once.
+ * @see Sensor#setFilter(SampleFilter)
+**/
+public abstract class SampleFilter
+{
+    /**
+     * The number of values per sample that the history has been allocated for
+    **/
+    private int channels;
+    /**
+     * The sensor the filter has been given to, if any, and how many times, e.g. on its own and again in a chain (guarded by this)
+    **/
+    private Sensor<?> owner;
+    private int attachments;
+
+    /**
+     * Filters a sample in place
+     * @param sample The array holding the sample, which is replaced by the filtered sample
+     * @param offset Where the sample starts in {@code sample}
+     * @param size The number of values in the sample
+    **/
+    public void filter(float[] sample, int offset, int size)
+    {
+        if(size > channels)
+        {//Only happens for the first sample, or if the sensor changes to a mode with more values
+            allocate(size);
+            channels = size;
+        }
+        for(int i=0;i<size;i++)
+        {
+            float value = sample[offset + i];
+            if(!Float.isNaN(value))
+                sample[offset + i] = filter(i, value);
+        }
+    }
+
+    /**
+     * Forgets the history of the filter, so the next sample is filtered as if it were the first.
+     * To reset a filter that has been given to a sensor, use {@link Sensor#resetFilter()}.
+    **/
+    public void reset()
+    {
+        if(channels > 0)
+            clear();
+    }
+
+    /**
+     * Chains another filter after this one
+     * @param next The filter applied to the output of this one
+     * @return A filter that applies this filter and then {@code next}
+    **/
+    public SampleFilter then(SampleFilter next)
+    {
+        if(next == null)
+            throw new IllegalArgumentException("Invalid filter argument: null");
+        return new Chain(this, next);
+    }
+
+    /**
+     * Allocates the history for samples with the given number of values, forgetting any earlier history
+     * @param channels The number of values in each sample
+    **/
+    protected abstract void allocate(int channels);
+    /**
+     * Forgets the history of every value, which has already been {@link #allocate allocated}
+    **/
+    protected abstract void clear();
+    /**
+     * Filters one value of a sample
+     * @param channel The index of the value in the sample
+     * @param value The value, which is never NaN
+     * @return The filtered value
+    **/
+    protected abstract float filter(int channel, float value);
+
+    /**
+     * Marks the filter as given to a sensor
+     * @throws IllegalStateException When it has already been given to a different sensor
+    **/
+    synchronized void attach(Sensor<?> sensor)
+    {
+        if(owner != null && owner != sensor)
+            throw new IllegalStateException("The filter is already used by the sensor on port "+owner.port.name()+", each sensor needs a filter of its own.");
+        owner = sensor;
+        attachments++;
+    }
+    /**
+     * Undoes one {@link #attach}, the filter is free for another sensor once every attach has been undone
+    **/
+    synchronized void detach(Sensor<?> sensor)
+    {
+        if(owner == sensor && --attachments == 0)
+            owner = null;
+    }
+
+    /**
+     * Creates a moving median, which returns the middle of the latest samples.
+     * A median ignores short spikes completely (as long as they make up less than half the window) and keeps sudden steps sharp,
+     * but it changes in jumps and lags behind by about half the window.
+     * @param window The number of samples the median is taken over
+     * @return The filter
+     * @throws IllegalArgumentException When the window is less than 1
+    **/
+    public static SampleFilter median(int window)
+    {
+        checkWindow(window);
+        return new Median(window);
+    }
+
+    /**
+     * Creates an exponential moving average, which moves each value a fraction of the way from the previous output towards the new sample.
+     * Smaller fractions smooth more, but follow changes more slowly: after a step, the output is about 2/3 of the way there after roughly {@code 1/alpha} samples.
+     * Infinite values (e.g. the ultrasonic sensor seeing nothing) are passed through without changing the average.
+     * @param alpha The fraction of the way to move towards each sample, within the range 0-1 (1 doesn't filter at all)
+     * @return The filter
+     * @throws IllegalArgumentException When alpha is outside of the range 0-1, or is 0
+    **/
+    public static SampleFilter exponentialAverage(float alpha)
+    {
+        if(!(alpha > 0 && alpha <= 1))
+            throw new IllegalArgumentException("Invalid alpha argument: "+alpha+"\n Alpha should be greater than 0, and no more than 1.");
+        return new ExponentialAverage(alpha);
+    }
+
+    /**
+     * Creates a one dimensional Kalman filter, for a value that drifts slowly and is measured with noise.
+     * The filter weighs each new sample against its estimate by how uncertain each of them is, so it settles quickly after starting,
+     * then smooths as much as the two noise levels allow. Only their ratio matters: a larger measurement noise smooths more.
+     * Infinite values are passed through without changing the estimate.
+     * @param processNoise The variance of how much the true value changes between samples
+     * @param measurementNoise The variance of the noise in each sample
+     * @return The filter
+     * @throws IllegalArgumentException When either noise is not greater than 0
+    **/
+    public static SampleFilter kalman(float processNoise, float measurementNoise)
+    {
+        if(!(processNoise > 0) || Float.isInfinite(processNoise))
+            throw new IllegalArgumentException("Invalid processNoise argument: "+processNoise+"\n The process noise should be greater than 0.");
+        if(!(measurementNoise > 0) || Float.isInfinite(measurementNoise))
+            throw new IllegalArgumentException("Invalid measurementNoise argument: "+measurementNoise+"\n The measurement noise should be greater than 0.");
+        return new Kalman(processNoise, measurementNoise);
+    }
+
+    /**
+     * Creates a filter that replaces outliers with the median of the latest samples, and passes every other sample through unchanged (a Hampel filter).
+     * A sample is an outlier when it is further from the median than {@code threshold} times the spread of the samples
+     * (their median absolute deviation, scaled to match the standard deviation of normally distributed noise).
+     * A real change is passed through once it has lasted for half the window. Infinite values are outliers unless most of the window is infinite.
+     * @param window The number of samples the median and spread are taken over
+     * @param threshold How many times the spread a sample may be from the median, 3 is usual
+     * @return The filter
+     * @throws IllegalArgumentException When the window is less than 1, or the threshold is negative
+    **/
+    public static SampleFilter rejectOutliers(int window, float threshold)
+    {
+        checkWindow(window);
+        if(!(threshold >= 0) || Float.isInfinite(threshold))
+            throw new IllegalArgumentException("Invalid threshold argument: "+threshold+"\n The threshold should not be negative.");
+        return new OutlierRejection(window, threshold);
+    }
+
+    private static void checkWindow(int window)
+    {
+        if(window < 1)
+            throw new IllegalArgumentException("Invalid window argument: "+window+"\n The window should be at least 1 sample.");
+    }
+
+    /**
+     * The latest samples of each value, both in the order they arrived and sorted, so the median can be found without sorting every time
+    **/
+    private static class Window
+    {
+        private final int size;
+        private float[][] ring;
+        private float[][] sorted;
+        private int[] count;
+        private int[] next;
+
+        Window(int size)
+        {
+            this.size = size;
+        }
+
+        void allocate(int channels)
+        {
+            ring = new float[channels][size];
+            sorted = new float[channels][size];
+            count = new int[channels];
+            next = new int[channels];
+        }
+
+        void clear()
+        {
+            Arrays.fill(count, 0);
+            Arrays.fill(next, 0);
+        }
+
+        /**
+         * Adds a value, dropping the oldest once the window is full
+        **/
+        void add(int channel, float value)
+        {
+            float[] s = sorted[channel];
+            int n = count[channel];
+            if(n == size)
+            {//Take the oldest value out of the sorted values
+                int at = find(s, n, ring[channel][next[channel]]);
+                System.arraycopy(s, at + 1, s, at, n - at - 1);
+                n--;
+            }
+            int at = find(s, n, value);
+            System.arraycopy(s, at, s, at + 1, n - at);
+            s[at] = value;
+            count[channel] = n + 1;
+            ring[channel][next[channel]] = value;
+            next[channel] = (next[channel] + 1) % size;
+        }
+
+        /**
+         * @return The number of values in the window
+        **/
+        int count(int channel)
+        {
+            return count[channel];
+        }
+
+        /**
+         * @return The median of the values in the window, which must not be empty
+        **/
+        float median(int channel)
+        {
+            return median(sorted[channel], count[channel]);
+        }
+
+        /**
+         * @return The values in the window, sorted, of which the first {@link #count} are used
+        **/
+        float[] sorted(int channel)
+        {
+            return sorted[channel];
+        }
+
+        static float median(float[] sorted, int n)
+        {
+            if((n & 1) == 1)
+                return sorted[n / 2];
+            float low = sorted[n / 2 - 1];
+            float high = sorted[n / 2];
+            //Averaged as doubles, and an infinite half wins rather than making NaN
+            return low == high ? low : (float)((low + (double)high) / 2);
+        }
+
+        /**
+         * @return Where a value is, or would go, in the first n sorted values
+        **/
+        private static int find(float[] sorted, int n, float value)
+        {
+            int low = 0;
+            int high = n;
+            while(low < high)
+            {
+                int mid = (low + high) >>> 1;
+                if(Float.compare(sorted[mid], value) < 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+    }
+
+    private static final class Median extends SampleFilter
+    {
+        private final Window window;
+
+        Median(int size)
+        {
+            this.window = new Window(size);
+        }
+        protected void allocate(int channels)
+        {
+            window.allocate(channels);
+        }
+        protected void clear()
+        {
+            window.clear();
+        }
+        protected float filter(int channel, float value)
+        {
+            window.add(channel, value);
+            return window.median(channel);
+        }
+    }
+
+    private static final class ExponentialAverage extends SampleFilter
+    {
+        private final float alpha;
+        private float[] average;
+        private boolean[] started;
+
+        ExponentialAverage(float alpha)
+        {
+            this.alpha = alpha;
+        }
+        protected void allocate(int channels)
+        {
+            average = new float[channels];
+            started = new boolean[channels];
+        }
+        protected void clear()
+        {
+            Arrays.fill(started, false);
+        }
+        protected float filter(int channel, float value)
+        {
+            if(Float.isInfinite(value))
+                return value;
+            if(!started[channel])
+            {
+                started[channel] = true;
+                average[channel] = value;
+            }
+            else
+                average[channel] += alpha * (value - average[channel]);
+            return average[channel];
+        }
+    }
+
+    private static final class Kalman extends SampleFilter
+    {
+        private final float processNoise;
+        private final float measurementNoise;
+        /**
+         * The estimate of each value and its variance, which is 0 before the first sample
+        **/
+        private float[] estimate;
+        private float[] variance;
+
+        Kalman(float processNoise, float measurementNoise)
+        {
+            this.processNoise = processNoise;
+            this.measurementNoise = measurementNoise;
+        }
+        protected void allocate(int channels)
+        {
+            estimate = new float[channels];
+            variance = new float[channels];
+        }
+        protected void clear()
+        {
+            Arrays.fill(variance, 0);
+        }
+        protected float filter(int channel, float value)
+        {
+            if(Float.isInfinite(value))
+                return value;
+            float p = variance[channel];
+            if(p == 0)
+            {//The first sample is the best estimate there is
+                estimate[channel] = value;
+                variance[channel] = measurementNoise;
+                return value;
+            }
+            p += processNoise;
+            float gain = p / (p + measurementNoise);
+            estimate[channel] += gain * (value - estimate[channel]);
+            variance[channel] = (1 - gain) * p;
+            return estimate[channel];
+        }
+    }
+
+    private static final class OutlierRejection extends SampleFilter
+    {
+        /**
+         * Scales the median absolute deviation to the standard deviation of normally distributed values
+        **/
+        private static final float MAD_SCALE = 1.4826f;
+
+        private final Window window;
+        private final float threshold;
+        /**
+         * Holds the deviations from the median while they are sorted
+        **/
+        private final float[] deviations;
+
+        OutlierRejection(int size, float threshold)
+        {
+            this.window = new Window(size);
+            this.threshold = threshold;
+            this.deviations = new float[size];
+        }
+        protected void allocate(int channels)
+        {
+            window.allocate(channels);
+        }
+        protected void clear()
+        {
+            window.clear();
+        }
+        protected float filter(int channel, float value)
+        {
+            window.add(channel, value);
+            int n = window.count(channel);
+            float median = window.median(channel);
+            if(Float.isInfinite(median))
+                return value;
+            float[] sorted = window.sorted(channel);
+            for(int i=0;i<n;i++)
+                deviations[i] = Math.abs(sorted[i] - median);
+            Arrays.sort(deviations, 0, n);
+            float spread = MAD_SCALE * Window.median(deviations, n);
+            return Math.abs(value - median) > threshold * spread ? median : value;
+        }
+    }
+
+    /**
+     * Two filters, one after the other
+    **/
+    private static final class Chain extends SampleFilter
+    {
+        private final SampleFilter first;
+        private final SampleFilter second;
+
+        Chain(SampleFilter first, SampleFilter second)
+        {
+            this.first = first;
+            this.second = second;
+        }
+        protected void allocate(int channels)
+        {
+            first.allocate(channels);
+            first.channels = channels;
+            second.allocate(channels);
+            second.channels = channels;
+        }
+        protected void clear()
+        {
+            first.clear();
+            second.clear();
+        }
+        protected float filter(int channel, float value)
+        {
+            return second.filter(channel, first.filter(channel, value));
+        }
+        /**
+         * Gives both filters to the sensor too, so neither can be used by another sensor while the chain is, or the chain is left unchanged
+        **/
+        @Override
+        synchronized void attach(Sensor<?> sensor)
+        {
+            super.attach(sensor);
+            try
+            {
+                first.attach(sensor);
+            }
+            catch(IllegalStateException e)
+            {
+                super.detach(sensor);
+                throw e;
+            }
+            try
+            {
+                second.attach(sensor);
+            }
+            catch(IllegalStateException e)
+            {
+                first.detach(sensor);
+                super.detach(sensor);
+                throw e;
+            }
+        }
+        @Override
+        synchronized void detach(Sensor<?> sensor)
+        {
+            super.detach(sensor);
+            first.detach(sensor);
+            second.detach(sensor);
+        }
+    }
+}
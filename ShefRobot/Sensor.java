@@ -6,8 +6,15 @@ import lejos.hardware.sensor.*;
 import lejos.robotics.*;
 import java.rmi.*;
 import ShefRobot.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.DoublePredicate;
 
-public abstract class Sensor<T> extends PortManager<Pair<T,float[]>> {
+public abstract class Sensor<T> extends PortManager<PortAction<T,float[]>> implements SampleProvider {
     /**
      * These represent the physical ports on the robot which Sensors can be connected to
     **/
@@ -33,11 +40,76 @@ public abstract class Sensor<T> extends PortManager<Pair<T,float[]>> {
     }
 
     protected SampleProvider provider;
-    protected BaseSensor sensor;
+    protected Backend.SensorDevice sensor;
     protected Port port;
     private Type type;
     Robot parentRobot;
 
+    /**
+     * Latest sample taken in the background, see {@link #startSampling(int)}
+    **/
+    private final SampleCache cache = new SampleCache();
+    private static final float[] NO_VALUES = new float[0];
+    private volatile boolean sampling;
+    private volatile T sampledAction;
+    /**
+     * Background sampling period and the maximum age of a usable cached sample, in nanoseconds
+    **/
+    private volatile long samplePeriod;
+    private volatile long maxSampleAge;
+    /**
+     * Buffer the port thread reads background samples and {@link #fetchSample(float[], int)} requests into, so neither allocates
+    **/
+    private float[] scratch = NO_VALUES;
+    /**
+     * Applied to the samples taken with the sampled action, only by the port thread, see {@link #setFilter}.
+     * {@link #filterReset} asks the port thread to forget the filter's history before the next sample.
+    **/
+    private volatile SampleFilter filter;
+    private volatile boolean filterReset;
+    /**
+     * The mode the sensor was last switched into, and when it will have settled in that mode (only used by the port)
+    **/
+    private String activeMode;
+    private long settledAt;
+
+    /**
+     * How often the sensor is sampled for listeners, if it isn't already being sampled, in milliseconds
+    **/
+    private static final int DEFAULT_EVENT_PERIOD_MS = 10;
+    /**
+     * Listeners, which are all checked against each background sample taken with {@link #watchedAction}
+    **/
+    private final CopyOnWriteArrayList<Watcher> watchers = new CopyOnWriteArrayList<Watcher>();
+    private volatile T watchedAction;
+    /**
+     * True if sampling was started for the listeners, so it is stopped again when the last one is removed (guarded by watchers)
+    **/
+    private boolean sampledForWatchers;
+    private volatile int debounce = 1;
+    private volatile int eventPeriodMs = DEFAULT_EVENT_PERIOD_MS;
+    /**
+     * Threads the listeners of every sensor are called on, kept apart from the port threads
+    **/
+    private static final ExecutorService LISTENERS = Executors.newCachedThreadPool(new PortScheduler.DaemonThreadFactory("ShefRobot listeners"));
+    /**
+     * Calls the listeners in order, on {@link #LISTENERS}
+    **/
+    private final SerialExecutor events = new SerialExecutor(LISTENERS);
+
+    /**
+     * A read that puts its result into a buffer supplied by the caller, see {@link Sensor#fetchSample(float[], int)}
+    **/
+    private static class SampleRequest<T> extends PortAction<T,float[]> {
+        final float[] sample;
+        final int offset;
+        SampleRequest(T key, float[] sample, int offset) {
+            super(key, null);
+            this.sample = sample;
+            this.offset = offset;
+        }
+    }
+
     /** Create a new Sensor object.
 
     This creates a Sensor object that is attached to the specified {@link Robot}, of the specified type
@@ -52,29 +124,13 @@ public abstract class Sensor<T> extends PortManager<Pair<T,float[]>> {
 
      */
     protected Sensor(Robot robot, Port port, Type type) {
-        super(Thread.currentThread());
+        super(robot.getScheduler(), Thread.currentThread());
         this.parentRobot = robot;
         this.port = port;
         this.type = type;
         try
         {
-            switch(type)
-            {
-                case COLOR:
-                    this.sensor = new EV3ColorSensor(robot.getEV3().getPort(port.name()));
-                    break;
-                case GYRO:
-                    this.sensor = new EV3GyroSensor(robot.getEV3().getPort(port.name()));
-                    break;
-                case TOUCH:
-                    this.sensor = new EV3TouchSensor(robot.getEV3().getPort(port.name()));
-                    break;
-                case ULTRASOUND:
-                    this.sensor = new EV3UltrasonicSensor(robot.getEV3().getPort(port.name()));
-                    break;
-                default:
-                    throw new RuntimeException("Unexpected sensor type: "+ type);
-            }
+            this.sensor = robot.getBackend().createSensor(port.name(), type.absoluteClass);
         }
         catch(lejos.hardware.DeviceException e)
         {
@@ -108,6 +164,11 @@ public abstract class Sensor<T> extends PortManager<Pair<T,float[]>> {
      */
     @Override
     protected void close() {
+        this.stopSampling();
+        SampleFilter f = this.filter;
+        if (f != null) {
+            f.detach(this);
+        }
         this.kill();
         if (this.sensor != null) {
             //try {
@@ -117,50 +178,752 @@ public abstract class Sensor<T> extends PortManager<Pair<T,float[]>> {
             //}
             this.sensor = null;
         }
-        this.parentRobot.closeSensor(this.port);
+        this.parentRobot.forgetSensor(this.port, this);
     }
 
     /** Get a value from the Sensor.
 
+    If the sensor is {@link #startSampling(int) sampling} in the background, the latest sample is returned straight away.
+
     @return A floating point value representing the current sensor reading.
     
      */
     public float[] getRawSample() {
-        Pair<T,float[]> action = new Pair<T,float[]>(null, null);
-        //this.lastsamples = null;
-        //this.addAction("GETVAL");
+        return sendAction(null);
+    }
+
+    /** Asynchronous version of {@link Sensor#getRawSample()}, which returns immediately.
+
+    @return A future that completes with the current sensor reading.
+     */
+    public CompletableFuture<float[]> getRawSampleAsync() {
+        return sendActionAsync(null, null);
+    }
+
+    /** Fetch a sample from the Sensor into an existing array, which avoids allocating a new array for every reading.
+
+    This reads the sensor in the mode it is being {@link #startSampling(int) sampled} in, or in its current mode if it isn't being sampled.
+    While the sensor is being sampled, this copies the latest sample without allocating any memory at all.
+    A live read, when the sensor isn't being sampled or the latest sample is older than {@link #setMaxSampleAge(int)}, still allocates
+    a small request for the port thread, which is also the future this waits on, though the values themselves are written straight into {@code sample}.
+
+    @param sample The array to store the sample in. Values that don't fit are dropped, so an array shorter than {@link #sampleSize()} can be used to read just the first values.
+    @param offset Where to start storing the sample in {@code sample}.
+    @throws IndexOutOfBoundsException When {@code offset} is outside of {@code sample}.
+     */
+    public void fetchSample(float[] sample, int offset) {
+        if (offset < 0 || offset > sample.length) {
+            throw new IndexOutOfBoundsException("Invalid offset argument: "+offset+"\n Offsets must be within the sample array.");
+        }
+        T act = this.sampledAction;
+        if (this.sampling) {
+            long timestamp = this.cache.read(act, sample, offset);
+            if (timestamp != SampleCache.EMPTY && System.nanoTime() - timestamp <= maxSampleAge()) {
+                return;
+            }
+        } else {
+            act = null;
+        }
+        SampleRequest<T> action = new SampleRequest<T>(act, sample, offset);
         this.addAction(action);
-        while (action.getValue() == null) {
+        this.await(action);
+    }
+
+    /** @return The number of values in each sample returned by {@link #fetchSample(float[], int)}.
+     */
+    public int sampleSize() {
+        if (this.sampling) {
+            int size = this.cache.size();
+            if (size > 0) {
+                return size;
+            }
+            return getProvider(this.sampledAction).sampleSize();
+        }
+        return getProvider(null).sampleSize();
+    }
+
+    /**
+     * Queues an action on this sensor, without waiting for it to be carried out
+     * @param act The action to be sent, {@code null} fetches a sample in the current mode
+     * @param argument The argument of the action, if any
+     * @return The queued action, which completes with the response received from the sensor
+    **/
+    protected PortAction<T,float[]> sendActionAsync(T act, float[] argument) {
+        PortAction<T,float[]> action = new PortAction<T,float[]>(act, argument);
+        float[] cached = argument == null ? cachedSample(act) : null;
+        if (cached != null) {
+            action.complete(cached);
+        } else {
+            this.addAction(action);
+        }
+        return action;
+    }
+
+    /**
+     * Convenience method for sending an action and waiting for a response
+     * @param act The action to be sent
+     * @return The response received from the sensor
+    **/
+    protected float[] sendAction(T act) {
+        float[] cached = cachedSample(act);
+        if (cached != null) {
+            return cached;
+        }
+        return this.await(sendActionAsync(act, null));
+    }
+
+    /** Start sampling the sensor in the background.
+
+    The sensor is read every {@code periodMs} milliseconds, and reads (such as {@link #getRawSample()}) return the latest
+    sample immediately instead of asking the robot. If the latest sample is older than {@link #setMaxSampleAge the maximum sample age}
+    (for example because the connection is slow), reads go to the robot as normal.
+
+    @param periodMs How often to read the sensor, in milliseconds.
+    @throws IllegalArgumentException When {@code periodMs} is below 1.
+     */
+    public void startSampling(int periodMs) {
+        startSampling(null, periodMs);
+    }
+
+    /** Start sampling the sensor in the background, using the given action to read it.
+
+    @param act The action used to read the sensor, {@code null} reads it in its current mode.
+    @param periodMs How often to read the sensor, in milliseconds.
+     */
+    protected void startSampling(T act, int periodMs) {
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("Invalid period argument: "+periodMs+"\n Sampling periods below 1ms are invalid.");
+        }
+        this.cache.clear();
+        //A new stream of samples, which may be in a different mode
+        this.filterReset = true;
+        this.sampledAction = act;
+        this.samplePeriod = TimeUnit.MILLISECONDS.toNanos(periodMs);
+        this.sampling = true;
+        this.setPeriod(this.samplePeriod);
+        //Take the first sample straight away
+        this.addAction(new PortAction<T,float[]>(act, null));
+    }
+
+    /** Stop sampling the sensor in the background, reads will go to the robot again.
+     */
+    public void stopSampling() {
+        this.sampling = false;
+        this.setPeriod(0);
+        this.cache.clear();
+    }
+
+    /** Filters the samples taken in the background, e.g. to smooth out noise.
+
+    Each sample taken while the sensor is {@link #startSampling(int) sampling} is passed through the filter as it arrives,
+    before it is stored, so reads (such as {@link #getRawSample()}) and listeners get the filtered value of the latest sample.
+    Reads of other modes, and reads while the sensor isn't sampling, are not filtered.
+    The filter's history is forgotten whenever sampling is started, so it doesn't mix samples taken in different modes.
+
+    @param filter The filter, or {@code null} to stop filtering.
+    @throws IllegalStateException When the filter is already being used by another sensor.
+     */
+    public void setFilter(SampleFilter filter) {
+        SampleFilter old = this.filter;
+        if (filter != null && filter != old) {
+            filter.attach(this);
+        }
+        if (old != null && old != filter) {
+            old.detach(this);
+        }
+        this.filterReset = true;
+        this.filter = filter;
+    }
+
+    /** @return The filter applied to the samples taken in the background, or {@code null} if there isn't one.
+     */
+    public SampleFilter getFilter() {
+        return this.filter;
+    }
+
+    /** Forgets the history of the filter, so the next sample is filtered as if it were the first,
+    e.g. after moving the robot somewhere new.
+     */
+    public void resetFilter() {
+        this.filterReset = true;
+    }
+
+    /** @return True if the sensor is being sampled in the background.
+     */
+    public boolean isSampling() {
+        return this.sampling;
+    }
+
+    /** Sets how old the latest background sample may be before reads ignore it and go to the robot instead.
+
+    @param maxAgeMs The maximum age in milliseconds, or 0 to use twice the sampling period (the default).
+    @throws IllegalArgumentException When {@code maxAgeMs} is negative.
+     */
+    public void setMaxSampleAge(int maxAgeMs) {
+        if (maxAgeMs < 0) {
+            throw new IllegalArgumentException("Invalid age argument: "+maxAgeMs+"\n Ages should not be negative.");
+        }
+        this.maxSampleAge = TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
+    }
+
+    /** @return How long ago the latest background sample was taken in milliseconds, or -1 if there isn't one.
+     */
+    public long getSampleAge() {
+        long timestamp = this.sampling ? this.cache.read(this.sampledAction, NO_VALUES, 0) : SampleCache.EMPTY;
+        if (timestamp == SampleCache.EMPTY) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - timestamp);
+    }
+
+    /** @return True if there is no background sample younger than {@link #setMaxSampleAge the maximum sample age}.
+     */
+    public boolean isSampleStale() {
+        long timestamp = this.sampling ? this.cache.read(this.sampledAction, NO_VALUES, 0) : SampleCache.EMPTY;
+        return timestamp == SampleCache.EMPTY || System.nanoTime() - timestamp > maxSampleAge();
+    }
+
+    /** Called with the value of the sensor when a listener fires.
+     */
+    public interface ValueListener {
+        void onValue(float value);
+    }
+
+    /** Returned when a listener is added, and used to remove it again.
+     */
+    public static final class Subscription {
+        private final Runnable remover;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        Subscription(Runnable remover) {
+            this.remover = remover;
+        }
+        /** Removes the listener, it won't be called again once this returns (unless it is already being called).
+         */
+        public void cancel() {
+            if (cancelled.compareAndSet(false, true)) {
+                remover.run();
+            }
+        }
+    }
+
+    /** Calls a listener whenever the value of the sensor changes by more than {@code minDelta}.
+
+    Listeners are driven by sampling the sensor in the background (see {@link #startSampling(int)}), which is started if it
+    hasn't been already, so any number of listeners on one sensor only need one stream of readings from the robot.
+    They are called one at a time, in order, on a thread kept for listeners rather than the threads that carry out the robot's commands,
+    so a listener that waits (e.g. for a read of this or another sensor) doesn't hold up the port, though it does delay this sensor's later events.
+    The first value of each sample is used, in the mode the sensor is being sampled in.
+
+    @param minDelta The smallest change that is reported.
+    @param listener Called with the new value.
+    @return The subscription, used to remove the listener.
+    @throws IllegalArgumentException When {@code minDelta} is negative.
+     */
+    public Subscription onChange(final float minDelta, ValueListener listener) {
+        if (minDelta < 0) {
+            throw new IllegalArgumentException("Invalid delta argument: "+minDelta+"\n Changes should not be negative.");
+        }
+        return watch(new ChangeWatcher(minDelta, listener), true, null);
+    }
+
+    /** Calls a listener whenever the value of the sensor crosses a threshold.
+
+    The listener is called when the value goes above (or below) the threshold, including straight away if it already is.
+    It isn't called again until the value has gone back past the threshold by more than {@code hysteresis}, so a value
+    hovering around the threshold doesn't call it over and over. See {@link #onChange} for how listeners are called.
+
+    @param threshold The threshold.
+    @param above True to call the listener when the value goes above the threshold, false for below.
+    @param hysteresis How far the value must go back past the threshold before the listener can be called again.
+    @param listener Called with the value that crossed the threshold.
+    @return The subscription, used to remove the listener.
+    @throws IllegalArgumentException When {@code hysteresis} is negative.
+     */
+    public Subscription onThreshold(float threshold, boolean above, float hysteresis, ValueListener listener) {
+        return watch(thresholdWatcher(threshold, above, hysteresis, listener), true, null);
+    }
+
+    /** Sets how many samples in a row must agree before a listener is called, which filters out readings that flicker.
+
+    @param samples The number of samples, 1 (the default) calls listeners on the first sample.
+    @throws IllegalArgumentException When {@code samples} is less than 1.
+     */
+    public void setDebounce(int samples) {
+        if (samples < 1) {
+            throw new IllegalArgumentException("Invalid samples argument: "+samples+"\n At least one sample is needed.");
+        }
+        this.debounce = samples;
+    }
+
+    /** Sets how often the sensor is sampled for listeners, when it isn't already being sampled.
+    This takes effect when the first listener is added.
+
+    @param periodMs The period in milliseconds, 10 by default.
+    @throws IllegalArgumentException When {@code periodMs} is below 1.
+     */
+    public void setEventPeriod(int periodMs) {
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("Invalid period argument: "+periodMs+"\n Sampling periods below 1ms are invalid.");
+        }
+        this.eventPeriodMs = periodMs;
+    }
+
+    /**
+     * Creates a watcher that fires when the value crosses a threshold, see {@link #onThreshold}
+    **/
+    Watcher thresholdWatcher(final float threshold, boolean above, final float hysteresis, ValueListener listener) {
+        if (hysteresis < 0) {
+            throw new IllegalArgumentException("Invalid hysteresis argument: "+hysteresis+"\n Hysteresis should not be negative.");
+        }
+        if (above) {
+            return new EdgeWatcher(v -> v > threshold, v -> v <= threshold - hysteresis, true, listener);
+        }
+        return new EdgeWatcher(v -> v < threshold, v -> v >= threshold + hysteresis, true, listener);
+    }
+
+    /**
+     * Creates a watcher that fires when a value starts to match {@code enter}, and can fire again once it matches {@code exit}
+     * @param armed False if a value must match {@code exit} before the watcher can fire the first time
+    **/
+    Watcher edgeWatcher(DoublePredicate enter, DoublePredicate exit, boolean armed, ValueListener listener) {
+        return new EdgeWatcher(enter, exit, armed, listener);
+    }
+
+    /**
+     * Adds a listener, starting background sampling for it if needed.
+     * All the listeners on a sensor must watch the same mode.
+     * @param w The listener
+     * @param anyMode True to watch whichever mode the sensor is being sampled in, or the default mode used by {@link #startSampling(int)}
+     * @param act The action to watch, if not {@code anyMode}
+     * @throws IllegalStateException When the sensor is being sampled, or watched, in a different mode
+    **/
+    Subscription watch(final Watcher w, boolean anyMode, T act) {
+        synchronized (this.watchers) {
+            if (this.watchers.isEmpty()) {
+                if (!this.sampling) {
+                    if (anyMode) {
+                        startSampling(this.eventPeriodMs);
+                    } else {
+                        startSampling(act, this.eventPeriodMs);
+                    }
+                    this.sampledForWatchers = true;
+                } else if (!anyMode && act != this.sampledAction) {
+                    throw new IllegalStateException("The sensor on port "+this.port.name()+" is being sampled in a different mode, so can't be listened to in this one.");
+                }
+                this.watchedAction = this.sampledAction;
+            } else if (!anyMode && act != this.watchedAction) {
+                throw new IllegalStateException("The sensor on port "+this.port.name()+" already has listeners in a different mode.");
+            }
+            this.watchers.add(w);
+        }
+        return new Subscription(() -> unwatch(w));
+    }
+
+    private void unwatch(Watcher w) {
+        synchronized (this.watchers) {
+            if (this.watchers.remove(w) && this.watchers.isEmpty() && this.sampledForWatchers) {
+                this.sampledForWatchers = false;
+                stopSampling();
+            }
+        }
+    }
+
+    /**
+     * A listener, checked against every background sample on the port thread. Each watcher is only used by the port thread.
+    **/
+    abstract class Watcher {
+        private final ValueListener listener;
+        /**
+         * The number of samples in a row that have agreed so far
+        **/
+        int held;
+
+        Watcher(ValueListener listener) {
+            if (listener == null) {
+                throw new IllegalArgumentException("Invalid listener argument: null");
+            }
+            this.listener = listener;
+        }
+        abstract void sample(float value, int debounce);
+
+        void fire(final float value) {
+            events.execute(() -> listener.onValue(value));
+        }
+    }
+
+    private class ChangeWatcher extends Watcher {
+        private final float minDelta;
+        private boolean started;
+        private float last;
+
+        ChangeWatcher(float minDelta, ValueListener listener) {
+            super(listener);
+            this.minDelta = minDelta;
+        }
+        void sample(float value, int debounce) {
+            if (!started) {
+                started = true;
+                last = value;
+            } else if (Math.abs(value - last) > minDelta) {
+                if (++held >= debounce) {
+                    held = 0;
+                    last = value;
+                    fire(value);
+                }
+            } else {
+                held = 0;
+            }
+        }
+    }
+
+    private class EdgeWatcher extends Watcher {
+        private final DoublePredicate enter;
+        private final DoublePredicate exit;
+        private boolean armed;
+
+        EdgeWatcher(DoublePredicate enter, DoublePredicate exit, boolean armed, ValueListener listener) {
+            super(listener);
+            this.enter = enter;
+            this.exit = exit;
+            this.armed = armed;
+        }
+        void sample(float value, int debounce) {
+            if (!(armed ? enter : exit).test(value)) {
+                held = 0;
+            } else if (++held >= debounce) {
+                held = 0;
+                armed = !armed;
+                if (!armed) {
+                    fire(value);
+                }
+            }
+        }
+    }
+
+    private long maxSampleAge() {
+        long age = this.maxSampleAge;
+        return age > 0 ? age : 2 * this.samplePeriod;
+    }
+
+    /**
+     * Returns a copy of the latest background sample, if the sensor is being sampled with the given action and the sample is fresh enough.
+     * @param act The action the sample should have been taken with
+     * @return The sample, or {@code null} if there isn't a usable one
+    **/
+    protected float[] cachedSample(T act) {
+        if (!this.sampling || act != this.sampledAction) {
+            return null;
+        }
+        int size = this.cache.size();
+        if (size == 0) {
+            return null;
+        }
+        float[] sample = new float[size];
+        long timestamp = this.cache.read(act, sample, 0);
+        if (timestamp == SampleCache.EMPTY || System.nanoTime() - timestamp > maxSampleAge()) {
+            return null;
+        }
+        return sample;
+    }
+
+    /**
+     * Takes the next background sample, called by the PortManager superclass
+    **/
+    @Override
+    protected void periodic() {
+        if (!this.sampling) {
+            return;
+        }
+        if (this.sensor == null) {
+            makeSensor();
+        }
+        T act = this.sampledAction;
+        SampleProvider p = getProvider(act);
+        if (settle(act, p, () -> {
+            if (isKilled()) {
+                return;
+            }
+            try {
+                sample(act, p);
+            } catch (RuntimeException e) {
+                System.err.println("Periodic task failed: " + e);
+            }
+        })) {
+            sample(act, p);
+        }
+    }
+
+    /**
+     * Takes a background sample once the sensor has settled, and passes it on to the cache and the listeners
+    **/
+    private void sample(T act, SampleProvider p) {
+        int size = p.sampleSize();
+        if (scratch.length < size) {
+            scratch = new float[size];
+        }
+        fetch(act, p, scratch, 0);
+        applyFilter(act, scratch, 0, size);
+        publish(act, scratch, 0, size);
+        if (act == this.watchedAction && size > 0) {
+            float value = scratch[0];
+            int samples = this.debounce;
+            for (Watcher w: this.watchers) {
+                w.sample(value, samples);
+            }
+        }
+    }
+
+    /**
+     * Filters a sample in place, if it was taken with the action currently being sampled and there is a filter
+    **/
+    private void applyFilter(T act, float[] sample, int offset, int size) {
+        SampleFilter f = this.filter;
+        if (f == null || !this.sampling || act != this.sampledAction) {
+            return;
+        }
+        if (this.filterReset) {
+            this.filterReset = false;
+            f.reset();
+        }
+        f.filter(sample, offset, size);
+    }
+
+    /**
+     * Stores a sample in the cache, if it was taken with the action currently being sampled
+    **/
+    private void publish(T act, float[] sample, int offset, int size) {
+        if (this.sampling && act == this.sampledAction) {
+            this.cache.publish(act, sample, offset, size, System.nanoTime());
+        }
+    }
+
+    /**
+     * Switches the sensor into the mode an action reads in, if it isn't in it already.
+     * After a switch the sensor returns bad values for a while (e.g. until the colour sensor's light has changed),
+     * so the first value is thrown away. Until the sensor has {@link #getSettleNanos settled} the port is suspended,
+     * and the timer carries out the read afterwards, so no thread of the scheduler is held while it waits.
+     * @param then Carries out the read once the sensor has settled, if it hasn't yet
+     * @return True if the sensor has already settled, in which case the caller reads it straight away and {@code then} is never run
+    **/
+    private boolean settle(T act, SampleProvider p, Runnable then) {
+        String mode = act == null ? null : getModeName(act);
+        if (mode != null && !mode.equals(this.activeMode)) {
+            int size = p.sampleSize();
+            if (scratch.length < size) {
+                scratch = new float[size];
+            }
+            //Reading in a mode is what switches the sensor into it
+            p.fetchSample(scratch, 0);
+            modeChanged(mode);
+        }
+        long wait = this.settledAt - System.nanoTime();
+        if (wait <= 0) {
+            return true;
+        }
+        suspend();
+        runLater(() -> {
             try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {}
+                then.run();
+            } finally {
+                resume();
+            }
+        }, wait, TimeUnit.NANOSECONDS);
+        return false;
+    }
+
+    /**
+     * Reads the sensor in its current mode, recording the read if the Robot has a flight recorder
+    **/
+    private void fetch(T act, SampleProvider p, float[] sample, int offset) {
+        String mode = act == null ? null : getModeName(act);
+        FlightRecorder recorder = this.parentRobot.getFlightRecorder();
+        if (recorder == null) {
+            p.fetchSample(sample, offset);
+            return;
+        }
+        long start = System.nanoTime();
+        p.fetchSample(sample, offset);
+        recorder.sample(this.port, this.type, modeIndex(mode == null ? this.activeMode : mode), sample, offset, p.sampleSize(), start, System.nanoTime());
+    }
+
+    /**
+     * @return The index of a mode in the sensor type's modes, the sensor's first mode (which LeJOS starts it in) when the mode isn't known
+    **/
+    private int modeIndex(String mode) {
+        for (int i = 0; i < this.type.modes.length; i++) {
+            if (this.type.modes[i].equals(mode)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Records that the sensor has just been switched into a mode, so that reads wait for it to settle.
+     * Subclasses call this on the port when they switch the sensor's mode themselves.
+     * @param mode The name of the mode
+    **/
+    protected void modeChanged(String mode) {
+        this.activeMode = mode;
+        this.settledAt = System.nanoTime() + getSettleNanos(mode);
+    }
+
+    /**
+     * Returns the name of the sensor mode an action reads in.
+     * Reads in the same mode are grouped together, and the sensor only waits to settle when the mode actually changes.
+     * @param act The action
+     * @return The name of the mode, or {@code null} if the action doesn't read a particular mode (the default)
+    **/
+    protected String getModeName(T act) {
+        return null;
+    }
+
+    /**
+     * Returns how long the sensor takes to give good values after switching into a mode
+     * @param mode The name of the mode
+     * @return The time in nanoseconds, 0 by default
+    **/
+    protected long getSettleNanos(String mode) {
+        return 0;
+    }
+
+    /**
+     * Reads in the same mode as the last action can be carried out together, saving the sensor from switching back and forth.
+    **/
+    @Override
+    protected boolean canRunWith(PortAction<T,float[]> next, PortAction<T,float[]> last) {
+        String mode = modeOf(last);
+        return mode != null && mode.equals(modeOf(next));
+    }
+
+    /**
+     * Only reads in a particular mode can be moved past each other, anything else (e.g. changing the floodlight) stays in order.
+    **/
+    @Override
+    protected boolean isBarrier(PortAction<T,float[]> act) {
+        return modeOf(act) == null;
+    }
+
+    /**
+     * Identical reads waiting together are answered by a single round trip to the robot.
+     * Reads into a caller's own buffer are never used as the answer, as the caller may already be changing it.
+    **/
+    @Override
+    protected boolean canShare(PortAction<T,float[]> next, PortAction<T,float[]> done) {
+        return next.key == done.key && !(done instanceof SampleRequest) && done.getArgument() == null && next.getArgument() == null
+            && getProvider(done.key) != null;
+    }
+    @Override
+    protected void share(PortAction<T,float[]> next, PortAction<T,float[]> done) {
+        float[] result = done.getNow(null);
+        if (next instanceof SampleRequest) {
+            SampleRequest<T> request = (SampleRequest<T>)next;
+            System.arraycopy(result, 0, request.sample, request.offset, Math.min(result.length, request.sample.length - request.offset));
+            next.complete(request.sample);
+        } else {
+            next.complete(result.clone());
         }
-        return action.getValue();
     }
 
-    protected void action(Pair<T,float[]> act) {
+    private String modeOf(PortAction<T,float[]> act) {
+        return act.key == null ? null : getModeName(act.key);
+    }
+
+    /**
+     * Returns the provider used to carry out an action that reads the sensor
+     * @param act The action, {@code null} reads the sensor in its current mode
+     * @return The provider, or {@code null} if the action doesn't read the sensor
+    **/
+    private SampleProvider getProvider(T act) {
+        return act == null ? this.provider : getSampleProvider(act);
+    }
+
+    protected void action(PortAction<T,float[]> act) {
         if (this.sensor == null) {
             makeSensor();
         }
         try {
             //We can't extend enums and using ints would be inconsistent
             //Instead we treat a null action as the single common action fetchSample()/GET_VALUE
-            //If the action isn't null, we pass it off to the subclass to handle
-            if(act.key==null)
+            //Other actions that read the sensor are carried out here too, using the provider for their mode,
+            //anything else is passed off to the subclass to handle
+            SampleProvider p = getProvider(act.key);
+            if(p!=null)
             {
-                float[] samples = new float[this.sensor.sampleSize()];
-                this.provider.fetchSample(samples, 0);
-                act.setValue(samples);
+                if (settle(act.key, p, () -> readSettled(act, p))) {
+                    read(act, p);
+                }
             }
             else
             {
-                subAction(act);
+                FlightRecorder recorder = this.parentRobot.getFlightRecorder();
+                if (recorder == null) {
+                    subAction(act);
+                    return;
+                }
+                long start = System.nanoTime();
+                boolean failed = true;
+                try {
+                    subAction(act);
+                    failed = false;
+                } finally {
+                    recorder.sensorCommand(this.port, this.type, ((Enum<?>)act.key).ordinal(), act.getArgument(),
+                        act.isDone() && !act.isCompletedExceptionally() ? act.getNow(null) : null, start, System.nanoTime(), failed);
+                }
             }
         } catch (RemoteException e) {
             throw new RuntimeException(e);
         }
 
     }
-    protected abstract void subAction(Pair<T,float[]> act) throws RemoteException;
+    /**
+     * Reads the sensor for an action, once the sensor has settled in the action's mode, and completes the action with the sample
+    **/
+    private void read(PortAction<T,float[]> act, SampleProvider p) {
+        int size = p.sampleSize();
+        if (act instanceof SampleRequest) {
+            //LeJOS won't read into an array that is too short, so read the whole sample here and copy what fits
+            SampleRequest<T> request = (SampleRequest<T>)act;
+            if (scratch.length < size) {
+                scratch = new float[size];
+            }
+            fetch(act.key, p, scratch, 0);
+            applyFilter(act.key, scratch, 0, size);
+            publish(act.key, scratch, 0, size);
+            System.arraycopy(scratch, 0, request.sample, request.offset, Math.min(size, request.sample.length - request.offset));
+            act.complete(request.sample);
+        } else {
+            float[] samples = new float[size];
+            fetch(act.key, p, samples, 0);
+            applyFilter(act.key, samples, 0, size);
+            publish(act.key, samples, 0, size);
+            act.complete(samples);
+        }
+    }
+
+    /**
+     * Carries out a read that had to wait for the sensor to settle, called on the scheduler by the timer
+    **/
+    private void readSettled(PortAction<T,float[]> act, SampleProvider p) {
+        if (isKilled()) {
+            act.cancel(false);
+            return;
+        }
+        try {
+            read(act, p);
+        } catch (RuntimeException e) {
+            System.err.println("Action " + act.key + " failed: " + e);
+            act.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Returns the provider used to read the sensor for one of the subclass's actions, e.g. the sensor mode the action reads.
+     * @param act The action
+     * @return The provider, or {@code null} if the action doesn't simply read the sensor, in which case it is passed to {@link #subAction}
+    **/
+    protected abstract SampleProvider getSampleProvider(T act);
+    protected abstract void subAction(PortAction<T,float[]> act) throws RemoteException;
 
 }
\ No newline at end of file
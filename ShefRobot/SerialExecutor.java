@@ -0,0 +1,60 @@
+package ShefRobot;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Internal class that runs tasks one at a time, in the order they were given, on threads borrowed from another executor.
+ * Used to call a sensor's listeners on threads kept for listeners, so a slow listener (or one that reads the sensor itself) can't hold up the port,
+ * while each listener still sees events in order.
+**/
+final class SerialExecutor implements Executor
+{
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    SerialExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    public void execute(Runnable task)
+    {
+        tasks.offer(task);
+        schedule();
+    }
+
+    private void schedule()
+    {
+        if(scheduled.compareAndSet(false, true))
+            executor.execute(this::drain);
+    }
+
+    private void drain()
+    {
+        try
+        {
+            Runnable task;
+            while((task = tasks.poll()) != null)
+            {
+                try
+                {
+                    task.run();
+                }
+                catch(RuntimeException e)
+                {
+                    System.err.println("Listener failed: " + e);
+                }
+            }
+        }
+        finally
+        {
+            scheduled.set(false);
+            //Something may have been added after the queue was found empty
+            if(!tasks.isEmpty())
+                schedule();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package ShefRobot;
+
+import lejos.hardware.Key;
+import lejos.hardware.Keys;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * A simulated EV3, which can be given to {@link Robot#Robot(Backend)} to run and time programs without a robot.
+ *
+ * Simulated motors turn at the speed they are set to, and their tacho counts follow from how long they have been turning.
+ * Simulated sensors return the values given to {@link #setSensorValues} or {@link #setSensorSource}, or zeros if they haven't been given any.
+ * The speaker plays silently (but still takes as long as the tone would), and there are no buttons.
+ *
+ * Every call to a motor, sensor or the speaker can be delayed, to behave like the connection to a real EV3, see {@link #setLatency}.
+ * The random part of the delay comes from a generator for each motor, sensor and the speaker, seeded from the EV3's seed and the port,
+ * so each device sees the same delays from run to run however the threads of the ports happen to interleave.
+ * @see Robot#Robot(Backend)
+**/
+public class SimulatedEV3 implements Backend
+{
+    private final long seed;
+    private volatile long latency;
+    private volatile long jitter;
+    private final Map<String, Supplier<float[]>> sources = new ConcurrentHashMap<String, Supplier<float[]>>();
+
+    /**
+     * Creates a simulated EV3 with no latency
+    **/
+    public SimulatedEV3()
+    {
+        this(0);
+    }
+    /**
+     * Creates a simulated EV3 with no latency
+     * @param seed The seed used to generate the random part of the latency
+    **/
+    public SimulatedEV3(long seed)
+    {
+        this.seed = seed;
+    }
+    /**
+     * Sets how long every call to a motor, sensor or the speaker takes, in addition to any time the call itself takes (e.g. playing a tone).
+     * Each call takes {@code latencyMicros} plus or minus a random amount up to {@code jitterMicros}.
+     * @param latencyMicros The average time taken, in microseconds
+     * @param jitterMicros The most the time taken varies by, in microseconds
+     * @throws IllegalArgumentException When either argument is negative, or the jitter is larger than the latency
+    **/
+    public void setLatency(long latencyMicros, long jitterMicros)
+    {
+        if(latencyMicros < 0 || jitterMicros < 0 || jitterMicros > latencyMicros)
+            throw new IllegalArgumentException("Invalid latency arguments: "+latencyMicros+", "+jitterMicros+"\n Latency and jitter should not be negative, and jitter should not exceed the latency.");
+        this.latency = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        this.jitter = TimeUnit.MICROSECONDS.toNanos(jitterMicros);
+    }
+    /**
+     * Sets the values read from a sensor in the given mode.
+     * Each read returns the next sample, going back to the first after the last.
+     * @param port The port the sensor is connected to
+     * @param mode The LeJOS name of the mode, e.g. {@code "Red"} or {@code "ColorID"} for a {@link ColorSensor}
+     * @param samples The samples to return
+     * @throws IllegalArgumentException When no samples are given
+    **/
+    public void setSensorValues(Sensor.Port port, String mode, final float[]... samples)
+    {
+        if(samples.length == 0)
+            throw new IllegalArgumentException("Invalid samples argument: at least one sample is needed.");
+        final float[][] script = samples.clone();
+        setSensorSource(port, mode, new Supplier<float[]>() {
+            private int next = 0;
+            public synchronized float[] get() {
+                float[] sample = script[next];
+                next = (next + 1) % script.length;
+                return sample;
+            }
+        });
+    }
+    /**
+     * Sets where the values read from a sensor in the given mode come from.
+     * The source is asked for a sample every time the sensor is read.
+     * @param port The port the sensor is connected to
+     * @param mode The LeJOS name of the mode, e.g. {@code "Red"} or {@code "ColorID"} for a {@link ColorSensor}
+     * @param source The source of the samples, or {@code null} to go back to returning zeros
+    **/
+    public void setSensorSource(Sensor.Port port, String mode, Supplier<float[]> source)
+    {
+        if(source == null)
+            sources.remove(key(port.name(), mode));
+        else
+            sources.put(key(port.name(), mode), source);
+    }
+
+    public RegulatedMotor createRegulatedMotor(String port, char type)
+    {
+        return new SimulatedMotor(this, random(port));
+    }
+
+    public SensorDevice createSensor(String port, String sensorClass)
+    {
+        for(Sensor.Type t:Sensor.Type.values())
+        {
+            if(t.absoluteClass.equals(sensorClass))
+                return new SimulatedSensor(this, port, t.modes, random(port));
+        }
+        throw new RuntimeException("Unexpected sensor type: "+ sensorClass);
+    }
+
+    public AudioDevice getAudio()
+    {
+        final Random random = random("Audio");
+        return new AudioDevice() {
+            private volatile int volume = Speaker.VOLUME_MAX;
+            public int getVolume() {
+                delay(random);
+                return volume;
+            }
+            public void setVolume(int volume) {
+                delay(random);
+                this.volume = volume;
+            }
+            public void playTone(int freq, int duration) {
+                delay(random);
+                pause(TimeUnit.MILLISECONDS.toNanos(duration));
+            }
+        };
+    }
+
+    public Keys getKeys()
+    {
+        return null;
+    }
+
+    public Key getKey(String name)
+    {
+        return null;
+    }
+
+    /**
+     * @return A generator of the random part of the latency for the device on the given port, see {@link #delay(Random)}
+    **/
+    Random random(String port)
+    {
+        return new Random(seed * 31 + port.hashCode());
+    }
+
+    /**
+     * Waits for the latency of one call
+     * @param random The generator of the device being called, see {@link #random(String)}
+    **/
+    void delay(Random random)
+    {
+        long wait = latency;
+        long spread = jitter;
+        if(spread > 0)
+            wait += (long)((random.nextDouble() * 2 - 1) * spread);
+        pause(wait);
+    }
+
+    /**
+     * Waits for the given time, more precisely than {@link Thread#sleep(long)}
+    **/
+    static void pause(long nanos)
+    {
+        long end = System.nanoTime() + nanos;
+        for(long left = nanos; left > 0; left = end - System.nanoTime())
+            LockSupport.parkNanos(left);
+    }
+
+    /**
+     * Reads the next sample for a sensor into {@code dst}
+    **/
+    void sample(String port, String mode, float[] dst, int offset, int size)
+    {
+        Supplier<float[]> source = sources.get(key(port, mode));
+        if(source == null)
+        {
+            Arrays.fill(dst, offset, offset + size, 0f);
+            return;
+        }
+        float[] sample = source.get();
+        System.arraycopy(sample, 0, dst, offset, Math.min(size, sample.length));
+    }
+
+    private static String key(String port, String mode)
+    {
+        return port + "/" + mode;
+    }
+}
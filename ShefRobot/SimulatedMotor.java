@@ -0,0 +1,189 @@
+package ShefRobot;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Internal class representing a motor of a {@link SimulatedEV3}.
+ * The motor turns at exactly the speed it is set to, and its tacho count is worked out from how long it has been turning.
+**/
+class SimulatedMotor implements Backend.RegulatedMotor
+{
+    /**
+     * Roughly the maximum speed of a motor on a charged EV3, in degrees per second
+    **/
+    static final float MAX_SPEED = 800f;
+    /**
+     * The speed motors start with, which is the same as LeJOS
+    **/
+    static final int DEFAULT_SPEED = 360;
+
+    private final SimulatedEV3 ev3;
+    private final Random random;
+    private int speed = DEFAULT_SPEED;
+    /**
+     * 1 when turning forwards, -1 when turning backwards, 0 when stopped
+    **/
+    private int direction;
+    /**
+     * The position (tacho count) of the motor at {@link #since}
+    **/
+    private double origin;
+    private long since = System.nanoTime();
+    /**
+     * Whether the motor stops when it reaches {@link #limit}, as it does after {@link #rotateTo}
+    **/
+    private boolean limited;
+    private double limit;
+
+    SimulatedMotor(SimulatedEV3 ev3, Random random)
+    {
+        this.ev3 = ev3;
+        this.random = random;
+    }
+
+    /**
+     * Works out the current position of the motor, stopping it if it has reached its limit
+    **/
+    private synchronized double position()
+    {
+        long now = System.nanoTime();
+        if(direction != 0)
+        {
+            double position = origin + direction * speed * (now - since) / 1e9;
+            if(limited && (direction > 0 ? position >= limit : position <= limit))
+            {
+                position = limit;
+                direction = 0;
+                limited = false;
+            }
+            origin = position;
+        }
+        since = now;
+        return origin;
+    }
+
+    private synchronized void move(int newDirection)
+    {
+        position();
+        direction = newDirection;
+        limited = false;
+    }
+
+    public void forward()
+    {
+        ev3.delay(random);
+        move(1);
+    }
+    public void backward()
+    {
+        ev3.delay(random);
+        move(-1);
+    }
+    public void stop(boolean immediateReturn)
+    {
+        ev3.delay(random);
+        move(0);
+    }
+    public void setSpeed(int speed)
+    {
+        ev3.delay(random);
+        synchronized(this)
+        {
+            position();
+            this.speed = (int)Math.min(Math.abs(speed), MAX_SPEED);
+        }
+    }
+    public void rotate(int angle, boolean immediateReturn)
+    {
+        ev3.delay(random);
+        synchronized(this)
+        {
+            startRotation(Math.round(position()) + angle);
+        }
+        if(!immediateReturn)
+            waitComplete();
+    }
+    public void rotateTo(int limitAngle, boolean immediateReturn)
+    {
+        ev3.delay(random);
+        synchronized(this)
+        {
+            position();
+            startRotation(limitAngle);
+        }
+        if(!immediateReturn)
+            waitComplete();
+    }
+    private void startRotation(double target)
+    {
+        limit = target;
+        direction = (int)Math.signum(target - origin);
+        limited = direction != 0;
+    }
+    /**
+     * Waits for a rotation to finish, by sleeping for as long as it should take
+    **/
+    private void waitComplete()
+    {
+        while(true)
+        {
+            long wait;
+            synchronized(this)
+            {
+                double position = position();
+                if(direction == 0)
+                    return;
+                wait = speed == 0 ? TimeUnit.MILLISECONDS.toNanos(10) : (long)(Math.abs(limit - position) / speed * 1e9) + 1;
+            }
+            SimulatedEV3.pause(wait);
+        }
+    }
+    public void resetTachoCount()
+    {
+        ev3.delay(random);
+        synchronized(this)
+        {
+            double position = position();
+            limit -= position;
+            origin = 0;
+        }
+    }
+    public int getSpeed()
+    {
+        ev3.delay(random);
+        synchronized(this)
+        {
+            return speed;
+        }
+    }
+    public float getMaxSpeed()
+    {
+        ev3.delay(random);
+        return MAX_SPEED;
+    }
+    public int getTachoCount()
+    {
+        ev3.delay(random);
+        return (int)Math.round(position());
+    }
+    public boolean isMoving()
+    {
+        ev3.delay(random);
+        synchronized(this)
+        {
+            position();
+            return direction != 0;
+        }
+    }
+    public boolean isStalled()
+    {
+        ev3.delay(random);
+        return false;
+    }
+    public void close()
+    {
+        ev3.delay(random);
+        move(0);
+    }
+}
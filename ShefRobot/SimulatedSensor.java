@@ -0,0 +1,124 @@
+package ShefRobot;
+
+import java.util.Random;
+import lejos.robotics.SampleProvider;
+
+/**
+ * Internal class representing a sensor of a {@link SimulatedEV3}.
+ * Samples come from the sources given to the {@link SimulatedEV3} for each port and mode.
+**/
+class SimulatedSensor implements Backend.SensorDevice
+{
+    private final SimulatedEV3 ev3;
+    private final String port;
+    private final String[] modes;
+    private final Random random;
+    private final SampleProvider[] providers;
+    private volatile int currentMode;
+    private volatile int floodlight = ColorSensor.FloodlightState.RED.internalId;
+    private volatile boolean enabled = true;
+
+    SimulatedSensor(SimulatedEV3 ev3, String port, String[] modes, Random random)
+    {
+        this.ev3 = ev3;
+        this.port = port;
+        this.modes = modes;
+        this.random = random;
+        this.providers = new SampleProvider[modes.length];
+        for(int i=0;i<modes.length;i++)
+            providers[i] = new ModeProvider(modes[i]);
+    }
+
+    /**
+     * Returns the number of values in a sample in the given mode
+    **/
+    static int sampleSize(String mode)
+    {
+        switch(mode) {
+            case "RGB":
+                return 3;
+            case "Angle and Rate":
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    public int sampleSize()
+    {
+        return providers[currentMode].sampleSize();
+    }
+    public void fetchSample(float[] sample, int offset)
+    {
+        providers[currentMode].fetchSample(sample, offset);
+    }
+    public SampleProvider getMode(String modeName)
+    {
+        for(int i=0;i<modes.length;i++)
+        {
+            if(modes[i].equals(modeName))
+                return providers[i];
+        }
+        throw new IllegalArgumentException("Unknown sensor mode: "+modeName);
+    }
+    public void setCurrentMode(int mode)
+    {
+        if(mode < 0 || mode >= modes.length)
+            throw new IllegalArgumentException("Unknown sensor mode: "+mode);
+        currentMode = mode;
+    }
+    public void close() {}
+
+    public void setFloodlight(int color)
+    {
+        ev3.delay(random);
+        floodlight = color;
+    }
+    public int getFloodlight()
+    {
+        ev3.delay(random);
+        return floodlight;
+    }
+    public void reset()
+    {
+        ev3.delay(random);
+    }
+    public void enable()
+    {
+        ev3.delay(random);
+        enabled = true;
+    }
+    public void disable()
+    {
+        ev3.delay(random);
+        enabled = false;
+    }
+    public boolean isEnabled()
+    {
+        ev3.delay(random);
+        return enabled;
+    }
+
+    /**
+     * Reads the sensor in one mode
+    **/
+    private class ModeProvider implements SampleProvider
+    {
+        private final String mode;
+        private final int size;
+        ModeProvider(String mode)
+        {
+            this.mode = mode;
+            this.size = SimulatedSensor.sampleSize(mode);
+        }
+        public int sampleSize()
+        {
+            return size;
+        }
+        public void fetchSample(float[] sample, int offset)
+        {
+            ev3.delay(random);
+            ev3.sample(port, mode, sample, offset, size);
+        }
+    }
+}
@@ -5,15 +5,25 @@ import lejos.hardware.*;
 import lejos.robotics.*;
 import java.rmi.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import ShefRobot.util.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 
+enum SpeakerAction{
+    PLAY;
+}
 /**
  * Objects of this class represent the audio interface to the {@link Robot} which it was created from
+ * Tones are queued and played one after another in the background, so programs can carry on while they play.
+ * A whole {@link Melody} is queued as one command, and anything queued can be cancelled (see {@link #stop()}).
  * @see Robot#getSpeaker()
 **/
-public class Speaker
+public class Speaker extends PortManager<PortAction<SpeakerAction,Void>>
 {
     /**
      * The maximum integer that can be passed to {@link #setVolume(int) setVolume} or returned from {@link #getVolume() getVolume}
@@ -26,17 +36,119 @@ public class Speaker
     /**
      * Holds the ev3 audio interface
     **/
-    private Audio speaker;
+    private Backend.AudioDevice speaker;
+    /**
+     * Tones queued or playing, so that {@link #stop()} can cancel them
+    **/
+    private final Set<PortAction<SpeakerAction,Void>> playing = Collections.newSetFromMap(new java.util.concurrent.ConcurrentHashMap<PortAction<SpeakerAction,Void>,Boolean>());
+    /**
+     * Carries on melodies after their rests
+    **/
+    private final Executor executor;
+
+    /**
+     * A sequence of tones and rests, played by {@link Speaker#play(Melody)}
+    **/
+    public static final class Melody
+    {
+        private int[] freqs = new int[8];
+        private int[] durations = new int[8];
+        private int[] volumes = new int[8];
+        private int length;
+
+        /**
+         * Adds a tone, played at the speaker's current volume
+         * @param freq The frequency of the tone in Hertz (Hz).
+         * @param duration The duration of the tone, in milliseconds (ms).
+         * @return This melody
+         * @throws IllegalArgumentException When {@code freq} or {@code duration} arguments are below 1.
+        **/
+        public Melody tone(int freq, int duration)
+        {
+            checkTone(freq, duration);
+            return add(freq, duration, -1);
+        }
+        /**
+         * Adds a tone
+         * @param freq The frequency of the tone in Hertz (Hz).
+         * @param duration The duration of the tone, in milliseconds (ms).
+         * @param volume The volume of the tone, in the range {@link #VOLUME_MIN VOLUME_MIN}-{@link #VOLUME_MAX VOLUME_MAX}.
+         * @return This melody
+         * @throws IllegalArgumentException When {@code freq} or {@code duration} arguments are below 1, or {@code volume} is out of range.
+        **/
+        public Melody tone(int freq, int duration, int volume)
+        {
+            checkTone(freq, duration);
+            if(volume<VOLUME_MIN||volume>VOLUME_MAX)
+                throw new IllegalArgumentException("Invalid volume argument: "+volume+"\n Volume values should be within the range 0-100.");
+            return add(freq, duration, volume);
+        }
+        /**
+         * Adds a silence
+         * @param duration The duration of the silence, in milliseconds (ms).
+         * @return This melody
+         * @throws IllegalArgumentException When {@code duration} is below 1.
+        **/
+        public Melody rest(int duration)
+        {
+            checkTone(1, duration);
+            return add(0, duration, -1);
+        }
+        /**
+         * @return The total length of the melody, in milliseconds (ms).
+        **/
+        public int getDuration()
+        {
+            int total = 0;
+            for(int i=0;i<length;i++)
+                total += durations[i];
+            return total;
+        }
+        private Melody add(int freq, int duration, int volume)
+        {
+            if(length == freqs.length)
+            {
+                freqs = Arrays.copyOf(freqs, length * 2);
+                durations = Arrays.copyOf(durations, length * 2);
+                volumes = Arrays.copyOf(volumes, length * 2);
+            }
+            freqs[length] = freq;
+            durations[length] = duration;
+            volumes[length] = volume;
+            length++;
+            return this;
+        }
+    }
+
+    /**
+     * A queued melody, copied so that changing the Melody afterwards doesn't change what is played
+    **/
+    private static class ToneAction extends PortAction<SpeakerAction,Void>
+    {
+        final int[] freqs;
+        final int[] durations;
+        final int[] volumes;
+        ToneAction(int[] freqs, int[] durations, int[] volumes)
+        {
+            super(SpeakerAction.PLAY, null);
+            this.freqs = freqs;
+            this.durations = durations;
+            this.volumes = volumes;
+        }
+    }
   
     /**
      * This object should not be constructed directly, it should be created using the {@link Robot#getSpeaker() Robot.getSpeaker}
      * method present in {@link Robot Robot}
-     * @param ev3 The ev3 object with which the speaker belongs to.
+     * @param robot The robot with which the speaker belongs to.
      * @see Robot#getSpeaker()
     **/
-    protected Speaker(RemoteEV3 ev3)
+    protected Speaker(Robot robot)
     {
-        speaker = ev3.getAudio();
+        //The speaker belongs to the Robot rather than the thread that made it (e.g. a pool thread in Robot.connectAll), so it is only closed by Robot.close()
+        super(robot.getScheduler(), null);
+        speaker = robot.getBackend().getAudio();
+        executor = robot.getScheduler().getExecutor();
     }
     /**
      * Returns the current volume of the robots speaker
@@ -62,12 +174,62 @@ public class Speaker
     }
     /**
      * Synchronously plays a tone of the specified frequency and duration through the robots speaker
-     * (The current thread will be stalled whilst tone is playing)
+     * (The current thread will be stalled whilst tone, and anything queued before it, is playing. See {@link #playToneAsync(int, int)} to carry on straight away)
      * @param freq The frequency of the tone in Hertz (Hz).
      * @param duration The duration of the tone, in milliseconds (ms).
      * @throws IllegalArgumentException When {@code freq} or {@code duration} arguments are below 1.
     **/
     public void playTone(final int freq, final int duration)
+    {
+        this.await(playToneAsync(freq, duration));
+    }
+    /**
+     * Queues a tone of the specified frequency and duration to be played through the robots speaker, and returns immediately.
+     * @param freq The frequency of the tone in Hertz (Hz).
+     * @param duration The duration of the tone, in milliseconds (ms).
+     * @return A future that completes when the tone has finished playing. Cancelling it stops the tone being played, if it hasn't started.
+     * @throws IllegalArgumentException When {@code freq} or {@code duration} arguments are below 1.
+    **/
+    public CompletableFuture<Void> playToneAsync(final int freq, final int duration)
+    {
+        checkTone(freq, duration);
+        return queue(new ToneAction(new int[]{freq}, new int[]{duration}, new int[]{-1}));
+    }
+    /**
+     * Queues a melody to be played through the robots speaker, and returns immediately.
+     * The melody is sent as a single command, so nothing queued after it plays until it has finished, while the program carries on.
+     * No thread is held during its rests, so a melody with long rests doesn't hold up the other ports.
+     * @param melody The melody
+     * @return A future that completes when the melody has finished playing. Cancelling it stops the rest of the melody after the current tone.
+    **/
+    public CompletableFuture<Void> play(Melody melody)
+    {
+        int n = melody.length;
+        return queue(new ToneAction(Arrays.copyOf(melody.freqs, n), Arrays.copyOf(melody.durations, n), Arrays.copyOf(melody.volumes, n)));
+    }
+    /**
+     * Cancels everything queued, and stops whatever is playing after its current tone
+    **/
+    public void stop()
+    {
+        for(PortAction<SpeakerAction,Void> act:playing)
+            act.cancel(false);
+    }
+    /**
+     * @return True if anything is queued or playing
+    **/
+    public boolean isPlaying()
+    {
+        return !playing.isEmpty();
+    }
+    private CompletableFuture<Void> queue(final ToneAction act)
+    {
+        playing.add(act);
+        act.whenComplete((v, e) -> playing.remove(act));
+        this.addAction(act);
+        return act;
+    }
+    private static void checkTone(int freq, int duration)
     {
         if(freq <= 0) {
             throw new IllegalArgumentException("Invalid freq argument: "+freq+"\n Frequencies below 1Hz are invalid.");
@@ -75,9 +237,68 @@ public class Speaker
         else if(duration <= 0) {
             throw new IllegalArgumentException("Invalid duration argument: "+duration+"\n Durations below 1ms are invalid.");
         }
-        else {
-            speaker.playTone(freq, duration);
+    }
+    /**
+     * Plays a queued melody, checking between tones whether it has been cancelled
+     * This method is called by the PortManager superclass
+    **/
+    protected void action(PortAction<SpeakerAction,Void> act)
+    {
+        playFrom((ToneAction)act, 0);
+    }
+    /**
+     * Plays a melody from the given tone until it ends, is cancelled, or reaches a rest.
+     * At a rest the port is suspended, so nothing queued after the melody starts, and the timer carries the melody on once the rest is over.
+     * @return True if the melody stopped at a rest
+    **/
+    private boolean playFrom(final ToneAction tones, int i)
+    {
+        for(;i<tones.freqs.length && !tones.isDone();i++)
+        {
+            if(tones.freqs[i] == 0)
+            {//A rest
+                final int next = i + 1;
+                suspend();
+                final ScheduledFuture<?> wake = PortScheduler.timer().schedule(() -> executor.execute(() -> carryOn(tones, next)), tones.durations[i], TimeUnit.MILLISECONDS);
+                //When the melody is stopped during the rest, let the port carry on straight away
+                tones.whenComplete((v, e) -> {
+                    if(wake.cancel(false))
+                        resume();
+                });
+                return true;
+            }
+            else if(tones.volumes[i] < 0)
+                speaker.playTone(tones.freqs[i], tones.durations[i]);
+            else
+                speaker.playTone(tones.freqs[i], tones.durations[i], tones.volumes[i]);
         }
+        return false;
+    }
+    /**
+     * Plays the rest of a melody after a rest, then completes it and lets the port carry on
+    **/
+    private void carryOn(ToneAction tones, int i)
+    {
+        try
+        {
+            if(playFrom(tones, i))
+                return;
+            tones.complete(null);
+        }
+        catch(RuntimeException e)
+        {
+            System.err.println("Action " + tones.key + " failed: " + e);
+            tones.completeExceptionally(e);
+        }
+        resume();
+    }
+    /**
+     * Cancels anything still to be played, called when the {@link Robot} is closed
+    **/
+    protected void close()
+    {
+        this.kill();
+        stop();
     }
     // /**
      // * Plays an 8-bit PCM (pulse-code modulated) .wav file through the robots speaker
@@ -4,11 +4,10 @@ import lejos.remote.ev3.*;
 import ShefRobot.*;
 import ShefRobot.util.*;
 import java.rmi.RemoteException;
-import lejos.hardware.sensor.EV3TouchSensor;
+import lejos.robotics.SampleProvider;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 
-enum TouchSensorAction{
-    GET_VALUE;
-}
 /**
  * Represents a touch sensor
  * Each EV3 should contain 1 touch sensor
@@ -36,14 +35,66 @@ public class TouchSensor extends Sensor<TouchSensorAction>
         float[] sample = getRawSample();
         return sample[0]==1;
     }
-    protected void subAction(Pair<TouchSensorAction,float[]> act) throws RemoteException
+    /**
+     * Asynchronous version of {@link TouchSensor#isTouched()}, which returns immediately.
+     * @return A future that completes with true if the sensor is pressed
+    **/
+    public CompletableFuture<Boolean> isTouchedAsync()
     {
-        switch (act.key) {
+        return getRawSampleAsync().thenApply(sample -> sample[0]==1);
+    }
+    /**
+     * Runs a task whenever the sensor is pressed, see {@link Sensor#onChange} for how listeners are called
+     * @param task The task
+     * @return The subscription, used to remove the listener
+    **/
+    public Subscription onPress(Runnable task)
+    {
+        return onThreshold(0.5f, true, 0, value -> task.run());
+    }
+    /**
+     * Runs a task whenever the sensor is released, see {@link Sensor#onChange} for how listeners are called
+     * @param task The task
+     * @return The subscription, used to remove the listener
+    **/
+    public Subscription onRelease(Runnable task)
+    {
+        //Only once it has been pressed, so this isn't run straight away
+        return watch(edgeWatcher(value -> value < 0.5, value -> value >= 0.5, false, value -> task.run()), true, null);
+    }
+    /**
+     * Waits until the sensor is pressed, returning straight away if it already is.
+     * This uses the background sampling shared by all listeners, so several threads can wait without each asking the robot.
+    **/
+    public void waitForPress()
+    {
+        CountDownLatch pressed = new CountDownLatch(1);
+        Subscription s = onPress(pressed::countDown);
+        try
+        {
+            pressed.await();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            s.cancel();
+        }
+    }
+    protected SampleProvider getSampleProvider(TouchSensorAction act)
+    {
+        switch (act) {
             case GET_VALUE:
-                float[] samples = new float[this.sensor.sampleSize()];
-                this.sensor.fetchSample(samples, 0);
-                act.setValue(samples);
-                break;
+                return this.sensor;
+            default:
+                return null;
+        }
+    }
+    protected void subAction(PortAction<TouchSensorAction,float[]> act) throws RemoteException
+    {
+        switch (act.key) {
             default: 
                 System.err.println("[" + this.port.name() + "] Asked for Action: " + act.key + " on a TouchSensor...");  
         }
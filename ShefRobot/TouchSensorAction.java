@@ -0,0 +1,5 @@
+package ShefRobot;
+
+enum TouchSensorAction{
+    GET_VALUE;
+}
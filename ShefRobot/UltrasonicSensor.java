@@ -4,11 +4,10 @@ import lejos.remote.ev3.*;
 import ShefRobot.*;
 import ShefRobot.util.*;
 import java.rmi.RemoteException;
-import lejos.hardware.sensor.EV3UltrasonicSensor;
+import lejos.robotics.SampleProvider;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
-enum UltrasonicSensorAction{
-    GET_VALUE, GET_DISTANCE, GET_LISTEN, ENABLE, DISABLE, GET_STATE;
-}
 /**
  * This class represents an EV3 UltrasonicSensor which has two modes of operation {@link UltrasonicSensor.Mode#DISTANCE} and {@link UltrasonicSensor.Mode#LISTEN}
  * By default the sensor starts in {@link UltrasonicSensor.Mode#DISTANCE} mode.
@@ -25,36 +24,78 @@ public class UltrasonicSensor extends Sensor<UltrasonicSensorAction>
         /**
          * Distance mode causes the sensor to continuously send out pings which allow it to calculate distances
         **/
-        DISTANCE("Distance", 0),
+        DISTANCE("Distance", 0, 100),
         /**
          * Listen mode causes the sensor to only listen for pings
         **/
-        LISTEN("Listen", 1);
+        LISTEN("Listen", 1, 300);
         protected final String internalString;
         protected final int internalId;
-        Mode(String internalString, int internalId)
+        /**
+         * How long the sensor takes to give good values after switching into this mode, in milliseconds.
+         * After switching to listen mode the sensor can still hear its own last pings.
+        **/
+        protected final int settleMs;
+        Mode(String internalString, int internalId, int settleMs)
         {
             this.internalString=internalString;
             this.internalId=internalId;
+            this.settleMs=settleMs;
+        }
+        protected static Mode fromString(String internalString)
+        {
+            for(Mode m:Mode.values())
+                if(m.internalString.equals(internalString))
+                    return m;
+            return null;
         }
     }
+    /**
+     * Settle time for each mode in nanoseconds, indexed by ordinal. Replaced rather than changed, so the port always sees a complete table.
+    **/
+    private volatile long[] settleNanos;
     protected UltrasonicSensor(Robot robot, Port port)
     {
         super(robot, port, Sensor.Type.ULTRASOUND);
+        long[] table = new long[Mode.values().length];
+        for(Mode m:Mode.values())
+            table[m.ordinal()] = TimeUnit.MILLISECONDS.toNanos(m.settleMs);
+        this.settleNanos = table;
         setMode(Mode.DISTANCE);
     }
     /**
      * Switches the sensor between modes
-     * This is automatically done when {@link UltrasonicSensor#getDistance()} and {@link UltrasonicSensor#listen()} are called
+     * This is automatically done when {@link UltrasonicSensor#getDistance()} and {@link UltrasonicSensor#listen()} are called,
+     * and readings wait for the sensor to settle in the new mode, so this returns immediately.
     **/
     private void setMode(Mode newMode)
     {//Switching to listen mode doesn't seem to put it in the same mode as used by listen()
-        this.sensor.setCurrentMode(newMode.internalId);
-        try
-        {
-            Thread.sleep(300);
-        }
-        catch(Exception e){}
+        this.addAction(new PortAction<UltrasonicSensorAction,float[]>(UltrasonicSensorAction.SET_MODE, new float[]{(float)newMode.internalId}));
+    }
+    /**
+     * Sets how long readings wait for the sensor to settle after it switches into a mode.
+     * @param mode The mode
+     * @param settleMs The time in milliseconds
+     * @throws IllegalArgumentException When settleMs is negative
+    **/
+    public void setSettleTime(Mode mode, int settleMs)
+    {
+        if(settleMs<0)
+            throw new IllegalArgumentException("Invalid settle time argument: "+settleMs+"\n Settle times should not be negative.");
+        long[] table = this.settleNanos.clone();
+        table[mode.ordinal()] = TimeUnit.MILLISECONDS.toNanos(settleMs);
+        this.settleNanos = table;
+    }
+    /**
+     * Starts sampling the sensor in the background in distance mode,
+     * after which {@link UltrasonicSensor#getDistance()} returns the latest sample immediately instead of asking the robot.
+     * @param periodMs How often to read the sensor, in milliseconds
+     * @see Sensor#startSampling(int)
+    **/
+    @Override
+    public void startSampling(int periodMs)
+    {
+        startSampling(UltrasonicSensorAction.GET_DISTANCE, periodMs);
     }
     /**
      * Returns the distance detected by the sensor in metres
@@ -64,92 +105,128 @@ public class UltrasonicSensor extends Sensor<UltrasonicSensorAction>
     **/
     public float getDistance()
     {
-        Pair<UltrasonicSensorAction,float[]> action = new Pair<UltrasonicSensorAction,float[]>(UltrasonicSensorAction.GET_DISTANCE, null);
-        this.addAction(action);
-        while (action.getValue() == null) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {}
-        }
-        return action.getValue()[0];
+        return sendAction(UltrasonicSensorAction.GET_DISTANCE)[0];
+    }
+    /**
+     * Asynchronous version of {@link UltrasonicSensor#getDistance()}, which returns immediately.
+     * @return A future that completes with the distance detected by the ultrasonic sensor
+    **/
+    public CompletableFuture<Float> getDistanceAsync()
+    {
+        return sendActionAsync(UltrasonicSensorAction.GET_DISTANCE, null).thenApply(result -> result[0]);
+    }
+    /**
+     * Calls a listener whenever something comes closer than the given distance.
+     * It isn't called again until the distance has gone back above {@code metres + hysteresis}.
+     * See {@link Sensor#onChange} for how listeners are called.
+     * @param metres The distance in metres
+     * @param hysteresis How far beyond {@code metres} things must go before the listener can be called again, in metres
+     * @param listener Called with the distance
+     * @return The subscription, used to remove the listener
+     * @throws IllegalStateException When the sensor is being sampled in listen mode
+    **/
+    public Subscription onCloserThan(float metres, float hysteresis, ValueListener listener)
+    {
+        return watch(thresholdWatcher(metres, false, hysteresis, listener), false, UltrasonicSensorAction.GET_DISTANCE);
     }
     /**
      * Enables the UltrasonicSensors light
     **/
     private void enable()
     {//Why bother, calling listen() or getDistance() both override this
-        this.addAction(new Pair<UltrasonicSensorAction,float[]>(UltrasonicSensorAction.ENABLE, null));
+        sendActionAsync(UltrasonicSensorAction.ENABLE, null);
     }
     /**
      * Disables the UltrasonicSensors light
     **/
     private void disable()     
     {//Why bother, calling listen() or getDistance() both override this
-        this.addAction(new Pair<UltrasonicSensorAction,float[]>(UltrasonicSensorAction.DISABLE, null));
+        sendActionAsync(UltrasonicSensorAction.DISABLE, null);
     }
     /**
      * Returns the state of the UltrasonicSensors light
     **/
     private boolean isEnabled()
     {        
-        Pair<UltrasonicSensorAction,float[]> action = new Pair<UltrasonicSensorAction,float[]>(UltrasonicSensorAction.GET_LISTEN, null);
-        this.addAction(action);
-        while (action.getValue() == null) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {}
-        }
-        return action.getValue()[0]!=0.0f;
+        return sendAction(UltrasonicSensorAction.GET_LISTEN)[0]!=0.0f;
     }
     /**
      * When in Listen mode the Ultrasonic sensor will not emit ultrasound, it will only listen for other robots ultrasound.
      * When in Listen mode the Ultrasonic sensors light will blink
-     * It may take upto 300ms, after the first call to {@code listen()} for the sensor to stop reading it's own pings
+     * The first call to {@code listen()} after {@link UltrasonicSensor#getDistance()} waits for the sensor to stop hearing it's own pings (see {@link UltrasonicSensor#setSettleTime(Mode, int)})
      * @return Whether the ultrasonic sensor detects any ultrasonic pings
     **/
     public boolean listen()
     {
-        Pair<UltrasonicSensorAction,float[]> action = new Pair<UltrasonicSensorAction,float[]>(UltrasonicSensorAction.GET_LISTEN, null);
-        this.addAction(action);
-        while (action.getValue() == null) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {}
+        return sendAction(UltrasonicSensorAction.GET_LISTEN)[0]!=0.0f;
+    }
+    /**
+     * Called by the superclass to find the sensor mode used by actions that read the sensor
+    **/
+    protected SampleProvider getSampleProvider(UltrasonicSensorAction act)
+    {
+        switch (act) {
+            case GET_VALUE:
+                return this.sensor;
+            case GET_DISTANCE:
+                return this.sensor.getMode(Mode.DISTANCE.internalString);
+            case GET_LISTEN:
+                return this.sensor.getMode(Mode.LISTEN.internalString);
+            default:
+                return null;
+        }
+    }
+    /**
+     * Called by the superclass to find the mode an action reads in
+    **/
+    @Override
+    protected String getModeName(UltrasonicSensorAction act)
+    {
+        switch (act) {
+            case GET_DISTANCE:
+                return Mode.DISTANCE.internalString;
+            case GET_LISTEN:
+                return Mode.LISTEN.internalString;
+            default:
+                return null;
         }
-        return action.getValue()[0]!=0.0f;
+    }
+    /**
+     * Called by the superclass to find how long the sensor takes to settle in a mode
+    **/
+    @Override
+    protected long getSettleNanos(String mode)
+    {
+        Mode m = Mode.fromString(mode);
+        return m == null ? 0 : this.settleNanos[m.ordinal()];
     }
     /**
      * Called by the superclass to forward subclass specific actions
     **/
-    protected void subAction(Pair<UltrasonicSensorAction,float[]> act) throws RemoteException
+    protected void subAction(PortAction<UltrasonicSensorAction,float[]> act) throws RemoteException
     {
         float[] samples;
         switch (act.key) {
-            case GET_VALUE:
-                samples = new float[((EV3UltrasonicSensor)this.sensor).sampleSize()];
-                ((EV3UltrasonicSensor)this.sensor).fetchSample(samples, 0);
-                act.setValue(samples);
-                break;
-            case GET_DISTANCE:
-                samples = new float[((EV3UltrasonicSensor)this.sensor).sampleSize()];
-                ((EV3UltrasonicSensor)this.sensor).getDistanceMode().fetchSample(samples, 0);
-                act.setValue(samples);
-                break;
-            case GET_LISTEN:
-                samples = new float[((EV3UltrasonicSensor)this.sensor).sampleSize()];
-                ((EV3UltrasonicSensor)this.sensor).getListenMode().fetchSample(samples, 0);
-                act.setValue(samples);
-                break;
             case ENABLE:
-                ((EV3UltrasonicSensor)this.sensor).enable();
+                this.sensor.enable();
                 break;
             case DISABLE:
-                ((EV3UltrasonicSensor)this.sensor).disable();
+                this.sensor.disable();
+                break;
+            case SET_MODE:
+                for(Mode m:Mode.values())
+                {
+                    if(m.internalId == (int)act.getArgument()[0])
+                    {
+                        this.sensor.setCurrentMode(m.internalId);
+                        modeChanged(m.internalString);
+                    }
+                }
                 break;
             case GET_STATE:
                 samples = new float[1];
-                samples[0] =((EV3UltrasonicSensor)this.sensor).isEnabled()?1.0f:0.0f;
-                act.setValue(samples);
+                samples[0] =this.sensor.isEnabled()?1.0f:0.0f;
+                act.complete(samples);
                 break;
             default: 
                 System.err.println("[" + this.port.name() + "] Asked for Action: " + act.key + " on a UltrasonicSensor...");  
@@ -0,0 +1,5 @@
+package ShefRobot;
+
+enum UltrasonicSensorAction{
+    GET_VALUE, GET_DISTANCE, GET_LISTEN, ENABLE, DISABLE, GET_STATE, SET_MODE;
+}
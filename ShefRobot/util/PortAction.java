@@ -0,0 +1,82 @@
+package ShefRobot.util;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An action queued on a port, used internally.
+ * The port thread completes the action with its result (or {@code null} for actions that don't return anything),
+ * so callers can either block on it or compose it with other futures.
+ *
+ * The action also records when it was queued, started and completed, which is used for the port metrics.
+ * All times are from {@link System#nanoTime()}, and are 0 until they have happened.
+**/
+public class PortAction<K,V> extends CompletableFuture<V> {
+
+    public final K key;
+    private final V argument;
+    private volatile long enqueuedAt;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+
+    public PortAction(K key, V argument) {
+        this.key = key;
+        this.argument = argument;
+    }
+
+    /**
+     * @return The argument the action was queued with, may be {@code null}
+    **/
+    public V getArgument(){
+        return argument;
+    }
+
+    /**
+     * Records that the action has just been queued
+    **/
+    public void markEnqueued() {
+        enqueuedAt = System.nanoTime();
+    }
+    /**
+     * Records that the port thread has just started carrying out the action
+    **/
+    public void markStarted() {
+        startedAt = System.nanoTime();
+    }
+    /**
+     * @return When the action was queued, or 0 if it hasn't been
+    **/
+    public long getEnqueuedTime() {
+        return enqueuedAt;
+    }
+    /**
+     * @return When the port thread started carrying out the action, or 0 if it hasn't
+    **/
+    public long getStartedTime() {
+        return startedAt;
+    }
+    /**
+     * @return When the action was completed after being started, or 0 if it hasn't been
+    **/
+    public long getFinishedTime() {
+        return finishedAt;
+    }
+
+    @Override
+    public boolean complete(V value) {
+        markFinished();
+        return super.complete(value);
+    }
+
+    @Override
+    public boolean completeExceptionally(Throwable ex) {
+        markFinished();
+        return super.completeExceptionally(ex);
+    }
+
+    private void markFinished() {
+        //Only the first completion of a started action counts
+        if (startedAt != 0 && finishedAt == 0 && !isDone()) {
+            finishedAt = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,854 @@
+import ShefRobot.*;
+import java.io.File;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Times the hot paths of the library against a {@link SimulatedEV3}, so changes can be compared with numbers, and counts the bytes each {@link Sensor#fetchSample} allocates.
+ * It then drives 1, 10 and 50 simulated robots at once with each {@link PortScheduler}, to show how the library scales,
+ * sends commands to a {@link RobotFleet} of 100 simulated robots, compares a hand-written line follower with a {@link ControlLoop},
+ * compares driving a path one move at a time with a {@link DifferentialDrive}, compares reading each wheel's tacho count and a gyro's heading with {@link Odometry},
+ * compares averaging sensor reads by hand with a {@link SampleFilter}, and compares polling a sensor with listening to it.
+ *
+ * Usage: {@code java ShefRobotBenchmark [latencyMicros [jitterMicros]]}
+ * With no arguments the simulated EV3 answers instantly, so the times are the overhead of the library itself.
+ */
+public class ShefRobotBenchmark {
+
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 10000;
+    private static final int[] FLEET_SIZES = {1, 10, 50};
+    private static final int FLEET_ITERATIONS = 500;
+    private static final int BLOCKING_ROBOTS = 16;
+    private static final long PIPELINE_LATENCY = 2000;
+    private static final long PIPELINE_NANOS = 2000000000L;
+    private static final int FLEET_ROBOTS = 100;
+    private static final int[] FLEET_PARALLELISM = {1, 16, 100};
+    private static final int FLEET_ROUNDS = 20;
+    private static final int[] LOOP_PERIODS = {10, 5, 2};
+    private static final long LOOP_NANOS = 2000000000L;
+    private static final int DRIVE_SEGMENTS = 30;
+    private static final int[] ODOMETRY_PERIODS = {10, 5, 1};
+    private static final int POSE_READERS = 4;
+    private static final int POSE_BURST = 10000;
+    private static final int FILTER_READS = 5;
+    private static final int FILTER_PERIOD_MS = 10;
+    private static final float FILTER_DISTANCE = 0.5f;
+    private static final float FILTER_NOISE = 0.02f;
+    private static final int FILTER_SAMPLES = 1000000;
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    private static long latency;
+    private static long jitter;
+
+    public static void main(String[] args) throws Exception {
+        latency = args.length > 0 ? Long.parseLong(args[0]) : 0;
+        jitter = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        System.out.println("Simulated latency " + latency + "us, jitter " + jitter + "us");
+        System.out.println(String.format("%-40s %10s %10s %10s %10s", "benchmark", "mean us", "p50 us", "p99 us", "ops/s"));
+
+        Robot robot = new Robot(simulator());
+        final Motor motor = robot.getLargeMotor(Motor.Port.A);
+        final TouchSensor touch = robot.getTouchSensor(Sensor.Port.S1);
+        final ColorSensor color = robot.getColorSensor(Sensor.Port.S2);
+
+        // Fire-and-forget commands only pay for queueing the action.
+        // setSpeed would be merged into the drive command already waiting, so use a command that is always queued
+        measure("Motor.resetTachoCount (enqueue)", new Task() {
+            public void run() {
+                motor.resetTachoCount();
+            }
+        });
+        // Let the port thread catch up before timing round trips
+        motor.getTachoCount();
+
+        measure("Motor.getTachoCount (round trip)", new Task() {
+            public void run() {
+                motor.getTachoCount();
+            }
+        });
+        measure("Sensor.getRawSample", new Task() {
+            public void run() {
+                touch.getRawSample();
+            }
+        });
+        measure("ColorSensor.getColor (same mode)", new Task() {
+            public void run() {
+                color.getColor();
+            }
+        });
+        //Leave out the time the sensor takes to settle, to time the switching itself
+        for (ColorSensor.Mode mode : ColorSensor.Mode.values()) {
+            color.setSettleTime(mode, 0);
+        }
+        measure("ColorSensor.getColor+getRed (switching)", new Task() {
+            public void run() {
+                color.getColor();
+                color.getRed();
+            }
+        });
+        for (ColorSensor.Mode mode : ColorSensor.Mode.values()) {
+            color.setSettleTime(mode, 100);
+        }
+        //Reading two modes one at a time waits for the sensor to settle on every read,
+        //reading them together lets the sensor group the reads by mode
+        measure("ColorSensor 4+4 reads, one at a time", 1, 5, new Task() {
+            public void run() {
+                for (int i = 0; i < 4; i++) {
+                    color.getColor();
+                    color.getRed();
+                }
+            }
+        });
+        measure("ColorSensor 4+4 reads, together", 1, 5, new Task() {
+            public void run() {
+                List<CompletableFuture<?>> reads = new ArrayList<CompletableFuture<?>>();
+                for (int i = 0; i < 4; i++) {
+                    reads.add(color.getColorAsync());
+                    reads.add(color.getRedAsync());
+                }
+                for (CompletableFuture<?> read : reads) {
+                    read.join();
+                }
+            }
+        });
+        //The same round trips again, with every command and answer written to a flight recording
+        File recording = File.createTempFile("ShefRobotBenchmark", ".rec");
+        recording.deleteOnExit();
+        FlightRecorder recorder = FlightRecorder.open(recording, 1 << 16);
+        robot.setFlightRecorder(recorder);
+        measure("Motor.getTachoCount (recorded)", new Task() {
+            public void run() {
+                motor.getTachoCount();
+            }
+        });
+        measure("Sensor.getRawSample (recorded)", new Task() {
+            public void run() {
+                touch.getRawSample();
+            }
+        });
+        robot.setFlightRecorder(null);
+        recorder.close();
+        robot.close();
+        //The recording played back as fast as it can be read, with each read taking the next recorded value
+        ReplayEV3 replay = new ReplayEV3(recording, ReplayEV3.Mode.FAST);
+        Robot replayed = new Robot(replay);
+        final Motor replayedMotor = replayed.getLargeMotor(Motor.Port.A);
+        final TouchSensor replayedTouch = replayed.getTouchSensor(Sensor.Port.S1);
+        measure("Motor.getTachoCount (replayed)", new Task() {
+            public void run() {
+                replayedMotor.getTachoCount();
+            }
+        });
+        measure("Sensor.getRawSample (replayed)", new Task() {
+            public void run() {
+                replayedTouch.getRawSample();
+            }
+        });
+        replayed.close();
+        replay.close();
+
+        measure("Robot construction and close", WARMUP / 10, ITERATIONS / 10, new Task() {
+            public void run() {
+                Robot r = new Robot(simulator());
+                r.getLargeMotor(Motor.Port.A);
+                r.getColorSensor(Sensor.Port.S1);
+                r.close();
+            }
+        });
+
+        allocation();
+
+        pipelining();
+
+        System.out.println();
+        System.out.println(String.format("%-40s %10s %10s %10s", "scaling (3 ports per robot)", "robots", "ops/s", "threads"));
+        scaling("cached pool (default)", PortScheduler.getDefault());
+        scaling("shared pool of 8 threads", PortScheduler.shared(8));
+        PortScheduler virtual = null;
+        try {
+            virtual = PortScheduler.virtualThreads();
+        } catch (UnsupportedOperationException e) {
+            System.out.println("virtual threads: not available on this version of Java");
+        }
+        if (virtual != null) {
+            scaling("virtual threads", virtual);
+        }
+        System.out.println();
+        System.out.println(String.format("%-40s %10s %10s", "read while " + BLOCKING_ROBOTS + " robots rotate", "robots", "read ms"));
+        blocked("cached pool (default)", PortScheduler.getDefault());
+        blocked("shared pool of 8 threads", PortScheduler.shared(8));
+        blocked("shared pool of 2 threads", PortScheduler.shared(2));
+
+        fleet();
+        controlLoop();
+        drive();
+        odometry();
+        filters();
+        listeners();
+    }
+
+    /**
+     * Estimates a noisy distance by averaging {@link #FILTER_READS} reads by hand, then from one stream of background samples
+     * through each {@link SampleFilter}, showing the error of each estimate. Also times each filter on its own.
+    **/
+    private static void filters() throws Exception {
+        System.out.println();
+        System.out.println(String.format("%-40s %10s %10s %10s %10s", "filters (" + PIPELINE_LATENCY + "us latency)",
+                "reads/est", "us each", "rms error", "ns/sample"));
+        SimulatedEV3 sim = new SimulatedEV3(1);
+        sim.setLatency(PIPELINE_LATENCY, 0);
+        final Random noise = new Random(1);
+        sim.setSensorSource(Sensor.Port.S4, "Distance", () -> new float[]{(float)(FILTER_DISTANCE + FILTER_NOISE * noise.nextGaussian())});
+        Robot robot = new Robot(sim);
+        UltrasonicSensor sonar = robot.getUltrasonicSensor(Sensor.Port.S4);
+        sonar.getDistance();
+
+        long end = System.nanoTime() + LOOP_NANOS;
+        long estimates = 0;
+        long nanos = 0;
+        double error = 0;
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            float sum = 0;
+            for (int i = 0; i < FILTER_READS; i++) {
+                sum += sonar.getDistance();
+            }
+            nanos += System.nanoTime() - start;
+            error += Math.pow(sum / FILTER_READS - FILTER_DISTANCE, 2);
+            estimates++;
+        }
+        System.out.println(String.format("%-40s %10d %10.0f %10.4f %10s", "average of " + FILTER_READS + " getDistance() calls",
+                FILTER_READS, nanos / 1e3 / estimates, Math.sqrt(error / estimates), "-"));
+
+        String[] names = {"median", "exponentialAverage", "kalman", "rejectOutliers"};
+        for (int f = 0; f < names.length; f++) {
+            sonar.setFilter(filter(f));
+            sonar.startSampling(FILTER_PERIOD_MS);
+            //Let the filter fill up before measuring its error
+            Thread.sleep(20 * FILTER_PERIOD_MS);
+            estimates = 0;
+            nanos = 0;
+            error = 0;
+            end = System.nanoTime() + LOOP_NANOS / 2;
+            while (System.nanoTime() < end) {
+                long start = System.nanoTime();
+                float distance = sonar.getDistance();
+                nanos += System.nanoTime() - start;
+                error += Math.pow(distance - FILTER_DISTANCE, 2);
+                estimates++;
+                Robot.sleep(FILTER_PERIOD_MS);
+            }
+            sonar.stopSampling();
+            sonar.setFilter(null);
+
+            //The filter on its own, timed after a run to warm it up
+            long filterNanos = 0;
+            for (int run = 0; run < 2; run++) {
+                SampleFilter filter = filter(f);
+                float[] sample = new float[1];
+                long start = System.nanoTime();
+                for (int i = 0; i < FILTER_SAMPLES; i++) {
+                    sample[0] = FILTER_DISTANCE + FILTER_NOISE * ((i * 7919) % 101 - 50) / 50f;
+                    filter.filter(sample, 0, 1);
+                }
+                filterNanos = System.nanoTime() - start;
+            }
+            System.out.println(String.format("%-40s %10d %10.2f %10.4f %10.1f", "SampleFilter." + names[f],
+                    1, nanos / 1e3 / estimates, Math.sqrt(error / estimates), filterNanos / (double)FILTER_SAMPLES));
+        }
+        robot.close();
+    }
+
+    /**
+     * @return A new filter of the kind numbered {@code f} in {@link #filters()}, set up for the simulated noise
+    **/
+    private static SampleFilter filter(int f) {
+        switch (f) {
+            case 0:
+                return SampleFilter.median(FILTER_READS);
+            case 1:
+                return SampleFilter.exponentialAverage(0.2f);
+            case 2:
+                return SampleFilter.kalman(1e-6f, FILTER_NOISE * FILTER_NOISE);
+            default:
+                return SampleFilter.rejectOutliers(FILTER_READS, 3);
+        }
+    }
+
+    /**
+     * Counts the reads sent to the robot while ten threads wait for a touch sensor to be pressed,
+     * first by polling it, then with listeners sharing one stream of samples.
+    **/
+    private static void listeners() throws Exception {
+        System.out.println();
+        System.out.println(String.format("%-40s %10s %10s %10s", "waiting for a press (" + PIPELINE_LATENCY + "us latency)",
+                "waiters", "reads/s", "notice ms"));
+        final SimulatedEV3 sim = new SimulatedEV3(1);
+        sim.setLatency(PIPELINE_LATENCY, 0);
+        Robot robot = new Robot(sim);
+        final TouchSensor touch = robot.getTouchSensor(Sensor.Port.S1);
+        waitForPress("polling isTouched()", sim, robot, new Task() {
+            public void run() {
+                while (!touch.isTouched()) {
+                    Robot.sleep(10);
+                }
+            }
+        });
+        waitForPress("waitForPress() (shared listener)", sim, robot, new Task() {
+            public void run() {
+                touch.waitForPress();
+            }
+        });
+        robot.close();
+    }
+
+    private static void waitForPress(String name, SimulatedEV3 sim, Robot robot, final Task wait) throws Exception {
+        final int waiters = 10;
+        //Count the reads that reach the (simulated) robot
+        final AtomicLong reads = new AtomicLong();
+        final AtomicBoolean touched = new AtomicBoolean();
+        sim.setSensorSource(Sensor.Port.S1, "Touch", new java.util.function.Supplier<float[]>() {
+            public float[] get() {
+                reads.incrementAndGet();
+                return new float[]{touched.get() ? 1 : 0};
+            }
+        });
+        final CountDownLatch done = new CountDownLatch(waiters);
+        final long[] noticed = new long[waiters];
+        for (int i = 0; i < waiters; i++) {
+            final int id = i;
+            new Thread() {
+                public void run() {
+                    try {
+                        wait.run();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    noticed[id] = System.nanoTime();
+                    done.countDown();
+                }
+            }.start();
+        }
+        Thread.sleep(200);
+        long start = System.nanoTime();
+        long before = reads.get();
+        Thread.sleep(1000);
+        double rate = (reads.get() - before) / ((System.nanoTime() - start) / 1e9);
+        long pressed = System.nanoTime();
+        touched.set(true);
+        done.await();
+        long slowest = 0;
+        for (long t : noticed) {
+            slowest = Math.max(slowest, t - pressed);
+        }
+        System.out.println(String.format("%-40s %10d %10.0f %10.1f", name, waiters, rate, slowest / 1e6));
+    }
+
+    /**
+     * Follows a simulated line, first with a loop written the usual way (read, set the speeds, sleep),
+     * then with a {@link ControlLoop} at several periods, using the same fixed latency as {@link #pipelining()}.
+    **/
+    private static void controlLoop() throws Exception {
+        System.out.println();
+        System.out.println(String.format("%-40s %10s %10s %10s %10s %10s", "line following (" + PIPELINE_LATENCY + "us latency)",
+                "period ms", "loops/s", "overruns", "jitter p99", "exec p99"));
+        SimulatedEV3 sim = new SimulatedEV3(1);
+        sim.setLatency(PIPELINE_LATENCY, 0);
+        final Robot robot = new Robot(sim);
+        final Motor left = robot.getLargeMotor(Motor.Port.B);
+        final Motor right = robot.getLargeMotor(Motor.Port.C);
+        final ColorSensor light = robot.getColorSensor(Sensor.Port.S1);
+        light.setSettleTime(ColorSensor.Mode.RED, 0);
+        light.setMode(ColorSensor.Mode.RED);
+        //The edge of the line, as seen by a robot weaving across it
+        final long begin = System.nanoTime();
+        sim.setSensorSource(Sensor.Port.S1, "Red", new java.util.function.Supplier<float[]>() {
+            public float[] get() {
+                return new float[]{0.4f + 0.3f * (float)Math.sin((System.nanoTime() - begin) / 2e8)};
+            }
+        });
+
+        int period = LOOP_PERIODS[0];
+        long end = System.nanoTime() + LOOP_NANOS;
+        long loops = 0;
+        while (System.nanoTime() < end) {
+            float error = 0.4f - light.getRed();
+            left.setSpeed((int)Math.abs(200 + 600 * error));
+            right.setSpeed((int)Math.abs(200 - 600 * error));
+            left.forward();
+            right.forward();
+            Robot.sleep(period);
+            loops++;
+        }
+        System.out.println(String.format("%-40s %10d %10.0f %10s %10s %10s", "by hand (read, set, sleep)", period,
+                loops / (LOOP_NANOS / 1e9), "-", "-", "-"));
+        left.stop();
+        right.stop();
+
+        for (int p : LOOP_PERIODS) {
+            ControlLoop loop = new ControlLoop(light, new PIDController(600, 0, 5), ControlLoop.steer(left, right, 200));
+            loop.setSetpoint(0.4f);
+            loop.start(p);
+            Thread.sleep(LOOP_NANOS / 1000000);
+            loop.stop();
+            System.out.println(String.format("%-40s %10d %10.0f %10d %8.0fus %8.0fus", "ControlLoop (PID)", p,
+                    loop.getIterations() / (LOOP_NANOS / 1e9), loop.getOverruns(),
+                    loop.getJitter().getP99() / 1e3, loop.getExecution().getP99() / 1e3));
+        }
+        robot.close();
+    }
+
+    /**
+     * Drives a wiggly path of {@link #DRIVE_SEGMENTS} straights and arcs, first by rotating the wheels for one segment at a time,
+     * then with a {@link DifferentialDrive}, which blends the segments together.
+    **/
+    private static void drive() throws Exception {
+        System.out.println();
+        System.out.println(String.format("%-40s %10s %10s %10s %10s", "driving a path (" + PIPELINE_LATENCY + "us latency)",
+                "segments", "total ms", "moves/s", "stops"));
+        SimulatedEV3 sim = new SimulatedEV3(1);
+        sim.setLatency(PIPELINE_LATENCY, 0);
+        Robot robot = new Robot(sim);
+        Motor left = robot.getLargeMotor(Motor.Port.B);
+        Motor right = robot.getLargeMotor(Motor.Port.C);
+        final double wheel = 5.6;
+        final double track = 12;
+        final int speed = 720;
+        DifferentialDrive.Path path = new DifferentialDrive.Path();
+        for (int i = 0; i < DRIVE_SEGMENTS / 3; i++) {
+            path.straight(2).arc(10, 10).arc(-10, 10);
+        }
+
+        //Each segment as a separate rotation of both wheels, the speeds set so they finish together
+        MotorGroup wheels = robot.getMotorGroup(left, right);
+        double degreesPerCm = 360 / (Math.PI * wheel);
+        double[][] moves = new double[DRIVE_SEGMENTS][];
+        for (int i = 0; i < DRIVE_SEGMENTS; i++) {
+            double turn = i % 3 == 0 ? 0 : Math.toRadians(i % 3 == 1 ? 10 : -10) * track / 2;
+            double distance = i % 3 == 0 ? 2 : Math.toRadians(10) * 10;
+            moves[i] = new double[]{(distance - turn) * degreesPerCm, (distance + turn) * degreesPerCm};
+        }
+        long start = System.nanoTime();
+        for (double[] m : moves) {
+            double lead = Math.max(Math.abs(m[0]), Math.abs(m[1]));
+            wheels.setSpeeds((int)Math.round(speed * Math.abs(m[0]) / lead), (int)Math.round(speed * Math.abs(m[1]) / lead));
+            wheels.rotate(new int[]{(int)Math.round(m[0]), (int)Math.round(m[1])}, false);
+        }
+        double ms = (System.nanoTime() - start) / 1e6;
+        System.out.println(String.format("%-40s %10d %10.0f %10.1f %10d", "one rotate per segment", DRIVE_SEGMENTS, ms,
+                DRIVE_SEGMENTS / (ms / 1e3), DRIVE_SEGMENTS));
+
+        DifferentialDrive drive = new DifferentialDrive(left, right, wheel, track);
+        drive.setSpeed(speed);
+        //Roughly how quickly an EV3 motor speeds up by itself
+        drive.setAcceleration(6000);
+        start = System.nanoTime();
+        drive.follow(path).join();
+        ms = (System.nanoTime() - start) / 1e6;
+        System.out.println(String.format("%-40s %10d %10.0f %10.1f %10d", "DifferentialDrive (blended)", drive.getSegmentsCompleted(), ms,
+                drive.getSegmentsCompleted() / (ms / 1e3), drive.getStops()));
+        robot.close();
+    }
+
+    /**
+     * Tracks a robot driving in circles, first by reading the tacho count of each wheel in turn (as {@code ColorFinder} does),
+     * then with {@link Odometry}, while {@link #POSE_READERS} threads read the pose in bursts, timing each read.
+     * Finally compares asking a gyro for the heading on every read with reading the heading of odometry fused with the gyro.
+    **/
+    private static void odometry() throws Exception {
+        System.out.println();
+        System.out.println(String.format("%-40s %10s %10s %10s %10s", "odometry (" + PIPELINE_LATENCY + "us latency)",
+                "period ms", "updates/s", "pair us", "pose ns"));
+        SimulatedEV3 sim = new SimulatedEV3(1);
+        sim.setLatency(PIPELINE_LATENCY, 0);
+        Robot robot = new Robot(sim);
+        Motor left = robot.getLargeMotor(Motor.Port.B);
+        Motor right = robot.getLargeMotor(Motor.Port.C);
+        robot.getMotorGroup(left, right).drive(300, 200);
+
+        long end = System.nanoTime() + LOOP_NANOS;
+        long pairs = 0;
+        long pairNanos = 0;
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            left.getTachoCount();
+            right.getTachoCount();
+            pairNanos += System.nanoTime() - start;
+            pairs++;
+        }
+        System.out.println(String.format("%-40s %10s %10.0f %10.0f %10s", "getTachoCount() on each wheel", "-",
+                pairs / (LOOP_NANOS / 1e9), pairNanos / 1e3 / pairs, "-"));
+
+        for (int p : ODOMETRY_PERIODS) {
+            final Odometry odometry = new Odometry(left, right, 5.6, 12);
+            odometry.start(p);
+            final AtomicBoolean reading = new AtomicBoolean(true);
+            final AtomicLong poses = new AtomicLong();
+            final AtomicLong poseNanos = new AtomicLong();
+            Thread[] readers = new Thread[POSE_READERS];
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = new Thread(() -> {
+                    //Bursts of reads with a pause between, so the readers leave the odometry time to run even on one CPU
+                    Odometry.Pose pose = new Odometry.Pose();
+                    long n = 0;
+                    long nanos = 0;
+                    while (reading.get()) {
+                        long start = System.nanoTime();
+                        for (int j = 0; j < POSE_BURST; j++) {
+                            odometry.getPose(pose);
+                        }
+                        nanos += System.nanoTime() - start;
+                        n += POSE_BURST;
+                        LockSupport.parkNanos(1000000);
+                    }
+                    poses.addAndGet(n);
+                    poseNanos.addAndGet(nanos);
+                });
+                readers[i].start();
+            }
+            Thread.sleep(LOOP_NANOS / 1000000);
+            reading.set(false);
+            for (Thread t : readers) {
+                t.join();
+            }
+            odometry.stop();
+            System.out.println(String.format("%-40s %10d %10.0f %10.0f %10.0f", "Odometry (both wheels at once)", p,
+                    odometry.getUpdates() / (LOOP_NANOS / 1e9), odometry.getReadTime().getMean() / 1e3,
+                    (double)poseNanos.get() / poses.get()));
+        }
+
+        //A heading from the gyro, asked for on every read, against the heading fused from the gyro and the wheels
+        GyroSensor gyro = robot.getGyroSensor(Sensor.Port.S1);
+        gyro.getAngle();
+        end = System.nanoTime() + LOOP_NANOS;
+        long angles = 0;
+        long angleNanos = 0;
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            gyro.getAngle();
+            angleNanos += System.nanoTime() - start;
+            angles++;
+        }
+        System.out.println(String.format("%-40s %10s %10.0f %10s %10.0f", "GyroSensor.getAngle() per heading", "-",
+                angles / (LOOP_NANOS / 1e9), "-", angleNanos / (double)angles));
+        int period = ODOMETRY_PERIODS[1];
+        Odometry fused = new Odometry(left, right, gyro, 5.6, 12);
+        fused.start(period);
+        long headings = 0;
+        long headingNanos = 0;
+        end = System.nanoTime() + LOOP_NANOS;
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            for (int j = 0; j < POSE_BURST; j++) {
+                fused.getHeading();
+            }
+            headingNanos += System.nanoTime() - start;
+            headings += POSE_BURST;
+            LockSupport.parkNanos(1000000);
+        }
+        fused.stop();
+        System.out.println(String.format("%-40s %10d %10.0f %10.0f %10.2f", "Odometry with gyro (fused heading)", period,
+                fused.getUpdates() / (LOOP_NANOS / 1e9), fused.getReadTime().getMean() / 1e3, (double)headingNanos / headings));
+        robot.close();
+    }
+
+    /**
+     * Times fleet-wide commands and reads on {@link #FLEET_ROBOTS} simulated robots, with different numbers of robots handled at once.
+     * Uses the same fixed latency as {@link #pipelining()}, so the benefit of handling robots in parallel shows.
+    **/
+    private static void fleet() throws Exception {
+        System.out.println();
+        System.out.println(String.format("%-40s %10s %10s %10s", "fleet of " + FLEET_ROBOTS + " (" + PIPELINE_LATENCY + "us latency)",
+                "parallel", "mean ms", "max ms"));
+        List<Robot> robots = new ArrayList<Robot>();
+        for (int i = 0; i < FLEET_ROBOTS; i++) {
+            SimulatedEV3 sim = new SimulatedEV3(i);
+            sim.setLatency(PIPELINE_LATENCY, 0);
+            Robot r = new Robot(sim);
+            r.getLargeMotor(Motor.Port.B);
+            r.getTouchSensor(Sensor.Port.S1);
+            robots.add(r);
+        }
+        final RobotFleet fleet = new RobotFleet(robots);
+        for (int parallelism : FLEET_PARALLELISM) {
+            fleet.setParallelism(parallelism);
+            fleetRound("setSpeed(B) + forward(B)", parallelism, new Task() {
+                public void run() {
+                    fleet.setSpeed(Motor.Port.B, 200);
+                    fleet.forward(Motor.Port.B);
+                }
+            });
+            fleetRound("stopAll", parallelism, new Task() {
+                public void run() {
+                    fleet.stopAll();
+                }
+            });
+            fleetRound("getTachoCounts(B)", parallelism, new Task() {
+                public void run() {
+                    fleet.getTachoCounts(Motor.Port.B);
+                }
+            });
+            fleetRound("sampleAll(S1)", parallelism, new Task() {
+                public void run() {
+                    fleet.sampleAll(Sensor.Port.S1);
+                }
+            });
+        }
+        int unhealthy = 0;
+        long slowest = 0;
+        for (RobotFleet.Health h : fleet.getHealth()) {
+            if (!h.isHealthy()) {
+                unhealthy++;
+            }
+            slowest = Math.max(slowest, h.getMaxLatency());
+        }
+        System.out.println(String.format("fleet health: %d of %d unhealthy, slowest robot call %.2fms", unhealthy, fleet.size(), slowest / 1e6));
+        fleet.close();
+    }
+
+    private static void fleetRound(String name, int parallelism, Task task) throws Exception {
+        task.run();
+        long total = 0;
+        long max = 0;
+        for (int i = 0; i < FLEET_ROUNDS; i++) {
+            long t = System.nanoTime();
+            task.run();
+            t = System.nanoTime() - t;
+            total += t;
+            max = Math.max(max, t);
+        }
+        System.out.println(String.format("%-40s %10d %10.2f %10.2f", name, parallelism, total / 1e6 / FLEET_ROUNDS, max / 1e6));
+    }
+
+    /**
+     * Measures how many reads a second one robot can answer when several are asked for at once.
+     * Each port carries out one request at a time, so this uses a fixed latency: the more requests that overlap, the more calls a second.
+    **/
+    private static void pipelining() throws Exception {
+        System.out.println();
+        System.out.println(String.format("%-40s %10s %10s", "pipelining (" + PIPELINE_LATENCY + "us latency)", "callers", "calls/s"));
+        SimulatedEV3 sim = new SimulatedEV3(1);
+        sim.setLatency(PIPELINE_LATENCY, 0);
+        Robot robot = new Robot(sim);
+        final Motor[] motors = {
+            robot.getLargeMotor(Motor.Port.A), robot.getLargeMotor(Motor.Port.B),
+            robot.getLargeMotor(Motor.Port.C), robot.getLargeMotor(Motor.Port.D)
+        };
+        final TouchSensor touch = robot.getTouchSensor(Sensor.Port.S1);
+        throughput("one motor, one caller", 1, new Caller() {
+            public void call(int id) {
+                motors[0].getTachoCount();
+            }
+        });
+        throughput("one motor, 8 callers", 8, new Caller() {
+            public void call(int id) {
+                motors[0].getTachoCount();
+            }
+        });
+        throughput("one sensor, 8 callers", 8, new Caller() {
+            public void call(int id) {
+                touch.getRawSample();
+            }
+        });
+        throughput("4 motors, one caller each", 4, new Caller() {
+            public void call(int id) {
+                motors[id].getTachoCount();
+            }
+        });
+        robot.close();
+    }
+
+    interface Caller {
+        void call(int id) throws Exception;
+    }
+
+    private static void throughput(String name, int callers, final Caller caller) throws Exception {
+        final long end = System.nanoTime() + PIPELINE_NANOS;
+        final long[] calls = new long[callers];
+        Thread[] threads = new Thread[callers];
+        for (int i = 0; i < callers; i++) {
+            final int id = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        while (System.nanoTime() < end) {
+                            caller.call(id);
+                            calls[id]++;
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        long total = 0;
+        for (int i = 0; i < callers; i++) {
+            threads[i].join();
+            total += calls[i];
+        }
+        System.out.println(String.format("%-40s %10d %10.0f", name, callers, total / (PIPELINE_NANOS / 1e9)));
+    }
+
+    /**
+     * Drives several robots at once, each from its own thread, and reports the total throughput and the most threads alive at once.
+     * Each robot has two motors and a sensor, and each round sends a command to one motor and reads the other motor and the sensor.
+    **/
+    /**
+     * Times a sensor read on one robot while {@link #BLOCKING_ROBOTS} other robots wait for a {@link Motor#rotate(int)} to finish.
+     * The turns give their threads back while the motors turn, so the read shouldn't wait for them even with a few shared threads.
+    **/
+    private static void blocked(String name, PortScheduler scheduler) throws Exception {
+        Robot[] robots = new Robot[BLOCKING_ROBOTS];
+        Thread[] turners = new Thread[BLOCKING_ROBOTS];
+        for (int i = 0; i < BLOCKING_ROBOTS; i++) {
+            robots[i] = new Robot(simulator(), scheduler);
+            final Motor m = robots[i].getLargeMotor(Motor.Port.A);
+            m.setSpeed(360);
+            turners[i] = new Thread(() -> m.rotate(360));
+        }
+        Robot reader = new Robot(simulator(), scheduler);
+        TouchSensor touch = reader.getTouchSensor(Sensor.Port.S1);
+        touch.getRawSample();
+        for (Thread t : turners) {
+            t.start();
+        }
+        //Let the turns get going
+        Thread.sleep(100);
+        long start = System.nanoTime();
+        touch.getRawSample();
+        long read = System.nanoTime() - start;
+        for (Thread t : turners) {
+            t.join();
+        }
+        reader.close();
+        for (Robot r : robots) {
+            r.close();
+        }
+        System.out.println(String.format("%-40s %10d %10.1f", name, BLOCKING_ROBOTS, read / 1e6));
+    }
+
+    /**
+     * Counts the bytes allocated by the calling thread for each {@link Sensor#fetchSample(float[], int)}, live and while the
+     * sensor is being sampled, which should allocate nothing at all.
+    **/
+    private static void allocation() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("allocation: not measurable on this JVM");
+            return;
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+        Robot robot = new Robot(simulator());
+        final TouchSensor touch = robot.getTouchSensor(Sensor.Port.S1);
+        final float[] sample = new float[touch.sampleSize()];
+        Task fetch = new Task() {
+            public void run() {
+                touch.fetchSample(sample, 0);
+            }
+        };
+        System.out.println();
+        System.out.println(String.format("%-40s %10s", "allocation", "bytes/op"));
+        allocated("Sensor.fetchSample (live)", threads, fetch);
+        touch.setMaxSampleAge(1000);
+        touch.startSampling(5);
+        touch.getRawSample();
+        allocated("Sensor.fetchSample (sampled)", threads, fetch);
+        touch.stopSampling();
+        robot.close();
+    }
+
+    private static void allocated(String name, com.sun.management.ThreadMXBean threads, Task task) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            task.run();
+        }
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < ITERATIONS; i++) {
+            task.run();
+        }
+        long bytes = threads.getThreadAllocatedBytes(id) - before;
+        System.out.println(String.format("%-40s %10.1f", name, (double)bytes / ITERATIONS));
+    }
+
+    private static void scaling(String name, PortScheduler scheduler) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (int size : FLEET_SIZES) {
+            final Robot[] robots = new Robot[size];
+            for (int i = 0; i < size; i++) {
+                robots[i] = new Robot(simulator(), scheduler);
+            }
+            Thread[] drivers = new Thread[size];
+            for (int i = 0; i < size; i++) {
+                final Robot r = robots[i];
+                final Motor left = r.getLargeMotor(Motor.Port.A);
+                final Motor right = r.getLargeMotor(Motor.Port.B);
+                final TouchSensor touch = r.getTouchSensor(Sensor.Port.S1);
+                drivers[i] = new Thread() {
+                    public void run() {
+                        for (int n = 0; n < FLEET_ITERATIONS; n++) {
+                            left.setSpeed(100 + n % 100);
+                            right.getTachoCount();
+                            touch.getRawSample();
+                        }
+                    }
+                };
+            }
+            threads.resetPeakThreadCount();
+            long start = System.nanoTime();
+            for (Thread t : drivers) {
+                t.start();
+            }
+            for (Thread t : drivers) {
+                t.join();
+            }
+            long total = System.nanoTime() - start;
+            //Leave out the threads driving the robots, to count only the library's own
+            int peak = threads.getPeakThreadCount() - size;
+            for (Robot r : robots) {
+                r.close();
+            }
+            System.out.println(String.format("%-40s %10d %10.0f %10d", name, size,
+                    3.0 * size * FLEET_ITERATIONS / (total / 1e9), peak));
+        }
+    }
+
+    private static SimulatedEV3 simulator() {
+        SimulatedEV3 sim = new SimulatedEV3(1);
+        sim.setLatency(latency, jitter);
+        return sim;
+    }
+
+    private static void measure(String name, Task task) throws Exception {
+        measure(name, WARMUP, ITERATIONS, task);
+    }
+
+    private static void measure(String name, int warmup, int iterations, Task task) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            task.run();
+        }
+        long[] times = new long[iterations];
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            long t = System.nanoTime();
+            task.run();
+            times[i] = System.nanoTime() - t;
+        }
+        long total = System.nanoTime() - start;
+        Arrays.sort(times);
+        System.out.println(String.format("%-40s %10.2f %10.2f %10.2f %10.0f", name,
+                total / 1e3 / iterations,
+                times[iterations / 2] / 1e3,
+                times[(int)(iterations * 0.99)] / 1e3,
+                iterations / (total / 1e9)));
+    }
+}
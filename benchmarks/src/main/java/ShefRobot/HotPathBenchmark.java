@@ -0,0 +1,145 @@
+package ShefRobot;
+
+import ShefRobot.util.PortAction;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks of the hot paths of the library, run against a {@link SimulatedEV3} that answers instantly,
+ * so the times are the overhead of the library itself rather than of a connection to a robot.
+ *
+ * This is in the ShefRobot package so it can time {@link PortManager#addAction} directly.
+ * Build the library and then this module with Maven, and run {@code java -jar target/benchmarks.jar} (see the README).
+**/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class HotPathBenchmark
+{
+    private SimulatedEV3 ev3;
+    private Robot robot;
+    private Motor motor;
+    private TouchSensor touch;
+    private ColorSensor color;
+    private TouchSensor sampled;
+    private float[] sample;
+    private InlinePort port;
+
+    /**
+     * A port that carries out its actions on the thread that queues them, and does nothing with them,
+     * so queueing an action is timed without a robot or another thread
+    **/
+    static final class InlinePort extends PortManager<PortAction<Integer,Void>>
+    {
+        InlinePort()
+        {
+            super(PortScheduler.of(Runnable::run), null);
+        }
+        protected void action(PortAction<Integer,Void> act) {}
+        protected void close()
+        {
+            kill();
+        }
+    }
+
+    @Setup
+    public void setup()
+    {
+        ev3 = new SimulatedEV3();
+        robot = new Robot(ev3);
+        motor = robot.getLargeMotor(Motor.Port.A);
+        touch = robot.getTouchSensor(Sensor.Port.S1);
+        color = robot.getColorSensor(Sensor.Port.S2);
+        //Leave out the time the sensor takes to settle, to time the switching itself
+        for(ColorSensor.Mode mode:ColorSensor.Mode.values())
+            color.setSettleTime(mode, 0);
+        sampled = robot.getTouchSensor(Sensor.Port.S3);
+        sampled.setMaxSampleAge(1000);
+        sampled.startSampling(5);
+        sampled.getRawSample();
+        sample = new float[touch.sampleSize()];
+        port = new InlinePort();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        port.close();
+        sampled.stopSampling();
+        robot.close();
+    }
+
+    /**
+     * Queueing an action on a port, and carrying it out and completing it
+    **/
+    @Benchmark
+    public PortAction<Integer,Void> addAction()
+    {
+        PortAction<Integer,Void> act = new PortAction<Integer,Void>(1, null);
+        port.addAction(act);
+        return act;
+    }
+
+    @Benchmark
+    public int motorGetTachoCount()
+    {
+        return motor.getTachoCount();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public float[] sensorGetRawSample()
+    {
+        return touch.getRawSample();
+    }
+
+    /**
+     * A live read into a buffer, which still allocates the request for the port thread (see {@code -prof gc})
+    **/
+    @Benchmark
+    public float[] sensorFetchSampleLive()
+    {
+        touch.fetchSample(sample, 0);
+        return sample;
+    }
+
+    /**
+     * A read into a buffer of the latest background sample, which should allocate nothing
+    **/
+    @Benchmark
+    public float[] sensorFetchSampleSampled()
+    {
+        sampled.fetchSample(sample, 0);
+        return sample;
+    }
+
+    @Benchmark
+    public Object colorGetColorSameMode()
+    {
+        return color.getColor();
+    }
+
+    /**
+     * Every read switches the sensor into another mode
+    **/
+    @Benchmark
+    public void colorGetColorSwitchingMode(Blackhole bh)
+    {
+        bh.consume(color.getColor());
+        bh.consume(color.getRed());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Robot robotConstruction()
+    {
+        Robot r = new Robot(ev3);
+        r.close();
+        return r;
+    }
+}
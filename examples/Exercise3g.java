@@ -26,7 +26,7 @@ public class Exercise3g {
         rightMotor.stop();
     
         //Turn 90 degrees to right
-        speaker.playTone(1000,200); 
+        speaker.playToneAsync(1000,200);
         rightMotor.setSpeed(TURNING_SPEED);
         rightMotor.forward();
         myRobot.sleep(TURN_TIME);
@@ -42,7 +42,7 @@ public class Exercise3g {
         rightMotor.stop();
 
         //Turn 90 degrees to right
-        speaker.playTone(1000,200); 
+        speaker.playToneAsync(1000,200);
         rightMotor.setSpeed(TURNING_SPEED);
         rightMotor.forward();
         myRobot.sleep(TURN_TIME);
@@ -58,7 +58,7 @@ public class Exercise3g {
         rightMotor.stop();
 
         //Turn 90 degrees to right
-        speaker.playTone(1000,200); 
+        speaker.playToneAsync(1000,200);
         rightMotor.setSpeed(TURNING_SPEED);
         rightMotor.forward();
         myRobot.sleep(TURN_TIME);
@@ -74,7 +74,7 @@ public class Exercise3g {
         rightMotor.stop();
 
         //Turn 90 degrees to right
-        speaker.playTone(1000,200); 
+        speaker.playToneAsync(1000,200);
         rightMotor.setSpeed(TURNING_SPEED);
         rightMotor.forward();
         myRobot.sleep(TURN_TIME);